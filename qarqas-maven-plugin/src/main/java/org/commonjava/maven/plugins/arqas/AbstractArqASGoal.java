@@ -3,15 +3,21 @@ package org.commonjava.maven.plugins.arqas;
 import static org.commonjava.maven.plugins.arqas.QArqASConstants.ARQ_AS_CONFIG_PREFIX;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
 
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Plugin;
 import org.apache.maven.plugin.Mojo;
 import org.apache.maven.plugin.logging.Log;
 import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.apache.maven.project.MavenProject;
 import org.commonjava.maven.plugins.arqas.conf.ASConfigurator;
 import org.commonjava.maven.plugins.arqas.conf.ReservationPortConfigurator;
 
@@ -19,6 +25,14 @@ public abstract class AbstractArqASGoal
     implements Mojo
 {
 
+    private static final String PLUGIN_ARTIFACT_ID = "qarqas-maven-plugin";
+
+    /**
+     * Configurator property listing the hints of all configurators in use, so a configurator can adapt to the others
+     * (eg. port configurators skip the ports of subsystems removed by 'subsystem-trim').
+     */
+    public static final String CONFIGURATOR_HINTS = "$CONFIGURATORS";
+
     private static final Set<String> DEFAULT_CONFIGURATORS = new HashSet<String>()
     {
         private static final long serialVersionUID = 1L;
@@ -57,6 +71,29 @@ public abstract class AbstractArqASGoal
      */
     protected String clientKey;
 
+    /**
+     * If true, the 'reservation' configurator reserves port configurations once for the whole reactor, rather than
+     * once per module. Modules that build one after another reuse the same port family, while modules building
+     * concurrently (-T) each use their own. All families are released once the last module has been torn down.
+     * 
+     * @parameter default-value="false" expression="${qarqas.shareReservation}"
+     */
+    protected boolean shareReservation;
+
+    /**
+     * Directory where JSON reports of the time spent in each stage of the setup and teardown goals are written, for
+     * aggregation across builds.
+     * 
+     * @parameter default-value="${project.build.directory}/qarqas-reports" expression="${qarqas.reportDirectory}"
+     */
+    protected File reportDirectory;
+
+    /**
+     * @parameter default-value="${session}"
+     * @readonly
+     */
+    protected MavenSession session;
+
     /**
      * Comma-separated list of {@link ASConfigurator} implementations to apply to resolved JBossAS distribution before
      * use.
@@ -102,14 +139,81 @@ public abstract class AbstractArqASGoal
 
         props.setProperty( ReservationPortConfigurator.CLIENT_KEY_CONFIG, clientKey );
 
+        if ( shareReservation && session != null )
+        {
+            props.setProperty( ReservationPortConfigurator.SHARE_RESERVATION_CONFIG, Boolean.TRUE.toString() );
+            props.setProperty( ReservationPortConfigurator.REACTOR_KEY_CONFIG, session.getTopLevelProject()
+                                                                                      .getArtifactId() );
+            props.setProperty( ReservationPortConfigurator.PROJECT_KEY_CONFIG,
+                               projectKey( session.getCurrentProject() ) );
+            props.setProperty( ReservationPortConfigurator.REACTOR_PROJECTS_CONFIG, join( getReactorProjectKeys() ) );
+        }
+
         if ( configProperties != null )
         {
             props.putAll( configProperties );
         }
 
+        props.setProperty( CONFIGURATOR_HINTS, join( new ArrayList<String>( eachConfiguratorHint() ) ) );
+
         return props;
     }
 
+    private List<String> getReactorProjectKeys()
+    {
+        final List<String> keys = new ArrayList<String>();
+        for ( final MavenProject project : session.getProjects() )
+        {
+            for ( final Plugin plugin : project.getBuildPlugins() )
+            {
+                if ( PLUGIN_ARTIFACT_ID.equals( plugin.getArtifactId() ) )
+                {
+                    keys.add( projectKey( project ) );
+                    break;
+                }
+            }
+        }
+
+        return keys;
+    }
+
+    private static String projectKey( final MavenProject project )
+    {
+        return project.getGroupId() + ":" + project.getArtifactId();
+    }
+
+    private static String join( final List<String> values )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( final String value : values )
+        {
+            if ( sb.length() > 0 )
+            {
+                sb.append( ',' );
+            }
+            sb.append( value );
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Write the timings report for the given goal. Failing to write the report doesn't fail the build.
+     */
+    protected void writeTimingReport( final StageTimings timings, final String goal )
+    {
+        final File report = new File( reportDirectory, goal + "-timings.json" );
+        final String project = session == null ? null : projectKey( session.getCurrentProject() );
+        try
+        {
+            timings.writeReport( report, goal, project );
+        }
+        catch ( final IOException e )
+        {
+            getLog().warn( "Failed to write timing report: " + report + ". Reason: " + e.getMessage() );
+        }
+    }
+
     protected File getASDir()
     {
         String dirname = asDirName;
@@ -121,6 +225,16 @@ public abstract class AbstractArqASGoal
         return new File( output, dirname );
     }
 
+    /**
+     * Directory that unpacked distributions are moved into before being deleted in the background. It sits next to the
+     * output directory, so moving into it is a rename on the same filesystem.
+     */
+    protected File getTrashDir()
+    {
+        return new File( output.getAbsoluteFile()
+                               .getParentFile(), "qarqas-trash" );
+    }
+
     protected String getASVersion()
     {
         return asCoordinate.split( ":" )[2];
@@ -143,23 +257,31 @@ public abstract class AbstractArqASGoal
         this.log = log;
     }
 
-    protected final Iterable<ASConfigurator> eachConfigurator()
+    protected final Set<ASConfigurator> eachConfigurator()
     {
         final LinkedHashSet<ASConfigurator> result = new LinkedHashSet<ASConfigurator>();
+        for ( final String hint : eachConfiguratorHint() )
+        {
+            result.add( getConfigurator( hint ) );
+        }
+
+        return result;
+    }
+
+    private Set<String> eachConfiguratorHint()
+    {
+        final LinkedHashSet<String> result = new LinkedHashSet<String>();
         if ( ( useDefaultConfigurators != null && useDefaultConfigurators )
             || ( useDefaultConfigurators == null && this.configurators == null ) )
         {
-            for ( final String hint : DEFAULT_CONFIGURATORS )
-            {
-                result.add( getConfigurator( hint ) );
-            }
+            result.addAll( DEFAULT_CONFIGURATORS );
         }
 
         if ( this.configurators != null )
         {
             for ( final String hint : this.configurators.split( "\\s*,\\s*" ) )
             {
-                result.add( getConfigurator( hint ) );
+                result.add( hint );
             }
         }
 
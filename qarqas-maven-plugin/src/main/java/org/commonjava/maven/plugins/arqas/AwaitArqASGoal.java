@@ -0,0 +1,97 @@
+package org.commonjava.maven.plugins.arqas;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.MojoFailureException;
+import org.commonjava.maven.plugins.arqas.conf.ASConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.StartupTuningConfigurator;
+import org.commonjava.maven.plugins.arqas.instance.ASInstance;
+import org.commonjava.maven.plugins.arqas.instance.ASInstanceManager;
+import org.commonjava.maven.plugins.arqas.instance.BootHistory;
+
+/**
+ * Wait for a JBossAS instance pre-started by the setup goal (see its 'preStart' parameter) to finish booting. Bind the
+ * setup goal to an early phase (eg. process-test-resources) and leave this goal in pre-integration-test, so the AS boot
+ * overlaps test compilation and unit tests. If no instance was pre-started, this goal does nothing.
+ * <br/>
+ * The boot time is written to the 'await' timing report, along with the most recent boot time of the same distribution
+ * with and without the 'startup-tuning' configurator, so the effect of tuning can be compared.
+ * 
+ * @goal await
+ * @phase pre-integration-test
+ * @author jdcasey
+ */
+public class AwaitArqASGoal
+    extends AbstractArqASGoal
+{
+
+    /**
+     * Maximum number of milliseconds to wait for the pre-started JBossAS instance to boot.
+     * 
+     * @parameter default-value="120000" expression="${qarqas.startupTimeout}"
+     */
+    private long startupTimeout;
+
+    /**
+     * @component
+     */
+    private ASInstanceManager instanceManager;
+
+    @Override
+    public void execute()
+        throws MojoExecutionException, MojoFailureException
+    {
+        final File dir = getASDir();
+        final ASInstance instance = instanceManager.get( dir );
+        if ( instance == null )
+        {
+            getLog().info( "No pre-started JBossAS instance for: " + dir + ". Nothing to wait for." );
+            return;
+        }
+
+        final StageTimings timings = new StageTimings();
+        final long start = System.nanoTime();
+
+        instance.awaitReady( startupTimeout, getLog() );
+
+        timings.record( "await", start );
+        recordBoot( instance.getBootMillis(), timings );
+
+        getLog().info( timings.summary( "JBossAS await" ) );
+        writeTimingReport( timings, "await" );
+    }
+
+    private void recordBoot( final long bootMillis, final StageTimings timings )
+    {
+        if ( bootMillis < 0 )
+        {
+            return;
+        }
+
+        boolean tuned = false;
+        for ( final ASConfigurator configurator : eachConfigurator() )
+        {
+            tuned = tuned || configurator instanceof StartupTuningConfigurator;
+        }
+
+        final String distribution = getASDir().getName();
+        final Properties history = new BootHistory().record( distribution, tuned, bootMillis, getLog() );
+
+        timings.count( StageTimings.BOOT_MILLIS, bootMillis );
+
+        final long defaultBoot = BootHistory.getBootMillis( history, distribution, false );
+        if ( defaultBoot > -1 )
+        {
+            timings.count( StageTimings.DEFAULT_BOOT_MILLIS, defaultBoot );
+        }
+
+        final long tunedBoot = BootHistory.getBootMillis( history, distribution, true );
+        if ( tunedBoot > -1 )
+        {
+            timings.count( StageTimings.TUNED_BOOT_MILLIS, tunedBoot );
+        }
+    }
+
+}
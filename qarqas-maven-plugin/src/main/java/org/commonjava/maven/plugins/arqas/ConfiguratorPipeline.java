@@ -0,0 +1,286 @@
+package org.commonjava.maven.plugins.arqas;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.commonjava.maven.plugins.arqas.conf.ASConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.ConfiguratorDeclaration;
+import org.commonjava.maven.plugins.arqas.conf.PipelineConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.XmlEditSession;
+
+/**
+ * Applies a list of configurators to an unpacked JBossAS distribution. {@link PipelineConfigurator}s that don't
+ * conflict with each other run concurrently; a configurator that consumes a property another one produces runs after
+ * its producer; and conflicting configurators run in the order they were listed. All XML edits share one
+ * {@link XmlEditSession}, so each file is parsed and written at most once. Configurators that don't declare what they
+ * touch run alone, with all edits made before them flushed to disk.
+ */
+final class ConfiguratorPipeline
+{
+
+    private final File jbossasDir;
+
+    private final Properties config;
+
+    private final StageTimings timings;
+
+    private final Log log;
+
+    private final XmlEditSession xml;
+
+    ConfiguratorPipeline( final File jbossasDir, final Properties config, final StageTimings timings, final Log log )
+    {
+        this.jbossasDir = jbossasDir;
+        this.config = config;
+        this.timings = timings;
+        this.log = log;
+        this.xml = new XmlEditSession( jbossasDir );
+    }
+
+    /**
+     * @param preparations outstanding preparation of each configurator, if any. Each configurator waits for its own
+     *            preparation before it runs.
+     * @return the merged exports of all configurators, in the order the configurators were listed.
+     */
+    Map<String, String> run( final List<ASConfigurator> configurators,
+                             final Map<ASConfigurator, Future<?>> preparations, final ExecutorService executor )
+        throws MojoExecutionException
+    {
+        final List<ConfiguratorDeclaration> declarations = new ArrayList<ConfiguratorDeclaration>();
+        for ( final ASConfigurator configurator : configurators )
+        {
+            if ( configurator instanceof PipelineConfigurator )
+            {
+                final ConfiguratorDeclaration declaration =
+                    ( (PipelineConfigurator) configurator ).declare( jbossasDir, config );
+                log.debug( configurator.getClass()
+                                       .getSimpleName() + " declares: " + declaration );
+                declarations.add( declaration );
+            }
+            else
+            {
+                declarations.add( null );
+            }
+        }
+
+        final List<Set<Integer>> dependencies = dependencies( declarations );
+        final List<Integer> order = order( dependencies, configurators );
+
+        final Map<Integer, Future<Map<String, String>>> futures = new HashMap<Integer, Future<Map<String, String>>>();
+        for ( final Integer idx : order )
+        {
+            final List<Future<?>> prerequisites = new ArrayList<Future<?>>();
+            for ( final Integer dep : dependencies.get( idx ) )
+            {
+                prerequisites.add( futures.get( dep ) );
+            }
+
+            final ASConfigurator configurator = configurators.get( idx );
+            final Future<?> preparation = preparations.get( configurator );
+            if ( preparation != null )
+            {
+                prerequisites.add( preparation );
+            }
+
+            futures.put( idx, executor.submit( new ConfigureTask( configurator, declarations.get( idx ) != null,
+                                                                  prerequisites ) ) );
+        }
+
+        final Map<String, String> exports = new HashMap<String, String>();
+        for ( int i = 0; i < configurators.size(); i++ )
+        {
+            exports.putAll( await( futures.get( i ) ) );
+        }
+
+        xml.flush( config, log );
+
+        return exports;
+    }
+
+    /**
+     * Calculate which configurators (by index) each configurator must wait for. Undeclared (null) configurators wait
+     * for, and are waited on by, everything.
+     */
+    static List<Set<Integer>> dependencies( final List<ConfiguratorDeclaration> declarations )
+    {
+        final List<Set<Integer>> dependencies = new ArrayList<Set<Integer>>();
+        for ( int j = 0; j < declarations.size(); j++ )
+        {
+            dependencies.add( new LinkedHashSet<Integer>() );
+        }
+
+        for ( int j = 0; j < declarations.size(); j++ )
+        {
+            final ConfiguratorDeclaration later = declarations.get( j );
+            for ( int i = 0; i < j; i++ )
+            {
+                final ConfiguratorDeclaration earlier = declarations.get( i );
+                if ( earlier == null || later == null )
+                {
+                    dependencies.get( j )
+                                .add( i );
+                }
+                else
+                {
+                    final boolean producedLater = earlier.dependsOn( later );
+                    if ( producedLater )
+                    {
+                        // produced later in the list, but needed earlier: run the producer first.
+                        dependencies.get( i )
+                                    .add( j );
+                    }
+
+                    // checked separately, so that two configurators that need each other's output form a cycle.
+                    if ( later.dependsOn( earlier ) || ( !producedLater && later.conflictsWith( earlier ) ) )
+                    {
+                        dependencies.get( j )
+                                    .add( i );
+                    }
+                }
+            }
+        }
+
+        return dependencies;
+    }
+
+    /**
+     * Order configurator indexes so that every configurator comes after everything it depends on, keeping the listed
+     * order wherever possible.
+     */
+    private static List<Integer> order( final List<Set<Integer>> dependencies,
+                                        final List<ASConfigurator> configurators )
+        throws MojoExecutionException
+    {
+        final List<Integer> order = new ArrayList<Integer>();
+        final Set<Integer> done = new LinkedHashSet<Integer>();
+        while ( order.size() < dependencies.size() )
+        {
+            boolean progress = false;
+            for ( int i = 0; i < dependencies.size(); i++ )
+            {
+                if ( !done.contains( i ) && done.containsAll( dependencies.get( i ) ) )
+                {
+                    order.add( i );
+                    done.add( i );
+                    progress = true;
+                    break;
+                }
+            }
+
+            if ( !progress )
+            {
+                final List<String> stuck = new ArrayList<String>();
+                for ( int i = 0; i < dependencies.size(); i++ )
+                {
+                    if ( !done.contains( i ) )
+                    {
+                        stuck.add( configurators.get( i )
+                                                .getClass()
+                                                .getSimpleName() );
+                    }
+                }
+
+                throw new MojoExecutionException( "Configurators have circular dependencies: " + stuck );
+            }
+        }
+
+        return order;
+    }
+
+    static <T> T await( final Future<T> future )
+        throws MojoExecutionException
+    {
+        if ( future == null )
+        {
+            return null;
+        }
+
+        try
+        {
+            return future.get();
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+            throw new MojoExecutionException( "Interrupted while setting up JBossAS instance." );
+        }
+        catch ( final ExecutionException e )
+        {
+            final Throwable cause = e.getCause();
+            if ( cause instanceof MojoExecutionException )
+            {
+                throw (MojoExecutionException) cause;
+            }
+            else if ( cause instanceof RuntimeException )
+            {
+                throw (RuntimeException) cause;
+            }
+            else if ( cause instanceof Error )
+            {
+                throw (Error) cause;
+            }
+
+            throw new MojoExecutionException( "Failed to setup JBossAS instance: " + cause.getMessage(), cause );
+        }
+    }
+
+    private final class ConfigureTask
+        implements Callable<Map<String, String>>
+    {
+        private final ASConfigurator configurator;
+
+        private final boolean declared;
+
+        private final List<Future<?>> prerequisites;
+
+        ConfigureTask( final ASConfigurator configurator, final boolean declared, final List<Future<?>> prerequisites )
+        {
+            this.configurator = configurator;
+            this.declared = declared;
+            this.prerequisites = prerequisites;
+        }
+
+        @Override
+        public Map<String, String> call()
+            throws MojoExecutionException
+        {
+            for ( final Future<?> prerequisite : prerequisites )
+            {
+                await( prerequisite );
+            }
+
+            final long start = System.nanoTime();
+            final Map<String, String> exports;
+            if ( declared )
+            {
+                exports = ( (PipelineConfigurator) configurator ).configure( jbossasDir, config, xml, log );
+            }
+            else
+            {
+                // everything before this has finished, and everything after it is waiting, so it's safe to write out
+                // pending edits and let this configurator work directly on the files.
+                xml.flush( config, log );
+                exports = configurator.configure( jbossasDir, config, log );
+            }
+
+            timings.record( "configure[" + configurator.getClass()
+                                                       .getSimpleName() + "]", start );
+
+            return exports;
+        }
+    }
+
+}
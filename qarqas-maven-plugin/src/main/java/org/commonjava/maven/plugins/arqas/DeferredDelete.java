@@ -0,0 +1,136 @@
+package org.commonjava.maven.plugins.arqas;
+
+import static org.codehaus.plexus.util.IOUtil.close;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.util.FileUtils;
+
+/**
+ * Gets large directory trees (like an unpacked JBossAS distribution) out of the way without waiting for them to be
+ * deleted: the tree is renamed into a trash directory on the same filesystem (which is atomic and immediate), then
+ * deleted by a detached OS process that outlives the Maven JVM if need be. Anything a previous build left in the trash
+ * is swept the same way.
+ */
+public final class DeferredDelete
+{
+
+    private DeferredDelete()
+    {
+    }
+
+    /**
+     * Move dir into trashDir and start deleting it in the background. If it can't be moved, it is deleted in the
+     * foreground instead.
+     */
+    public static void delete( final File dir, final File trashDir, final Log log )
+        throws IOException
+    {
+        trashDir.mkdirs();
+
+        final File trashed = new File( trashDir, dir.getName() + "-" + System.currentTimeMillis() );
+        if ( !dir.renameTo( trashed ) )
+        {
+            log.info( "Cannot move: " + dir + " to trash. Deleting it in the foreground." );
+            FileUtils.forceDelete( dir );
+            return;
+        }
+
+        log.info( "Moved: " + dir + " to: " + trashed + ". Deleting in background." );
+        deleteInBackground( trashed, log );
+    }
+
+    /**
+     * Start deleting anything left in trashDir by earlier builds.
+     */
+    public static void sweep( final File trashDir, final Log log )
+    {
+        final File[] leftovers = trashDir.listFiles();
+        if ( leftovers == null )
+        {
+            return;
+        }
+
+        for ( final File leftover : leftovers )
+        {
+            log.debug( "Sweeping trash: " + leftover );
+            deleteInBackground( leftover, log );
+        }
+    }
+
+    private static void deleteInBackground( final File file, final Log log )
+    {
+        final List<String> cmd = new ArrayList<String>();
+        if ( isWindows() )
+        {
+            cmd.add( "cmd" );
+            cmd.add( "/c" );
+            cmd.add( "rd" );
+            cmd.add( "/s" );
+            cmd.add( "/q" );
+        }
+        else
+        {
+            cmd.add( "rm" );
+            cmd.add( "-rf" );
+        }
+        cmd.add( file.getAbsolutePath() );
+
+        try
+        {
+            final ProcessBuilder pb = new ProcessBuilder( cmd );
+            pb.redirectErrorStream( true );
+
+            // nothing to say to it, and nothing we need to hear from it. We never wait for it either.
+            final Process process = pb.start();
+            close( process.getOutputStream() );
+            close( process.getInputStream() );
+        }
+        catch ( final IOException e )
+        {
+            log.debug( "Cannot launch background delete of: " + file + ". Using a daemon thread. Reason: "
+                + e.getMessage() );
+
+            // may be cut short if the JVM exits first, in which case the next build's sweep finishes the job.
+            final Thread t = new Thread( new DeleteTask( file ), "qarqas-delete-" + file.getName() );
+            t.setDaemon( true );
+            t.start();
+        }
+    }
+
+    private static boolean isWindows()
+    {
+        return System.getProperty( "os.name" )
+                     .toLowerCase()
+                     .startsWith( "windows" );
+    }
+
+    private static final class DeleteTask
+        implements Runnable
+    {
+        private final File file;
+
+        DeleteTask( final File file )
+        {
+            this.file = file;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                FileUtils.forceDelete( file );
+            }
+            catch ( final IOException e )
+            {
+                // left for the next sweep.
+            }
+        }
+    }
+
+}
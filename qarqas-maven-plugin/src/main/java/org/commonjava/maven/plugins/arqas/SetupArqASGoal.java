@@ -9,21 +9,34 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
+import java.util.ArrayList;
 import java.util.Date;
+import java.util.Enumeration;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
 
 import org.apache.maven.RepositoryUtils;
 import org.apache.maven.artifact.repository.ArtifactRepository;
-import org.apache.maven.execution.MavenSession;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.codehaus.plexus.archiver.UnArchiver;
-import org.codehaus.plexus.util.FileUtils;
 import org.codehaus.plexus.util.IOUtil;
 import org.commonjava.maven.plugins.arqas.conf.ASConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.PooledInstanceConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.PreparableConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.ReservationPortConfigurator;
+import org.commonjava.maven.plugins.arqas.instance.ASInstanceManager;
 import org.sonatype.aether.artifact.Artifact;
 import org.sonatype.aether.impl.ArtifactResolver;
 import org.sonatype.aether.repository.RemoteRepository;
@@ -38,6 +51,7 @@ import org.sonatype.aether.util.artifact.DefaultArtifact;
  * 
  * @goal setup
  * @phase pre-integration-test
+ * @requiresDependencyResolution test
  * @author jdcasey
  */
 public class SetupArqASGoal
@@ -50,6 +64,27 @@ public class SetupArqASGoal
 
     public static final String DEFAULT_MGMT_PORT = "9999";
 
+    private static final String MGMT_ADDRESS = "127.0.0.1";
+
+    public static final String JAVA_VM_ARGS = "$JAVA_VM_ARGS";
+
+    /**
+     * Configurator property listing the jar files of the project's compile, runtime and test dependencies, separated by
+     * {@link File#pathSeparator}.
+     */
+    public static final String TEST_LIBRARIES = "$TEST_LIBRARIES";
+
+    /**
+     * Configurator property listing the jar files of the snapshot dependencies among {@link #TEST_LIBRARIES},
+     * separated by {@link File#pathSeparator}.
+     */
+    public static final String TEST_SNAPSHOT_LIBRARIES = "$TEST_SNAPSHOT_LIBRARIES";
+
+    /**
+     * Same as the default javaVmArguments of the AS7 managed Arquillian container.
+     */
+    public static final String DEFAULT_JAVA_VM_ARGS = "-Xmx512m -XX:MaxPermSize=128m";
+
     /**
      * File location (default: target/test-classes/arquillian.xml) where the generated ARQ configuration file will be
      * written.
@@ -67,12 +102,6 @@ public class SetupArqASGoal
      */
     private String arquillianXmlResource;
 
-    /**
-     * @parameter default-value="${session}"
-     * @readonly
-     */
-    private MavenSession session;
-
     /**
      * @parameter default-value="${project.remoteArtifactRepositories}"
      * @readonly
@@ -104,10 +133,92 @@ public class SetupArqASGoal
      */
     private File exportProperties;
 
+    /**
+     * If true, keep any port-configuration reservation or pooled-instance lease alive by renewing it in the background
+     * until the teardown goal runs (or the Maven JVM exits). This prevents slow integration tests from outliving the
+     * registry's lease.
+     * 
+     * @parameter default-value="true" expression="${qarqas.leaseRenewal}"
+     */
+    private boolean leaseRenewal;
+
+    /**
+     * If true, launch the configured JBossAS instance in the background as soon as configuration is done, and point the
+     * generated arquillian.xml at the running instance (using remoteArquillianXmlResource), rather than letting
+     * Arquillian boot it when the first test runs. The teardown goal shuts the instance down. Bind this goal to an
+     * early phase and use the 'await' goal before tests run, so the AS boot overlaps test compilation.
+     * 
+     * @parameter default-value="false" expression="${qarqas.preStart}"
+     */
+    private boolean preStart;
+
+    /**
+     * Classpath resource used as the template for arquillian.xml when preStart is enabled, or when the pooled-instance
+     * configurator is used. It should configure a remote container, using the $MGMT_PORT token for the management
+     * port.
+     * 
+     * @parameter default-value="arquillian-remote.xml" expression="${qarqas.remoteArquillianXmlResource}"
+     */
+    private String remoteArquillianXmlResource;
+
+    /**
+     * File where console output of the pre-started JBossAS instance is written.
+     * 
+     * @parameter default-value="${project.build.directory}/jbossas-console.log" expression="${qarqas.consoleLog}"
+     */
+    private File consoleLog;
+
+    /**
+     * @component
+     */
+    private ASInstanceManager instanceManager;
+
+    private void setTestLibraries( final Properties props )
+    {
+        props.setProperty( TEST_LIBRARIES, getTestLibraries( false ) );
+        props.setProperty( TEST_SNAPSHOT_LIBRARIES, getTestLibraries( true ) );
+    }
+
+    /**
+     * @param snapshotsOnly if true, list only the libraries whose artifacts are snapshots.
+     */
+    private String getTestLibraries( final boolean snapshotsOnly )
+    {
+        final StringBuilder sb = new StringBuilder();
+        if ( session == null || session.getCurrentProject() == null )
+        {
+            return sb.toString();
+        }
+
+        for ( final org.apache.maven.artifact.Artifact artifact : session.getCurrentProject()
+                                                                          .getArtifacts() )
+        {
+            final String scope = artifact.getScope();
+            final File file = artifact.getFile();
+            if ( file == null || !"jar".equals( artifact.getType() )
+                || org.apache.maven.artifact.Artifact.SCOPE_PROVIDED.equals( scope )
+                || org.apache.maven.artifact.Artifact.SCOPE_SYSTEM.equals( scope )
+                || ( snapshotsOnly && !artifact.isSnapshot() ) )
+            {
+                continue;
+            }
+
+            if ( sb.length() > 0 )
+            {
+                sb.append( File.pathSeparator );
+            }
+            sb.append( file.getAbsolutePath() );
+        }
+
+        return sb.toString();
+    }
+
     @Override
     public void execute()
         throws MojoExecutionException, MojoFailureException
     {
+        DeferredDelete.sweep( getTrashDir(), getLog() );
+
         boolean doUnpack = true;
         if ( output.exists() )
         {
@@ -115,7 +226,7 @@ public class SetupArqASGoal
             {
                 try
                 {
-                    FileUtils.deleteDirectory( output );
+                    DeferredDelete.delete( output, getTrashDir(), getLog() );
                 }
                 catch ( final IOException e )
                 {
@@ -132,52 +243,220 @@ public class SetupArqASGoal
         }
 
         final Properties props = createConfiguratorProperties();
+        setTestLibraries( props );
+
+        final StageTimings timings = new StageTimings();
+        final Set<ASConfigurator> configurators = eachConfigurator();
 
-        if ( doUnpack )
+        // a pooled instance is already unpacked and running on the registry host, so there's nothing to unpack or
+        // launch here; arquillian.xml just needs to point at it.
+        final boolean pooled = isPooled( configurators );
+        if ( pooled )
         {
-            resolveAndUnpack();
+            doUnpack = false;
         }
 
-        final Map<String, String> exports = runConfigurators( props );
-        generateArqXml( props );
+        // resolve/unpack and any configurator preparation (eg. port reservation) are independent, so run them
+        // concurrently. Configurators then run as a pipeline, each waiting only on the unpacked distribution, its own
+        // preparation, and any configurators it depends on.
+        final ExecutorService executor = Executors.newCachedThreadPool( new SetupThreadFactory() );
+        final Map<ASConfigurator, Future<?>> preparations = new HashMap<ASConfigurator, Future<?>>();
+        final Map<String, String> exports;
+        try
+        {
+            final Future<?> unpack = doUnpack ? executor.submit( new ResolveAndUnpackTask( timings ) ) : null;
+
+            for ( final ASConfigurator configurator : configurators )
+            {
+                if ( configurator instanceof PreparableConfigurator )
+                {
+                    preparations.put( configurator,
+                                      executor.submit( new PrepareTask( (PreparableConfigurator) configurator, props,
+                                                                        timings ) ) );
+                }
+            }
+
+            await( unpack );
+
+            final ConfiguratorPipeline pipeline = new ConfiguratorPipeline( getASDir(), props, timings, getLog() );
+            exports = pipeline.run( new ArrayList<ASConfigurator>( configurators ), preparations, executor );
+        }
+        catch ( final MojoExecutionException e )
+        {
+            executor.shutdownNow();
+            cleanupPrepared( preparations, props );
+            throw e;
+        }
+        catch ( final RuntimeException e )
+        {
+            executor.shutdownNow();
+            cleanupPrepared( preparations, props );
+            throw e;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+
+        // everything is reserved and configured now, and teardown won't run if setup fails, so anything that fails
+        // from here on has to release it all.
+        try
+        {
+            if ( preStart && !pooled )
+            {
+                final long start = System.nanoTime();
+                final int mgmtPort = Integer.parseInt( props.getProperty( MGMT_PORT, DEFAULT_MGMT_PORT ) );
+                instanceManager.start( getASDir(), props.getProperty( JAVA_VM_ARGS, DEFAULT_JAVA_VM_ARGS ),
+                                       MGMT_ADDRESS, mgmtPort, consoleLog, getLog() );
+                timings.record( "launch", start );
+            }
+
+            final long arqStart = System.nanoTime();
+            generateArqXml( preStart || pooled ? remoteArquillianXmlResource : arquillianXmlResource, props );
+            timings.record( "arquillian.xml", arqStart );
+            timings.count( StageTimings.FILES_WRITTEN, 1 );
+
+            if ( leaseRenewal )
+            {
+                startLeaseRenewals( configurators, props );
+            }
 
-        if ( exports != null )
+            if ( exports != null )
+            {
+                final Properties p = new Properties();
+                p.putAll( exports );
+
+                final StringWriter sw = new StringWriter();
+                props.list( new PrintWriter( sw ) );
+                getLog().info( "Exporting:\n\n" + sw.toString() );
+
+                FileOutputStream fos = null;
+                try
+                {
+                    fos = new FileOutputStream( exportProperties );
+                    p.store( fos, "generated by QARQAS at: " + new Date() );
+                    timings.count( StageTimings.FILES_WRITTEN, 1 );
+                }
+                catch ( final IOException e )
+                {
+                    throw new MojoExecutionException( "Failed to store exported properties in: " + exportProperties
+                        + ". Reason: " + e.getMessage(), e );
+                }
+                finally
+                {
+                    close( fos );
+                }
+            }
+        }
+        catch ( final MojoExecutionException e )
+        {
+            abandonSetup( configurators, props );
+            throw e;
+        }
+        catch ( final RuntimeException e )
         {
-            final Properties p = new Properties();
-            p.putAll( exports );
+            abandonSetup( configurators, props );
+            throw e;
+        }
 
-            final StringWriter sw = new StringWriter();
-            props.list( new PrintWriter( sw ) );
-            getLog().info( "Exporting:\n\n" + sw.toString() );
+        timings.countAll( props );
+        getLog().info( timings.summary( "JBossAS setup" ) );
+        writeTimingReport( timings, "setup" );
+    }
 
-            FileOutputStream fos = null;
+    private void await( final Future<?> future )
+        throws MojoExecutionException
+    {
+        ConfiguratorPipeline.await( future );
+    }
+
+    /**
+     * Teardown doesn't run after a failed setup, so release whatever the preparations that did complete are holding
+     * (eg. port reservations or pooled-instance leases), rather than leaving it until the registry's lease expires.
+     */
+    private void cleanupPrepared( final Map<ASConfigurator, Future<?>> preparations, final Properties props )
+    {
+        for ( final Map.Entry<ASConfigurator, Future<?>> entry : preparations.entrySet() )
+        {
             try
             {
-                fos = new FileOutputStream( exportProperties );
-                p.store( fos, "generated by QARQAS at: " + new Date() );
+                // a preparation still in progress may yet take something, so wait for it to finish.
+                entry.getValue()
+                     .get();
             }
-            catch ( final IOException e )
+            catch ( final InterruptedException e )
             {
-                throw new MojoExecutionException( "Failed to store exported properties in: " + exportProperties
-                    + ". Reason: " + e.getMessage(), e );
+                Thread.currentThread()
+                      .interrupt();
             }
-            finally
+            catch ( final ExecutionException e )
+            {
+                // nothing was taken.
+                continue;
+            }
+
+            final ASConfigurator configurator = entry.getKey();
+            getLog().info( "Setup failed. Cleaning up after: " + stageName( configurator ) );
+            configurator.cleanup( getASDir(), props, getLog() );
+        }
+    }
+
+    /**
+     * Undo a setup that failed after all configurators ran: stop lease renewals and any pre-started instance, then
+     * clean up every configurator, as teardown would.
+     */
+    private void abandonSetup( final Set<ASConfigurator> configurators, final Properties props )
+    {
+        for ( final ASConfigurator configurator : configurators )
+        {
+            if ( configurator instanceof ReservationPortConfigurator )
+            {
+                ( (ReservationPortConfigurator) configurator ).stopLeaseRenewal( props, getLog() );
+            }
+            else if ( configurator instanceof PooledInstanceConfigurator )
+            {
+                ( (PooledInstanceConfigurator) configurator ).stopLeaseRenewal( props, getLog() );
+            }
+        }
+
+        instanceManager.stop( getASDir(), getLog() );
+
+        for ( final ASConfigurator configurator : configurators )
+        {
+            getLog().info( "Setup failed. Cleaning up after: " + stageName( configurator ) );
+            configurator.cleanup( getASDir(), props, getLog() );
+        }
+    }
+
+    private static boolean isPooled( final Set<ASConfigurator> configurators )
+    {
+        for ( final ASConfigurator configurator : configurators )
+        {
+            if ( configurator instanceof PooledInstanceConfigurator )
             {
-                close( fos );
+                return true;
             }
         }
+
+        return false;
     }
 
-    private void generateArqXml( final Properties props )
+    private static String stageName( final ASConfigurator configurator )
+    {
+        return configurator.getClass()
+                           .getSimpleName();
+    }
+
+    private void generateArqXml( final String resource, final Properties props )
         throws MojoExecutionException
     {
         final InputStream stream = Thread.currentThread()
                                          .getContextClassLoader()
-                                         .getResourceAsStream( arquillianXmlResource );
+                                         .getResourceAsStream( resource );
         if ( stream == null )
         {
             throw new MojoExecutionException( "Cannot read arquillian.xml source resource from classpath: '"
-                + arquillianXmlResource + "'." );
+                + resource + "'." );
         }
 
         String arqXml;
@@ -188,11 +467,12 @@ public class SetupArqASGoal
         catch ( final IOException e )
         {
             throw new MojoExecutionException( "Cannot read arquillian.xml source resource from classpath: '"
-                + arquillianXmlResource + "'. Reason: " + e.getMessage(), e );
+                + resource + "'. Reason: " + e.getMessage(), e );
         }
 
         final String portStr = props.getProperty( MGMT_PORT, DEFAULT_MGMT_PORT );
         arqXml = arqXml.replace( MGMT_PORT, portStr );
+        arqXml = arqXml.replace( JAVA_VM_ARGS, props.getProperty( JAVA_VM_ARGS, DEFAULT_JAVA_VM_ARGS ) );
         arqXml = arqXml.replace( JBOSS_AS_PATH, getASDir().getAbsolutePath() );
 
         FileWriter writer = null;
@@ -218,9 +498,26 @@ public class SetupArqASGoal
         }
     }
 
-    private void resolveAndUnpack()
+    /**
+     * Append an argument to the javaVmArguments that will be written into the generated arquillian.xml (using the
+     * $JAVA_VM_ARGS token). If no arguments have been added yet, the new argument is appended to
+     * {@link #DEFAULT_JAVA_VM_ARGS}.
+     */
+    public static void addJavaVmArgument( final Properties config, final String arg )
+    {
+        synchronized ( config )
+        {
+            final String args = config.getProperty( JAVA_VM_ARGS, DEFAULT_JAVA_VM_ARGS );
+            config.setProperty( JAVA_VM_ARGS, args.trim()
+                                                  .length() < 1 ? arg : args + " " + arg );
+        }
+    }
+
+    private void resolveAndUnpack( final StageTimings timings )
         throws MojoExecutionException
     {
+        final long start = System.nanoTime();
+
         final String[] coord = asCoordinate.split( ":" );
         final String g = coord[0];
         final String a = coord[1];
@@ -244,30 +541,135 @@ public class SetupArqASGoal
             throw new MojoExecutionException( "Failed to resolve JBossAS ZIP archive: '" + asCoordinate + "'. Reason: "
                 + e.getMessage(), e );
         }
+        timings.record( "resolve", start );
 
+        final long unpackStart = System.nanoTime();
         output.mkdirs();
         zipUnarchiver.setDestDirectory( output );
         zipUnarchiver.setSourceFile( zip );
         zipUnarchiver.extract();
+        timings.record( "unpack", unpackStart );
+
+        countExtracted( zip, timings );
     }
 
-    private Map<String, String> runConfigurators( final Properties props )
-        throws MojoExecutionException
+    /**
+     * Tally what was extracted from the central directory of the zip, rather than walking the unpacked tree.
+     */
+    private void countExtracted( final File zip, final StageTimings timings )
     {
-        final Map<String, String> exports = new HashMap<String, String>();
-        for ( final ASConfigurator configurator : eachConfigurator() )
+        ZipFile zf = null;
+        try
         {
-            exports.putAll( configureWith( configurator, props ) );
+            zf = new ZipFile( zip );
+
+            long files = 0;
+            long bytes = 0;
+            for ( final Enumeration<? extends ZipEntry> entries = zf.entries(); entries.hasMoreElements(); )
+            {
+                final ZipEntry entry = entries.nextElement();
+                if ( !entry.isDirectory() )
+                {
+                    files++;
+                    bytes += Math.max( 0, entry.getSize() );
+                }
+            }
+
+            timings.count( StageTimings.FILES_EXTRACTED, files );
+            timings.count( StageTimings.BYTES_EXTRACTED, bytes );
         }
+        catch ( final IOException e )
+        {
+            getLog().debug( "Cannot read zip directory of: " + zip + ". Reason: " + e.getMessage(), e );
+        }
+        finally
+        {
+            if ( zf != null )
+            {
+                try
+                {
+                    zf.close();
+                }
+                catch ( final IOException e )
+                {
+                }
+            }
+        }
+    }
 
-        return exports;
+    private void startLeaseRenewals( final Set<ASConfigurator> configurators, final Properties props )
+    {
+        for ( final ASConfigurator configurator : configurators )
+        {
+            if ( configurator instanceof ReservationPortConfigurator )
+            {
+                ( (ReservationPortConfigurator) configurator ).startLeaseRenewal( props, getLog() );
+            }
+            else if ( configurator instanceof PooledInstanceConfigurator )
+            {
+                ( (PooledInstanceConfigurator) configurator ).startLeaseRenewal( props, getLog() );
+            }
+        }
     }
 
-    private Map<String, String> configureWith( final ASConfigurator configurator, final Properties props )
-        throws MojoExecutionException
+    private final class ResolveAndUnpackTask
+        implements Callable<Void>
+    {
+        private final StageTimings timings;
+
+        ResolveAndUnpackTask( final StageTimings timings )
+        {
+            this.timings = timings;
+        }
+
+        @Override
+        public Void call()
+            throws MojoExecutionException
+        {
+            resolveAndUnpack( timings );
+            return null;
+        }
+    }
+
+    private final class PrepareTask
+        implements Callable<Void>
+    {
+        private final PreparableConfigurator configurator;
+
+        private final Properties props;
+
+        private final StageTimings timings;
+
+        PrepareTask( final PreparableConfigurator configurator, final Properties props, final StageTimings timings )
+        {
+            this.configurator = configurator;
+            this.props = props;
+            this.timings = timings;
+        }
+
+        @Override
+        public Void call()
+            throws MojoExecutionException
+        {
+            final long start = System.nanoTime();
+            configurator.prepare( getASDir(), props, getLog() );
+            timings.record( "prepare[" + stageName( configurator ) + "]", start );
+            return null;
+        }
+    }
+
+    private static final class SetupThreadFactory
+        implements ThreadFactory
     {
-        final File dir = getASDir();
-        return configurator.configure( dir, props, getLog() );
+        private int count;
+
+        @Override
+        public synchronized Thread newThread( final Runnable r )
+        {
+            final Thread t = new Thread( r, "qarqas-setup-" + ( ++count ) );
+            t.setDaemon( true );
+            return t;
+        }
     }
 
 }
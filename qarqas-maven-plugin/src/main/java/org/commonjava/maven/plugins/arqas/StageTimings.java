@@ -0,0 +1,208 @@
+package org.commonjava.maven.plugins.arqas;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.codehaus.plexus.util.IOUtil;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * Records how long each stage of a goal took, using the monotonic {@link System#nanoTime()} clock, along with counters
+ * such as the number of bytes extracted or files written. Stages may run concurrently, so the sum of the stage times
+ * can exceed the total.
+ */
+public final class StageTimings
+{
+
+    /**
+     * Counter key prefix used to carry counters from configurators (which only see the configurator Properties) back to
+     * the goal. See {@link #count(Properties, String, long)}.
+     */
+    private static final String COUNTER_PREFIX = "$COUNTER_";
+
+    public static final String BYTES_EXTRACTED = "bytesExtracted";
+
+    public static final String FILES_EXTRACTED = "filesExtracted";
+
+    public static final String FILES_WRITTEN = "filesWritten";
+
+    public static final String REGISTRY_REQUESTS = "registryRequests";
+
+    public static final String REGISTRY_MILLIS = "registryMillis";
+
+    public static final String BOOT_MILLIS = "bootMillis";
+
+    /**
+     * Most recent boot time of the same distribution without startup tuning, for comparison.
+     */
+    public static final String DEFAULT_BOOT_MILLIS = "defaultBootMillis";
+
+    /**
+     * Most recent boot time of the same distribution with startup tuning, for comparison.
+     */
+    public static final String TUNED_BOOT_MILLIS = "tunedBootMillis";
+
+    private final long start = System.nanoTime();
+
+    private final Map<String, Long> stages = new LinkedHashMap<String, Long>();
+
+    private final Map<String, Long> counters = new LinkedHashMap<String, Long>();
+
+    /**
+     * Record the stage with the given name as having started at startNanos (from {@link System#nanoTime()}) and
+     * finished now.
+     */
+    public synchronized void record( final String stage, final long startNanos )
+    {
+        stages.put( stage, toMillis( System.nanoTime() - startNanos ) );
+    }
+
+    /**
+     * Add amount to the named counter.
+     */
+    public synchronized void count( final String counter, final long amount )
+    {
+        final Long current = counters.get( counter );
+        counters.put( counter, current == null ? amount : current + amount );
+    }
+
+    /**
+     * Add amount to the named counter carried in the given configurator properties. Use
+     * {@link #countAll(Properties)} to collect these counters into the goal's timings.
+     */
+    public static void count( final Properties config, final String counter, final long amount )
+    {
+        final String key = COUNTER_PREFIX + counter;
+        synchronized ( config )
+        {
+            final String current = config.getProperty( key );
+            config.setProperty( key, Long.toString( current == null ? amount : Long.parseLong( current ) + amount ) );
+        }
+    }
+
+    /**
+     * Collect the counters carried in the given configurator properties.
+     */
+    public void countAll( final Properties config )
+    {
+        synchronized ( config )
+        {
+            for ( final String key : config.stringPropertyNames() )
+            {
+                if ( key.startsWith( COUNTER_PREFIX ) )
+                {
+                    count( key.substring( COUNTER_PREFIX.length() ), Long.parseLong( config.getProperty( key ) ) );
+                }
+            }
+        }
+    }
+
+    public synchronized Map<String, Long> getStageMillis()
+    {
+        return new LinkedHashMap<String, Long>( stages );
+    }
+
+    public synchronized Map<String, Long> getCounters()
+    {
+        return new LinkedHashMap<String, Long>( counters );
+    }
+
+    public long getTotalMillis()
+    {
+        return toMillis( System.nanoTime() - start );
+    }
+
+    public synchronized String summary( final String title )
+    {
+        final StringBuilder sb = new StringBuilder();
+        sb.append( title )
+          .append( " finished in " )
+          .append( getTotalMillis() )
+          .append( "ms:" );
+
+        for ( final Map.Entry<String, Long> entry : stages.entrySet() )
+        {
+            sb.append( "\n  " )
+              .append( entry.getKey() )
+              .append( ": " )
+              .append( entry.getValue() )
+              .append( "ms" );
+        }
+
+        for ( final Map.Entry<String, Long> entry : counters.entrySet() )
+        {
+            sb.append( "\n  " )
+              .append( entry.getKey() )
+              .append( ": " )
+              .append( entry.getValue() );
+        }
+
+        return sb.toString();
+    }
+
+    /**
+     * Write the stage times and counters as a JSON report, for aggregation across builds.
+     */
+    public void writeReport( final File file, final String goal, final String project )
+        throws IOException
+    {
+        final Report report =
+            new Report( goal, project, new Date().getTime(), getTotalMillis(), getStageMillis(), getCounters() );
+
+        file.getParentFile()
+            .mkdirs();
+
+        FileWriter writer = null;
+        try
+        {
+            writer = new FileWriter( file );
+            writer.write( new GsonBuilder().setPrettyPrinting()
+                                           .create()
+                                           .toJson( report ) );
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+    }
+
+    private static long toMillis( final long nanos )
+    {
+        return TimeUnit.NANOSECONDS.toMillis( nanos );
+    }
+
+    @SuppressWarnings( "unused" )
+    private static final class Report
+    {
+        private final String goal;
+
+        private final String project;
+
+        private final long timestamp;
+
+        private final long totalMillis;
+
+        private final Map<String, Long> stageMillis;
+
+        private final Map<String, Long> counters;
+
+        Report( final String goal, final String project, final long timestamp, final long totalMillis,
+                final Map<String, Long> stageMillis, final Map<String, Long> counters )
+        {
+            this.goal = goal;
+            this.project = project;
+            this.timestamp = timestamp;
+            this.totalMillis = totalMillis;
+            this.stageMillis = stageMillis;
+            this.counters = counters;
+        }
+    }
+
+}
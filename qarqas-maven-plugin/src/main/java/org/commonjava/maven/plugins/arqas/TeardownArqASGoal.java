@@ -8,6 +8,9 @@ import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.MojoFailureException;
 import org.codehaus.plexus.util.FileUtils;
 import org.commonjava.maven.plugins.arqas.conf.ASConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.PooledInstanceConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.ReservationPortConfigurator;
+import org.commonjava.maven.plugins.arqas.instance.ASInstanceManager;
 
 /**
  * Remove the JBossAS distribution configured for testing this project.
@@ -20,23 +23,63 @@ public class TeardownArqASGoal
     extends AbstractArqASGoal
 {
 
+    /**
+     * @component
+     */
+    private ASInstanceManager instanceManager;
+
+    /**
+     * If true, move the JBossAS directory into a trash directory and delete it in the background, rather than holding
+     * up the build while tens of thousands of files are deleted.
+     * 
+     * @parameter default-value="true" expression="${qarqas.deferDelete}"
+     */
+    private boolean deferDelete;
+
     @Override
     public void execute()
         throws MojoExecutionException, MojoFailureException
     {
         final File dir = getASDir();
+        final StageTimings timings = new StageTimings();
+
+        // shut down any instance pre-started by the setup goal before its ports are released.
+        final long stopStart = System.nanoTime();
+        instanceManager.stop( dir, getLog() );
+        timings.record( "stop", stopStart );
 
         final Properties props = createConfiguratorProperties();
         for ( final ASConfigurator configurator : eachConfigurator() )
         {
+            final long start = System.nanoTime();
+            if ( configurator instanceof ReservationPortConfigurator )
+            {
+                ( (ReservationPortConfigurator) configurator ).stopLeaseRenewal( props, getLog() );
+            }
+            else if ( configurator instanceof PooledInstanceConfigurator )
+            {
+                ( (PooledInstanceConfigurator) configurator ).stopLeaseRenewal( props, getLog() );
+            }
+
             configurator.cleanup( dir, props, getLog() );
+            timings.record( "cleanup[" + configurator.getClass()
+                                                     .getSimpleName() + "]", start );
         }
 
         if ( dir.exists() )
         {
+            // ports were released above, so the next build isn't waiting on our disk I/O.
+            final long deleteStart = System.nanoTime();
             try
             {
-                FileUtils.forceDelete( dir );
+                if ( deferDelete )
+                {
+                    DeferredDelete.delete( dir, getTrashDir(), getLog() );
+                }
+                else
+                {
+                    FileUtils.forceDelete( dir );
+                }
             }
             catch ( final IOException e )
             {
@@ -49,7 +92,12 @@ public class TeardownArqASGoal
                     getLog().warn( "Failed to delete JBossAS directory: " + dir + ". Reason: " + e.getMessage() );
                 }
             }
+            timings.record( "delete", deleteStart );
         }
+
+        timings.countAll( props );
+        getLog().info( timings.summary( "JBossAS teardown" ) );
+        writeTimingReport( timings, "teardown" );
     }
 
 }
@@ -3,10 +3,9 @@ package org.commonjava.maven.plugins.arqas.conf;
 import static org.commonjava.maven.plugins.arqas.QArqASConstants.ARQ_AS_EXPORT_PREFIX;
 
 import java.io.File;
-import java.io.FileWriter;
-import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
@@ -17,50 +16,81 @@ import org.cdmckay.coffeedom.Attribute;
 import org.cdmckay.coffeedom.Document;
 import org.cdmckay.coffeedom.Element;
 import org.cdmckay.coffeedom.Namespace;
-import org.cdmckay.coffeedom.input.SAXBuilder;
-import org.cdmckay.coffeedom.output.Format;
-import org.cdmckay.coffeedom.output.XMLOutputter;
-import org.codehaus.plexus.util.IOUtil;
 import org.commonjava.maven.plugins.arqas.SetupArqASGoal;
 import org.commonjava.qarqas.registry.model.PortConfiguration;
 
 public abstract class AbstractPortConfigurator
-    implements ASConfigurator
+    implements PreparableConfigurator, PipelineConfigurator
 {
 
     protected static final String NATIVE_MGMT_PORT = "management-native";
 
+    /**
+     * Selects how a port configuration is applied to the AS instance. Either {@link #PORT_MODE_REWRITE} (the default)
+     * or {@link #PORT_MODE_OFFSET}.
+     */
+    public static final String PORT_MODE_CONFIG = "portMode";
+
+    /**
+     * Rewrite the port of every socket binding in domain.xml and standalone.xml.
+     */
+    public static final String PORT_MODE_REWRITE = "rewrite";
+
+    /**
+     * Leave the distribution's XML untouched, and apply the port configuration as a single socket-binding offset
+     * passed to the AS JVM via the javaVmArguments in the generated arquillian.xml.
+     */
+    public static final String PORT_MODE_OFFSET = "offset";
+
+    protected static final String PORT_OFFSET_PROPERTY = "jboss.socket.binding.port-offset";
+
+    private final Map<Properties, PortConfiguration> prepared = new IdentityHashMap<Properties, PortConfiguration>();
+
     protected abstract PortConfiguration getPortConfiguration( File jbossasDir, Properties config, Log log )
         throws MojoExecutionException;
 
-    protected void rewriteDomainXml( final File jbossasDir, final PortConfiguration portConfig, final Log log )
+    public static final String DOMAIN_XML = "domain/configuration/domain.xml";
+
+    public static final String STANDALONE_XML = "standalone/configuration/standalone.xml";
+
+    protected boolean rewriteDomainXml( final XmlEditSession xml, final PortConfiguration portConfig, final Log log )
         throws MojoExecutionException
     {
-        final File domainXml = new File( jbossasDir, "domain/configuration/domain.xml" );
-        rewriteConfig( domainXml, new DomainSocketsResolver(), portConfig, log );
+        return rewriteConfig( xml, DOMAIN_XML, new DomainSocketsResolver(), portConfig, log );
     }
 
-    protected void rewriteStandaloneXml( final File jbossasDir, final PortConfiguration portConfig, final Log log )
+    protected boolean rewriteStandaloneXml( final XmlEditSession xml, final PortConfiguration portConfig,
+                                            final Log log )
         throws MojoExecutionException
     {
-        final File standaloneXml = new File( jbossasDir, "standalone/configuration/standalone.xml" );
-        rewriteConfig( standaloneXml, new StandaloneSocketsResolver(), portConfig, log );
+        return rewriteConfig( xml, STANDALONE_XML, new StandaloneSocketsResolver(), portConfig, log );
     }
 
-    protected void rewriteConfig( final File xml, final ElementResolver socketResolver,
-                                  final PortConfiguration portConfig, final Log log )
+    /**
+     * Rewrite the ports in a single XML file, parsing and writing it immediately.
+     * 
+     * @return true if the file was changed and written back to disk.
+     */
+    protected boolean rewriteConfig( final File xml, final ElementResolver socketResolver,
+                                     final PortConfiguration portConfig, final Log log )
         throws MojoExecutionException
     {
-        log.info( "Parsing XML from: " + xml );
-        Document doc;
-        try
-        {
-            doc = new SAXBuilder().build( xml );
-        }
-        catch ( final IOException e )
-        {
-            throw new MojoExecutionException( "Cannot read file: " + e.getMessage(), e );
-        }
+        final XmlEditSession session = new XmlEditSession( xml.getParentFile() );
+        rewriteConfig( session, xml.getName(), socketResolver, portConfig, log );
+        return session.flush( new Properties(), log ) > 0;
+    }
+
+    /**
+     * Rewrite the ports in the XML file at the given path, within the edit session. The file is written when the
+     * session is flushed.
+     * 
+     * @return true if the document was changed.
+     */
+    protected boolean rewriteConfig( final XmlEditSession xml, final String path, final ElementResolver socketResolver,
+                                     final PortConfiguration portConfig, final Log log )
+        throws MojoExecutionException
+    {
+        final Document doc = xml.getDocument( path, log );
 
         final Element sockets = socketResolver.resolve( doc );
         boolean changed = false;
@@ -94,29 +124,12 @@ public abstract class AbstractPortConfigurator
 
         if ( !changed )
         {
-            log.warn( "Reservation-based configuration produced NO changes! Not writing to disk." );
-            return;
+            log.warn( "Reservation-based configuration produced NO changes to: " + path + "! Not writing to disk." );
+            return false;
         }
 
-        log.info( "Writing XML to: " + xml );
-        final Format format = Format.getRawFormat();
-        final XMLOutputter outputter = new XMLOutputter( format );
-        final String xmlStr = outputter.outputString( doc );
-
-        FileWriter writer = null;
-        try
-        {
-            writer = new FileWriter( xml );
-            writer.write( xmlStr );
-        }
-        catch ( final IOException e )
-        {
-            throw new MojoExecutionException( "Cannot write standalone.xml file: " + e.getMessage(), e );
-        }
-        finally
-        {
-            IOUtil.close( writer );
-        }
+        xml.changed( path );
+        return true;
     }
 
     public interface ElementResolver
@@ -182,17 +195,88 @@ public abstract class AbstractPortConfigurator
 
     }
 
+    /**
+     * Resolve the port configuration ahead of time, so configure() doesn't have to wait on it.
+     */
     @Override
-    public Map<String, String> configure( final File jbossasDir, final Properties config, final Log log )
+    public void prepare( final File jbossasDir, final Properties config, final Log log )
         throws MojoExecutionException
     {
         final PortConfiguration portConfig = getPortConfiguration( jbossasDir, config, log );
+        synchronized ( prepared )
+        {
+            prepared.put( config, portConfig );
+        }
+    }
+
+    /**
+     * Forget any port configuration prepared for this config but not yet used by configure(), eg. because setup failed
+     * in between.
+     */
+    protected void discardPrepared( final Properties config )
+    {
+        synchronized ( prepared )
+        {
+            prepared.remove( config );
+        }
+    }
+
+    @Override
+    public ConfiguratorDeclaration declare( final File jbossasDir, final Properties config )
+    {
+        final ConfiguratorDeclaration declaration = new ConfiguratorDeclaration().produces( SetupArqASGoal.MGMT_PORT );
+        if ( PORT_MODE_OFFSET.equals( config.getProperty( PORT_MODE_CONFIG ) ) )
+        {
+            declaration.produces( SetupArqASGoal.JAVA_VM_ARGS );
+        }
+        else
+        {
+            declaration.writes( DOMAIN_XML, STANDALONE_XML );
+        }
+
+        return declaration;
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final XmlEditSession xml = new XmlEditSession( jbossasDir );
+        final Map<String, String> exports = configure( jbossasDir, config, xml, log );
+        xml.flush( config, log );
+
+        return exports;
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final XmlEditSession xml,
+                                          final Log log )
+        throws MojoExecutionException
+    {
+        PortConfiguration portConfig = null;
+        boolean wasPrepared;
+        synchronized ( prepared )
+        {
+            wasPrepared = prepared.containsKey( config );
+            if ( wasPrepared )
+            {
+                portConfig = prepared.remove( config );
+            }
+        }
+
+        if ( !wasPrepared )
+        {
+            portConfig = getPortConfiguration( jbossasDir, config, log );
+        }
         if ( portConfig == null )
         {
             log.info( "No port configuration found. Not changing ports from default." );
             return Collections.emptyMap();
         }
 
+        // only export ports that are still bound after 'subsystem-trim' (if used) has removed their socket bindings.
+        portConfig = SubsystemTrimConfigurator.inUse( portConfig, config );
+
         final Map<String, String> exports = new HashMap<String, String>();
         for ( final Map.Entry<String, Integer> entry : portConfig )
         {
@@ -208,12 +292,64 @@ public abstract class AbstractPortConfigurator
 
         log.info( "Using AS port configuration:\n\n" + portConfig );
 
-        rewriteDomainXml( jbossasDir, portConfig, log );
-        rewriteStandaloneXml( jbossasDir, portConfig, log );
+        final String mode = config.getProperty( PORT_MODE_CONFIG, PORT_MODE_REWRITE );
+        if ( PORT_MODE_OFFSET.equals( mode ) )
+        {
+            final Integer offset = getPortOffset( portConfig );
+            if ( offset == null )
+            {
+                throw new MojoExecutionException( "Port configuration: " + portConfig.getKey()
+                    + " is not a uniform shift of the standard AS ports, and cannot be applied using portMode="
+                    + PORT_MODE_OFFSET + ". Use portMode=" + PORT_MODE_REWRITE + " instead." );
+            }
+
+            log.info( "Applying port configuration as socket-binding offset: " + offset
+                + ". AS configuration files will not be modified." );
+            SetupArqASGoal.addJavaVmArgument( config, "-D" + PORT_OFFSET_PROPERTY + "=" + offset );
+        }
+        else if ( PORT_MODE_REWRITE.equals( mode ) )
+        {
+            rewriteDomainXml( xml, portConfig, log );
+            rewriteStandaloneXml( xml, portConfig, log );
+        }
+        else
+        {
+            throw new MojoExecutionException( "Invalid " + PORT_MODE_CONFIG + ": '" + mode + "'. Valid values are: "
+                + PORT_MODE_REWRITE + ", " + PORT_MODE_OFFSET );
+        }
 
         return exports;
     }
 
+    /**
+     * Calculate the single offset that maps every port in {@link PortConfiguration#STANDARD} onto the given port
+     * configuration, or return null if the given ports are not a uniform shift of the standard ports.
+     */
+    protected Integer getPortOffset( final PortConfiguration portConfig )
+    {
+        Integer offset = null;
+        for ( final Map.Entry<String, Integer> entry : portConfig )
+        {
+            final Integer standard = PortConfiguration.STANDARD.getPort( entry.getKey() );
+            if ( standard == null )
+            {
+                return null;
+            }
+
+            final int shift = entry.getValue() - standard;
+            if ( offset == null )
+            {
+                offset = shift;
+            }
+            else if ( offset != shift )
+            {
+                return null;
+            }
+        }
+
+        return offset;
+    }
+
     @Override
     public void cleanup( final File jbossasDir, final Properties config, final Log log )
     {
@@ -0,0 +1,106 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What a {@link PipelineConfigurator} touches: the files (relative to the JBossAS directory) it reads and writes, and
+ * the configurator-property keys (such as {@link org.commonjava.maven.plugins.arqas.SetupArqASGoal#MGMT_PORT}) it
+ * produces and consumes. The setup goal uses these to decide which configurators can run concurrently, and in what
+ * order the rest must run.
+ */
+public final class ConfiguratorDeclaration
+{
+
+    private final Set<String> reads = new HashSet<String>();
+
+    private final Set<String> writes = new HashSet<String>();
+
+    private final Set<String> produces = new HashSet<String>();
+
+    private final Set<String> consumes = new HashSet<String>();
+
+    public ConfiguratorDeclaration reads( final String... paths )
+    {
+        reads.addAll( Arrays.asList( paths ) );
+        return this;
+    }
+
+    public ConfiguratorDeclaration writes( final String... paths )
+    {
+        writes.addAll( Arrays.asList( paths ) );
+        return this;
+    }
+
+    public ConfiguratorDeclaration produces( final String... keys )
+    {
+        produces.addAll( Arrays.asList( keys ) );
+        return this;
+    }
+
+    public ConfiguratorDeclaration consumes( final String... keys )
+    {
+        consumes.addAll( Arrays.asList( keys ) );
+        return this;
+    }
+
+    public Set<String> getReads()
+    {
+        return Collections.unmodifiableSet( reads );
+    }
+
+    public Set<String> getWrites()
+    {
+        return Collections.unmodifiableSet( writes );
+    }
+
+    public Set<String> getProduces()
+    {
+        return Collections.unmodifiableSet( produces );
+    }
+
+    public Set<String> getConsumes()
+    {
+        return Collections.unmodifiableSet( consumes );
+    }
+
+    /**
+     * @return true if this configurator consumes something the other one produces, so it must run after it.
+     */
+    public boolean dependsOn( final ConfiguratorDeclaration other )
+    {
+        return intersects( consumes, other.produces );
+    }
+
+    /**
+     * @return true if the two configurators touch the same file or property in a way that means they can't run
+     *         concurrently: one writes a file the other reads or writes, or both produce the same property.
+     */
+    public boolean conflictsWith( final ConfiguratorDeclaration other )
+    {
+        return intersects( writes, other.writes ) || intersects( writes, other.reads )
+            || intersects( reads, other.writes ) || intersects( produces, other.produces );
+    }
+
+    private static boolean intersects( final Set<String> a, final Set<String> b )
+    {
+        for ( final String s : a )
+        {
+            if ( b.contains( s ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "reads: " + reads + ", writes: " + writes + ", produces: " + produces + ", consumes: " + consumes;
+    }
+
+}
@@ -0,0 +1,21 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.util.Properties;
+
+/**
+ * Reads typed values from the configurator properties.
+ */
+final class ConfiguratorProperties
+{
+
+    private ConfiguratorProperties()
+    {
+    }
+
+    static int getInt( final Properties config, final String key, final int defaultValue )
+    {
+        final String value = config.getProperty( key );
+        return value == null ? defaultValue : Integer.parseInt( value.trim() );
+    }
+
+}
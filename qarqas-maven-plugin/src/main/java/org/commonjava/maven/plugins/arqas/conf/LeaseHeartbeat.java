@@ -0,0 +1,238 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+import org.commonjava.qarqas.registry.model.InstanceLease;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+
+/**
+ * Periodically renews port-configuration reservations and pooled-instance leases with the registry, so long-running
+ * integration tests don't outlive their lease. Renewals run on a daemon timer, so if the Maven JVM dies the renewals
+ * stop with it and the lease simply lapses in the registry.
+ */
+@Component( role = LeaseHeartbeat.class )
+public class LeaseHeartbeat
+    implements Disposable
+{
+
+    @Requirement
+    private RegistryClient registryClient;
+
+    private final Map<String, TimerTask> tasks = new HashMap<String, TimerTask>();
+
+    private Timer timer;
+
+    /**
+     * Start renewing the reservation at reservationUrl every period milliseconds. If a heartbeat is already running
+     * for that reservation, this is a no-op.
+     */
+    public synchronized void start( final String reservationUrl, final String renewalUrl,
+                                    final PortConfiguration reservation, final long period,
+                                    final Properties config, final Log log )
+    {
+        if ( tasks.containsKey( reservationUrl ) )
+        {
+            return;
+        }
+
+        log.info( "Renewing port configuration reservation: " + reservation.getKey() + " every " + period + "ms." );
+
+        schedule( reservationUrl, new RenewTask( reservationUrl, renewalUrl, reservation, snapshot( config ), log ),
+                  period );
+    }
+
+    /**
+     * Start renewing the pooled-instance lease at leaseUrl every period milliseconds, so the pool doesn't recycle the
+     * instance while tests are still running against it. If a heartbeat is already running for that lease, this is a
+     * no-op.
+     */
+    public synchronized void startInstance( final String leaseUrl, final String renewalUrl, final InstanceLease lease,
+                                            final long period, final Properties config, final Log log )
+    {
+        if ( tasks.containsKey( leaseUrl ) )
+        {
+            return;
+        }
+
+        log.info( "Renewing lease of pooled JBossAS instance: " + lease.getKey() + " every " + period + "ms." );
+
+        schedule( leaseUrl, new InstanceRenewTask( leaseUrl, renewalUrl, lease, snapshot( config ), log ),
+                  period );
+    }
+
+    /**
+     * Copy the configuration, including any defaults, so the timer thread never reads the build's live configuration
+     * while the build goes on changing it.
+     */
+    private static Properties snapshot( final Properties config )
+    {
+        final Properties copy = new Properties();
+        synchronized ( config )
+        {
+            for ( final String name : config.stringPropertyNames() )
+            {
+                copy.setProperty( name, config.getProperty( name ) );
+            }
+        }
+
+        return copy;
+    }
+
+    private void schedule( final String url, final TimerTask task, final long period )
+    {
+        if ( timer == null )
+        {
+            timer = new Timer( "qarqas-lease-heartbeat", true );
+        }
+
+        tasks.put( url, task );
+        timer.schedule( task, period, period );
+    }
+
+    /**
+     * Stop the heartbeat started for the reservation or lease at url, if any.
+     */
+    public synchronized void stop( final String url, final Log log )
+    {
+        final TimerTask task = tasks.remove( url );
+        if ( task != null )
+        {
+            log.info( "Stopping lease renewal for: " + url );
+            task.cancel();
+        }
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        if ( timer != null )
+        {
+            timer.cancel();
+            timer = null;
+        }
+
+        tasks.clear();
+    }
+
+    private synchronized void lapsed( final String url, final TimerTask task )
+    {
+        task.cancel();
+        if ( tasks.get( url ) == task )
+        {
+            tasks.remove( url );
+        }
+    }
+
+    private final class RenewTask
+        extends TimerTask
+    {
+        private final String reservationUrl;
+
+        private final String url;
+
+        private final PortConfiguration reservation;
+
+        private final Properties config;
+
+        private final Log log;
+
+        RenewTask( final String reservationUrl, final String url, final PortConfiguration reservation,
+                   final Properties config, final Log log )
+        {
+            this.reservationUrl = reservationUrl;
+            this.url = url;
+            this.reservation = reservation;
+            this.config = config;
+            this.log = log;
+        }
+
+        @Override
+        public void run()
+        {
+            final PortConfiguration renewed;
+            try
+            {
+                renewed = registryClient.reserve( url, config, log );
+            }
+            catch ( final MojoExecutionException e )
+            {
+                log.warn( "Failed to renew port configuration reservation: " + reservation.getKey() + ". Reason: "
+                    + e.getMessage() );
+                return;
+            }
+
+            if ( !reservation.equals( renewed ) )
+            {
+                // the running AS is still bound to the lapsed family, which may already belong to another build. The
+                // one just handed out isn't in use here, so give it back rather than keeping it from everyone else.
+                log.error( "Port configuration reservation: " + reservation.getKey()
+                    + " lapsed before it could be renewed! The registry handed out: " + renewed.getKey()
+                    + " instead, which is being released. Tests may collide with another build." );
+
+                lapsed( reservationUrl, this );
+                registryClient.release( reservationUrl, config, log );
+            }
+        }
+    }
+
+    private final class InstanceRenewTask
+        extends TimerTask
+    {
+        private final String leaseUrl;
+
+        private final String url;
+
+        private final InstanceLease lease;
+
+        private final Properties config;
+
+        private final Log log;
+
+        InstanceRenewTask( final String leaseUrl, final String url, final InstanceLease lease, final Properties config,
+                           final Log log )
+        {
+            this.leaseUrl = leaseUrl;
+            this.url = url;
+            this.lease = lease;
+            this.config = config;
+            this.log = log;
+        }
+
+        @Override
+        public void run()
+        {
+            final InstanceLease renewed;
+            try
+            {
+                renewed = registryClient.leaseInstance( url, config, log );
+            }
+            catch ( final MojoExecutionException e )
+            {
+                log.warn( "Failed to renew lease of pooled JBossAS instance: " + lease.getKey() + ". Reason: "
+                    + e.getMessage() );
+                return;
+            }
+
+            if ( !lease.equals( renewed ) )
+            {
+                // the leased instance has already been recycled, and the one just handed out isn't in use here.
+                log.error( "Lease of pooled JBossAS instance: " + lease.getKey()
+                    + " lapsed before it could be renewed! The pool handed out: " + renewed.getKey()
+                    + " instead, which is being released. Tests running against the recycled instance will fail." );
+
+                lapsed( leaseUrl, this );
+                registryClient.releaseInstance( leaseUrl, config, log );
+            }
+        }
+    }
+
+}
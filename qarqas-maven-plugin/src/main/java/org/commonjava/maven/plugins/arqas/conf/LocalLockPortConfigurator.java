@@ -0,0 +1,292 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.commonjava.maven.plugins.arqas.conf.ConfiguratorProperties.getInt;
+import static org.commonjava.qarqas.registry.model.PortConfiguration.STANDARD;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+import org.commonjava.qarqas.registry.model.PortConfigurationBuilder;
+
+/**
+ * Allocates port families on the local host without a registry, by taking an exclusive OS-level lock on one file per
+ * family in a shared lock directory. Families are numbered like the registry's: family N is the standard AS port
+ * configuration shifted by N * 1000. Since the operating system drops file locks when the owning process exits, a
+ * family is freed automatically if the Maven JVM dies before teardown.
+ */
+@Component( role = ASConfigurator.class, hint = "local-lock" )
+public class LocalLockPortConfigurator
+    extends AbstractPortConfigurator
+    implements Disposable
+{
+
+    /**
+     * Directory shared by all builds on this host, holding one lock file per port family.
+     */
+    public static final String LOCK_DIR_CONFIG = "lockDirectory";
+
+    public static final String FIRST_FAMILY_CONFIG = "lockFirstFamily";
+
+    /**
+     * How many families to use, from the first. Defaults to all of them, up to {@link #MAX_FAMILY}.
+     */
+    public static final String FAMILY_COUNT_CONFIG = "lockFamilies";
+
+    private static final int DEFAULT_FIRST_FAMILY = 1;
+
+    private static final int FAMILY_STEP = 1000;
+
+    private static final int MAX_PORT = 65535;
+
+    /**
+     * The highest family whose ports all stay within the valid port range.
+     */
+    static final int MAX_FAMILY = getMaxFamily();
+
+    private final Map<String, HeldLock> locks = new HashMap<String, HeldLock>();
+
+    private final Set<Integer> heldFamilies = new HashSet<Integer>();
+
+    @Override
+    protected PortConfiguration getPortConfiguration( final File jbossasDir, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final File lockDir = getLockDir( config );
+        final int first = getInt( config, FIRST_FAMILY_CONFIG, DEFAULT_FIRST_FAMILY );
+        final int count = getInt( config, FAMILY_COUNT_CONFIG, MAX_FAMILY - first + 1 );
+        final int last = Math.min( first + count - 1, MAX_FAMILY );
+        final String owner = jbossasDir.getAbsolutePath();
+
+        if ( last < first )
+        {
+            throw new MojoExecutionException( "No port families to lock from: " + first + ". The highest family is: "
+                + MAX_FAMILY + "." );
+        }
+
+        lockDir.mkdirs();
+
+        // the OS won't arbitrate between threads of this JVM (it throws OverlappingFileLockException instead), so
+        // allocations from concurrent modules (-T) are serialized here, and families this JVM holds are skipped.
+        synchronized ( locks )
+        {
+            final HeldLock existing = locks.get( owner );
+            if ( existing != null )
+            {
+                return existing.ports;
+            }
+
+            for ( int family = first; family <= last; family++ )
+            {
+                if ( heldFamilies.contains( family ) )
+                {
+                    continue;
+                }
+
+                final PortConfiguration ports = getFamily( family );
+                final HeldLock lock = tryLock( new File( lockDir, "family-" + family + ".lock" ), ports, owner, log );
+                if ( lock != null )
+                {
+                    locks.put( owner, lock );
+                    heldFamilies.add( family );
+                    log.info( "Locked port family: " + family + " via: " + lock.file );
+
+                    return ports;
+                }
+            }
+        }
+
+        throw new MojoExecutionException( "No free port family in: " + lockDir + " (tried families " + first + " to "
+            + last + ")." );
+    }
+
+    @Override
+    public void cleanup( final File jbossasDir, final Properties config, final Log log )
+    {
+        discardPrepared( config );
+
+        final HeldLock held;
+        synchronized ( locks )
+        {
+            held = locks.get( jbossasDir.getAbsolutePath() );
+        }
+
+        // as with registry reservations, don't hand the family on until its sockets have really closed.
+        if ( held != null )
+        {
+            ReservationPortConfigurator.awaitPortsClosed( held.ports, config, log );
+        }
+
+        final HeldLock lock;
+        synchronized ( locks )
+        {
+            lock = locks.remove( jbossasDir.getAbsolutePath() );
+            if ( lock != null )
+            {
+                heldFamilies.remove( lock.ports.getKey() );
+            }
+        }
+
+        if ( lock != null )
+        {
+            log.info( "Unlocking port family: " + lock.ports.getKey() );
+            lock.release( log );
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        final List<HeldLock> held;
+        synchronized ( locks )
+        {
+            held = new ArrayList<HeldLock>( locks.values() );
+            locks.clear();
+            heldFamilies.clear();
+        }
+
+        for ( final HeldLock lock : held )
+        {
+            lock.release( null );
+        }
+    }
+
+    /**
+     * @param family at most {@link #MAX_FAMILY}.
+     * @return the ports of the given family.
+     */
+    static PortConfiguration getFamily( final int family )
+    {
+        final PortConfigurationBuilder builder = new PortConfigurationBuilder().key( family );
+        for ( final Map.Entry<String, Integer> entry : STANDARD )
+        {
+            builder.port( entry.getKey(), entry.getValue() + family * FAMILY_STEP );
+        }
+
+        return builder.build();
+    }
+
+    private static int getMaxFamily()
+    {
+        int highest = 0;
+        for ( final Map.Entry<String, Integer> entry : STANDARD )
+        {
+            highest = Math.max( highest, entry.getValue() );
+        }
+
+        return ( MAX_PORT - highest ) / FAMILY_STEP;
+    }
+
+    private static HeldLock tryLock( final File file, final PortConfiguration ports, final String owner,
+                                     final Log log )
+    {
+        RandomAccessFile raf = null;
+        try
+        {
+            raf = new RandomAccessFile( file, "rw" );
+            final FileChannel channel = raf.getChannel();
+            final FileLock lock = channel.tryLock();
+            if ( lock == null )
+            {
+                raf.close();
+                return null;
+            }
+
+            // purely informational, for anyone wondering which build holds the family.
+            channel.truncate( 0 );
+            channel.write( ByteBuffer.wrap( ( owner + "\n" + new Date() + "\n" ).getBytes() ) );
+
+            return new HeldLock( file, ports, raf, lock );
+        }
+        catch ( final OverlappingFileLockException e )
+        {
+            closeQuietly( raf );
+        }
+        catch ( final IOException e )
+        {
+            // eg. a lock file created by another user that we can't open for writing.
+            log.debug( "Cannot lock: " + file + ". Reason: " + e.getMessage() );
+            closeQuietly( raf );
+        }
+
+        return null;
+    }
+
+    private static File getLockDir( final Properties config )
+    {
+        final String dir = config.getProperty( LOCK_DIR_CONFIG );
+        return dir == null ? new File( System.getProperty( "java.io.tmpdir" ), "qarqas-port-locks" ) : new File( dir );
+    }
+
+    private static void closeQuietly( final RandomAccessFile raf )
+    {
+        if ( raf != null )
+        {
+            try
+            {
+                raf.close();
+            }
+            catch ( final IOException e )
+            {
+            }
+        }
+    }
+
+    private static final class HeldLock
+    {
+        private final File file;
+
+        private final PortConfiguration ports;
+
+        private final RandomAccessFile raf;
+
+        private final FileLock lock;
+
+        HeldLock( final File file, final PortConfiguration ports, final RandomAccessFile raf, final FileLock lock )
+        {
+            this.file = file;
+            this.ports = ports;
+            this.raf = raf;
+            this.lock = lock;
+        }
+
+        // the lock file itself is left in place: deleting it would let another build lock a fresh file of the same
+        // name while a third still holds a lock on the old one.
+        void release( final Log log )
+        {
+            try
+            {
+                lock.release();
+            }
+            catch ( final IOException e )
+            {
+                if ( log != null )
+                {
+                    log.warn( "Failed to unlock: " + file + ". Reason: " + e.getMessage() );
+                }
+            }
+            finally
+            {
+                closeQuietly( raf );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,28 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * An {@link ASConfigurator} that declares what it touches, so the setup goal can run it concurrently with other
+ * configurators it doesn't conflict with. XML configuration files it writes must be edited through the given
+ * {@link XmlEditSession} rather than directly on disk, so that all edits to a file share one parse and one write.
+ * Configurators that don't implement this interface are run on their own, after everything declared before them.
+ */
+public interface PipelineConfigurator
+    extends ASConfigurator
+{
+
+    /**
+     * Declare what {@link #configure(File, Properties, XmlEditSession, Log)} will touch, given this configuration.
+     */
+    ConfiguratorDeclaration declare( File jbossasDir, Properties config );
+
+    Map<String, String> configure( File jbossasDir, Properties config, XmlEditSession xml, Log log )
+        throws MojoExecutionException;
+
+}
@@ -0,0 +1,205 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.commonjava.maven.plugins.arqas.QArqASConstants.ARQ_AS_EXPORT_PREFIX;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.commonjava.maven.plugins.arqas.SetupArqASGoal;
+import org.commonjava.qarqas.registry.model.InstanceLease;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+
+/**
+ * Leases an already-booted JBossAS instance from the registry's warm instance pool, instead of configuring a freshly
+ * unpacked distribution. When this configurator is used, the setup goal skips resolving and unpacking the
+ * distribution, and generates arquillian.xml from its remote-container template, pointing at the leased instance's
+ * management port. The lease is renewed in the background until teardown, which releases it, after which the registry
+ * scrubs and recycles the instance.
+ */
+@Component( role = ASConfigurator.class, hint = "pooled-instance" )
+public class PooledInstanceConfigurator
+    implements PreparableConfigurator, PipelineConfigurator
+{
+
+    public static final String POOL_BASE_URL = "poolBaseUrl";
+
+    public static final String DEFAULT_POOL_BASE_URL = "http://127.0.0.1:9080/qarqas/api/1.0/instance/";
+
+    /**
+     * Lease period (in milliseconds) to request from the pool. If unspecified, the registry's default instance lease
+     * period (30 minutes) applies.
+     */
+    public static final String POOL_LEASE_CONFIG = "poolLease";
+
+    /**
+     * The registry's default instance lease period, assumed when it doesn't say how long a lease was granted for.
+     */
+    public static final long DEFAULT_POOL_LEASE_PERIOD = 30 * 60 * 1000; // 30 mins.
+
+    /**
+     * Renew the lease after this fraction of the lease period has elapsed.
+     */
+    private static final int RENEWALS_PER_LEASE = 3;
+
+    @Requirement
+    private RegistryClient registryClient;
+
+    @Requirement
+    private LeaseHeartbeat heartbeat;
+
+    private final Map<Properties, InstanceLease> prepared = new IdentityHashMap<Properties, InstanceLease>();
+
+    private final Map<String, InstanceLease> leases =
+        Collections.synchronizedMap( new HashMap<String, InstanceLease>() );
+
+    @Override
+    public void prepare( final File jbossasDir, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final InstanceLease lease = leaseInstance( config, log );
+        synchronized ( prepared )
+        {
+            prepared.put( config, lease );
+        }
+    }
+
+    @Override
+    public ConfiguratorDeclaration declare( final File jbossasDir, final Properties config )
+    {
+        return new ConfiguratorDeclaration().produces( SetupArqASGoal.MGMT_PORT );
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final XmlEditSession xml,
+                                          final Log log )
+        throws MojoExecutionException
+    {
+        return configure( jbossasDir, config, log );
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        InstanceLease lease;
+        synchronized ( prepared )
+        {
+            lease = prepared.remove( config );
+        }
+
+        if ( lease == null )
+        {
+            lease = leaseInstance( config, log );
+        }
+
+        final Integer mgmtPort = lease.getManagementPort();
+        if ( mgmtPort == null )
+        {
+            throw new MojoExecutionException( "Leased JBossAS instance: " + lease.getKey()
+                + " has no management-native port!" );
+        }
+
+        config.setProperty( SetupArqASGoal.MGMT_PORT, mgmtPort.toString() );
+        leases.put( getLeaseUrl( config ), lease );
+
+        final Map<String, String> exports = new HashMap<String, String>();
+        final PortConfiguration ports = lease.getPorts();
+        for ( final Map.Entry<String, Integer> entry : ports )
+        {
+            exports.put( ARQ_AS_EXPORT_PREFIX + entry.getKey(), entry.getValue()
+                                                                     .toString() );
+        }
+
+        log.info( "Using pooled JBossAS instance: " + lease.getKey() + " at: " + lease.getJbossHome()
+            + " with port configuration:\n\n" + ports );
+
+        return exports;
+    }
+
+    @Override
+    public void cleanup( final File jbossasDir, final Properties config, final Log log )
+    {
+        synchronized ( prepared )
+        {
+            prepared.remove( config );
+        }
+
+        final String u = getLeaseUrl( config );
+        stopLeaseRenewal( config, log );
+
+        log.info( "Releasing pooled JBossAS instance via: " + u );
+        registryClient.releaseInstance( u, config, log );
+        leases.remove( u );
+    }
+
+    /**
+     * Keep the lease taken during configure() alive in the background, renewing it several times per lease period
+     * until {@link #stopLeaseRenewal(Properties, Log)} or {@link #cleanup(File, Properties, Log)} is called. Otherwise
+     * the pool recycles (stops, scrubs and restarts) the instance when the lease expires, even if tests are running.
+     */
+    public void startLeaseRenewal( final Properties config, final Log log )
+    {
+        final String u = getLeaseUrl( config );
+        final InstanceLease lease = leases.get( u );
+        if ( lease == null )
+        {
+            return;
+        }
+
+        heartbeat.startInstance( u, getRenewalUrl( config ), lease, getRenewalPeriod( lease, config ), config, log );
+    }
+
+    public void stopLeaseRenewal( final Properties config, final Log log )
+    {
+        heartbeat.stop( getLeaseUrl( config ), log );
+    }
+
+    private InstanceLease leaseInstance( final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        log.info( "Leasing pooled JBossAS instance via: " + getLeaseUrl( config ) );
+
+        return registryClient.leaseInstance( getRenewalUrl( config ), config, log );
+    }
+
+    /**
+     * Schedule from the period the pool says it granted. It grants its default instead of any period it considers too
+     * long, so the requested one is only a fallback for registries that don't say.
+     */
+    static long getRenewalPeriod( final InstanceLease lease, final Properties config )
+    {
+        Long period = lease.getLeasePeriod();
+        if ( period == null || period < 1 )
+        {
+            final String requested = config.getProperty( POOL_LEASE_CONFIG );
+            period =
+                requested == null ? DEFAULT_POOL_LEASE_PERIOD : Math.min( Long.parseLong( requested.trim() ),
+                                                                          DEFAULT_POOL_LEASE_PERIOD );
+        }
+
+        return Math.max( 1, period / RENEWALS_PER_LEASE );
+    }
+
+    static String getRenewalUrl( final Properties config )
+    {
+        final String lease = config.getProperty( POOL_LEASE_CONFIG );
+        final String u = getLeaseUrl( config );
+        return lease == null ? u : u + "?expires=" + lease.trim();
+    }
+
+    static String getLeaseUrl( final Properties config )
+    {
+        final String clientKey = config.getProperty( ReservationPortConfigurator.CLIENT_KEY_CONFIG );
+        final String baseUrl = config.getProperty( POOL_BASE_URL, DEFAULT_POOL_BASE_URL );
+        return baseUrl + clientKey;
+    }
+
+}
@@ -0,0 +1,199 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.logging.Log;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+
+/**
+ * Checks whether the ports of a port configuration are free on the loopback interface (where AS7 binds by default).
+ * All ports are probed at once with non-blocking connects on a single {@link Selector}; a port with a listener is in
+ * use. Ports without a listener are then test-bound, which catches ports that are bound but not listening. The bind
+ * uses SO_REUSEADDR (as AS7 does), so sockets lingering in TIME_WAIT don't count as in use.
+ */
+public final class PortProbe
+{
+
+    private static final byte[] LOOPBACK = { 0x7f, 0x0, 0x0, 0x1 };
+
+    private PortProbe()
+    {
+    }
+
+    /**
+     * @return the ports in the configuration that are in use, by name. Empty if all are free.
+     */
+    public static Map<String, Integer> findUnavailable( final PortConfiguration ports, final long timeoutMillis )
+        throws IOException
+    {
+        final InetAddress address = InetAddress.getByAddress( LOOPBACK );
+        final Map<String, Integer> unavailable = new TreeMap<String, Integer>();
+
+        final Selector selector = Selector.open();
+        try
+        {
+            int pending = 0;
+            for ( final Map.Entry<String, Integer> entry : ports )
+            {
+                final SocketChannel channel = SocketChannel.open();
+                try
+                {
+                    channel.configureBlocking( false );
+                    if ( channel.connect( new InetSocketAddress( address, entry.getValue() ) ) )
+                    {
+                        unavailable.put( entry.getKey(), entry.getValue() );
+                        channel.close();
+                    }
+                    else
+                    {
+                        channel.register( selector, SelectionKey.OP_CONNECT, entry );
+                        pending++;
+                    }
+                }
+                catch ( final IOException e )
+                {
+                    // connection refused straight away: nothing is listening.
+                    channel.close();
+                }
+            }
+
+            final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+            while ( pending > 0 )
+            {
+                final long remaining = TimeUnit.NANOSECONDS.toMillis( deadline - System.nanoTime() );
+                if ( remaining < 1 )
+                {
+                    // unanswered connects on loopback are as good as refused.
+                    break;
+                }
+
+                selector.select( remaining );
+                for ( final SelectionKey key : selector.selectedKeys() )
+                {
+                    @SuppressWarnings( "unchecked" )
+                    final Map.Entry<String, Integer> entry = (Map.Entry<String, Integer>) key.attachment();
+                    final SocketChannel channel = (SocketChannel) key.channel();
+                    try
+                    {
+                        if ( channel.finishConnect() )
+                        {
+                            unavailable.put( entry.getKey(), entry.getValue() );
+                        }
+                    }
+                    catch ( final IOException e )
+                    {
+                        // refused: nothing is listening.
+                    }
+                    finally
+                    {
+                        key.cancel();
+                        channel.close();
+                        pending--;
+                    }
+                }
+                selector.selectedKeys()
+                        .clear();
+            }
+        }
+        finally
+        {
+            for ( final SelectionKey key : selector.keys() )
+            {
+                key.channel()
+                   .close();
+            }
+            selector.close();
+        }
+
+        for ( final Map.Entry<String, Integer> entry : ports )
+        {
+            if ( !unavailable.containsKey( entry.getKey() ) && !canBind( address, entry.getValue() ) )
+            {
+                unavailable.put( entry.getKey(), entry.getValue() );
+            }
+        }
+
+        return unavailable;
+    }
+
+    /**
+     * Poll until every port in the configuration is free, for up to timeoutMillis.
+     * 
+     * @return true if all ports became free in time.
+     */
+    public static boolean awaitAvailable( final PortConfiguration ports, final long timeoutMillis,
+                                          final long pollMillis, final Log log )
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        while ( true )
+        {
+            final Map<String, Integer> unavailable;
+            try
+            {
+                unavailable = findUnavailable( ports, pollMillis );
+            }
+            catch ( final IOException e )
+            {
+                log.warn( "Cannot probe ports of configuration: " + ports.getKey() + ". Reason: " + e.getMessage() );
+                return false;
+            }
+
+            if ( unavailable.isEmpty() )
+            {
+                return true;
+            }
+
+            if ( System.nanoTime() > deadline )
+            {
+                log.warn( "Ports of configuration: " + ports.getKey() + " still in use after " + timeoutMillis
+                    + "ms: " + unavailable );
+                return false;
+            }
+
+            log.debug( "Waiting for ports to close: " + unavailable );
+            try
+            {
+                Thread.sleep( pollMillis );
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread()
+                      .interrupt();
+                return false;
+            }
+        }
+    }
+
+    private static boolean canBind( final InetAddress address, final int port )
+        throws IOException
+    {
+        final ServerSocketChannel channel = ServerSocketChannel.open();
+        try
+        {
+            channel.socket()
+                   .setReuseAddress( true );
+            channel.socket()
+                   .bind( new InetSocketAddress( address, port ) );
+            return true;
+        }
+        catch ( final BindException e )
+        {
+            return false;
+        }
+        finally
+        {
+            channel.close();
+        }
+    }
+
+}
@@ -0,0 +1,24 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * An {@link ASConfigurator} with work that doesn't need the unpacked JBossAS distribution, such as reserving ports from
+ * the registry. The setup goal calls {@link #prepare(File, Properties, Log)} while the distribution is still being
+ * resolved and unpacked, then calls configure() with the same Properties instance once the distribution is in place.
+ */
+public interface PreparableConfigurator
+    extends ASConfigurator
+{
+
+    /**
+     * @param jbossasDir where the distribution will be unpacked. It may not exist yet.
+     */
+    void prepare( File jbossasDir, Properties config, Log log )
+        throws MojoExecutionException;
+
+}
@@ -0,0 +1,387 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.commonjava.maven.plugins.arqas.conf.ConfiguratorProperties.getInt;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.client.DefaultHttpRequestRetryHandler;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.util.EntityUtils;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+import org.commonjava.maven.plugins.arqas.StageTimings;
+import org.commonjava.qarqas.registry.model.InstanceLease;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+
+import com.google.gson.GsonBuilder;
+
+/**
+ * HTTP client for the port-reservation registry (and its warm instance pool), shared by every module (and every
+ * thread) that uses the plugin in a given Maven session. Connections are pooled and kept alive between calls, every
+ * call is bounded by connect/read timeouts, and calls that fail with an I/O error or HTTP 503 are retried with
+ * jittered exponential backoff.
+ */
+@Component( role = RegistryClient.class )
+public class RegistryClient
+    implements Disposable
+{
+
+    /**
+     * Milliseconds to wait for a TCP connection to the registry (default: 5000).
+     */
+    public static final String CONNECT_TIMEOUT_CONFIG = "registryConnectTimeout";
+
+    /**
+     * Milliseconds to wait for the registry to respond once connected (default: 30000).
+     */
+    public static final String READ_TIMEOUT_CONFIG = "registryReadTimeout";
+
+    /**
+     * Number of times to retry a registry call that failed with an I/O error or HTTP 503 (default: 4).
+     */
+    public static final String RETRIES_CONFIG = "registryRetries";
+
+    /**
+     * Base delay in milliseconds for the exponential backoff between retries (default: 250).
+     */
+    public static final String RETRY_DELAY_CONFIG = "registryRetryDelay";
+
+    private static final int DEFAULT_CONNECT_TIMEOUT = 5000;
+
+    private static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    private static final int DEFAULT_RETRIES = 4;
+
+    private static final int DEFAULT_RETRY_DELAY = 250;
+
+    private static final long MAX_RETRY_DELAY = 10000;
+
+    private static final int MAX_CONNECTIONS = 20;
+
+    private static final long IDLE_CONNECTION_TIMEOUT = 30;
+
+    private final Random random = new Random();
+
+    private ThreadSafeClientConnManager connectionManager;
+
+    private DefaultHttpClient client;
+
+    /**
+     * Reserve (or renew the existing reservation for) the port configuration at the given URL.
+     */
+    public PortConfiguration reserve( final String url, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final long start = System.nanoTime();
+        final Result<PortConfiguration> result = get( url, PortConfiguration.class, "port configuration", config, log );
+        log.info( "Reserved port configuration: " + result.getValue()
+                                                          .getKey() + " in " + elapsedMillis( start ) + "ms ("
+            + result.getAttempts() + " attempt(s))." );
+
+        return result.getValue();
+    }
+
+    /**
+     * Lease (or renew the existing lease for) a warm JBossAS instance from the instance pool at the given URL.
+     */
+    public InstanceLease leaseInstance( final String url, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final long start = System.nanoTime();
+        final Result<InstanceLease> result = get( url, InstanceLease.class, "JBossAS instance", config, log );
+        log.info( "Leased JBossAS instance: " + result.getValue()
+                                                      .getKey() + " in " + elapsedMillis( start ) + "ms ("
+            + result.getAttempts() + " attempt(s))." );
+
+        return result.getValue();
+    }
+
+    /**
+     * Release the port configuration reserved at the given URL. Failures are logged, not thrown.
+     */
+    public boolean release( final String url, final Properties config, final Log log )
+    {
+        return update( new HttpDelete( url ), "Release port configuration reservation", config, log );
+    }
+
+    /**
+     * Release the JBossAS instance leased at the given URL. Failures are logged, not thrown.
+     */
+    public boolean releaseInstance( final String url, final Properties config, final Log log )
+    {
+        return update( new HttpDelete( url ), "Release JBossAS instance lease", config, log );
+    }
+
+    /**
+     * Ban the port configuration at the given URL (the reservation base URL + "ban/" + key), so the registry stops
+     * handing it out. Failures are logged, not thrown.
+     */
+    public boolean ban( final String url, final Properties config, final Log log )
+    {
+        return update( new HttpPost( url ), "Ban port configuration", config, log );
+    }
+
+    private <T> Result<T> get( final String url, final Class<T> type, final String description,
+                               final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final RegistryResponse response;
+        try
+        {
+            response = execute( new HttpGet( url ), config, log );
+        }
+        catch ( final IOException e )
+        {
+            throw new MojoExecutionException( "Cannot contact registry at: " + url + ". Reason: " + e.getMessage(), e );
+        }
+
+        final StatusLine statusLine = response.getStatusLine();
+        if ( statusLine.getStatusCode() == HttpStatus.SC_OK )
+        {
+            final T value = new GsonBuilder().create()
+                                             .fromJson( response.getBody(), type );
+            if ( value == null )
+            {
+                throw new MojoExecutionException( "Cannot obtain " + description
+                    + " from registry. Received an empty response from: " + url );
+            }
+
+            return new Result<T>( value, response.getAttempts() );
+        }
+
+        throw new MojoExecutionException( "Cannot obtain " + description
+            + " from registry. Received HTTP response: " + statusLine );
+    }
+
+    private boolean update( final HttpUriRequest request, final String action, final Properties config,
+                            final Log log )
+    {
+        final long start = System.nanoTime();
+        try
+        {
+            final RegistryResponse response = execute( request, config, log );
+            final StatusLine statusLine = response.getStatusLine();
+            if ( statusLine.getStatusCode() != HttpStatus.SC_OK )
+            {
+                log.error( action + " failed. Received HTTP response: " + statusLine );
+                return false;
+            }
+
+            log.info( action + " succeeded in " + elapsedMillis( start ) + "ms." );
+            return true;
+        }
+        catch ( final IOException e )
+        {
+            log.error( "Cannot contact registry at: " + request.getURI() + ". Reason: " + e.getMessage(), e );
+        }
+
+        return false;
+    }
+
+    private RegistryResponse execute( final HttpUriRequest request, final Properties config, final Log log )
+        throws IOException
+    {
+        final int retries = getInt( config, RETRIES_CONFIG, DEFAULT_RETRIES );
+        final long retryDelay = getInt( config, RETRY_DELAY_CONFIG, DEFAULT_RETRY_DELAY );
+
+        final HttpParams params = request.getParams();
+        HttpConnectionParams.setConnectionTimeout( params,
+                                                   getInt( config, CONNECT_TIMEOUT_CONFIG, DEFAULT_CONNECT_TIMEOUT ) );
+        HttpConnectionParams.setSoTimeout( params, getInt( config, READ_TIMEOUT_CONFIG, DEFAULT_READ_TIMEOUT ) );
+        request.setHeader( HttpHeaders.ACCEPT, "application/json" );
+
+        final long start = System.nanoTime();
+        int attempt = 0;
+        try
+        {
+            while ( true )
+            {
+                attempt++;
+                IOException error = null;
+                RegistryResponse response = null;
+                try
+                {
+                    response = send( request, attempt );
+                    if ( response.getStatusLine()
+                                 .getStatusCode() != HttpStatus.SC_SERVICE_UNAVAILABLE )
+                    {
+                        return response;
+                    }
+                }
+                catch ( final IOException e )
+                {
+                    error = e;
+                }
+
+                if ( attempt > retries )
+                {
+                    if ( error != null )
+                    {
+                        throw error;
+                    }
+
+                    return response;
+                }
+
+                final long delay = backoff( retryDelay, attempt );
+                log.warn( request.getMethod() + " " + request.getURI() + " failed (attempt " + attempt + " of "
+                    + ( retries + 1 ) + "): " + ( error == null ? response.getStatusLine() : error.getMessage() )
+                    + ". Retrying in " + delay + "ms." );
+
+                try
+                {
+                    Thread.sleep( delay );
+                }
+                catch ( final InterruptedException e )
+                {
+                    Thread.currentThread()
+                          .interrupt();
+                    throw new IOException( "Interrupted while waiting to retry: " + request.getURI() );
+                }
+            }
+        }
+        finally
+        {
+            // lets the goals report time spent waiting on the registry.
+            StageTimings.count( config, StageTimings.REGISTRY_REQUESTS, attempt );
+            StageTimings.count( config, StageTimings.REGISTRY_MILLIS, elapsedMillis( start ) );
+        }
+    }
+
+    private RegistryResponse send( final HttpUriRequest request, final int attempt )
+        throws IOException
+    {
+        final HttpResponse response = getClient().execute( request );
+        final HttpEntity entity = response.getEntity();
+
+        // always consume the entity, so the connection is returned to the pool for reuse.
+        final String body = entity == null ? null : EntityUtils.toString( entity );
+        EntityUtils.consume( entity );
+
+        return new RegistryResponse( response.getStatusLine(), body, attempt );
+    }
+
+    private long backoff( final long baseDelay, final int attempt )
+    {
+        final long ceiling = Math.min( MAX_RETRY_DELAY, baseDelay << Math.min( attempt - 1, 16 ) );
+        final long half = ceiling / 2;
+
+        synchronized ( random )
+        {
+            return half + (long) ( random.nextDouble() * ( ceiling - half ) );
+        }
+    }
+
+    private synchronized DefaultHttpClient getClient()
+    {
+        if ( client == null )
+        {
+            connectionManager = new ThreadSafeClientConnManager();
+            connectionManager.setMaxTotal( MAX_CONNECTIONS );
+            connectionManager.setDefaultMaxPerRoute( MAX_CONNECTIONS );
+
+            final HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout( params, DEFAULT_CONNECT_TIMEOUT );
+            HttpConnectionParams.setSoTimeout( params, DEFAULT_READ_TIMEOUT );
+            HttpConnectionParams.setStaleCheckingEnabled( params, true );
+
+            client = new DefaultHttpClient( connectionManager, params );
+
+            // retries are handled in execute(), with backoff.
+            client.setHttpRequestRetryHandler( new DefaultHttpRequestRetryHandler( 0, false ) );
+        }
+
+        connectionManager.closeIdleConnections( IDLE_CONNECTION_TIMEOUT, TimeUnit.SECONDS );
+
+        return client;
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        if ( connectionManager != null )
+        {
+            connectionManager.shutdown();
+            connectionManager = null;
+            client = null;
+        }
+    }
+
+    static long elapsedMillis( final long startNanos )
+    {
+        return TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos );
+    }
+
+    private static final class Result<T>
+    {
+        private final T value;
+
+        private final int attempts;
+
+        Result( final T value, final int attempts )
+        {
+            this.value = value;
+            this.attempts = attempts;
+        }
+
+        T getValue()
+        {
+            return value;
+        }
+
+        int getAttempts()
+        {
+            return attempts;
+        }
+    }
+
+    private static final class RegistryResponse
+    {
+        private final StatusLine statusLine;
+
+        private final String body;
+
+        private final int attempts;
+
+        RegistryResponse( final StatusLine statusLine, final String body, final int attempts )
+        {
+            this.statusLine = statusLine;
+            this.body = body;
+            this.attempts = attempts;
+        }
+
+        StatusLine getStatusLine()
+        {
+            return statusLine;
+        }
+
+        String getBody()
+        {
+            return body;
+        }
+
+        int getAttempts()
+        {
+            return attempts;
+        }
+    }
+
+}
@@ -0,0 +1,230 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+
+/**
+ * Session-scoped cache of port-configuration reservations, shared by all modules in a reactor. Modules check a
+ * reservation out during setup and check it back in during teardown, so modules that build one after another reuse
+ * the same port family. Concurrent modules (under -T) each check out their own family. All cached families are
+ * released once every participating project has checked in, or when the Maven JVM shuts down.
+ */
+@Component( role = ReservationCache.class )
+public class ReservationCache
+    implements Disposable
+{
+
+    @Requirement
+    private RegistryClient registryClient;
+
+    @Requirement
+    private LeaseHeartbeat heartbeat;
+
+    private final LinkedList<Slot> available = new LinkedList<Slot>();
+
+    private final Map<String, Slot> checkedOut = new HashMap<String, Slot>();
+
+    private final List<Slot> all = new ArrayList<Slot>();
+
+    private final Set<String> pendingProjects = new HashSet<String>();
+
+    private boolean projectsRegistered;
+
+    private Thread shutdownHook;
+
+    /**
+     * Check out a port configuration for the given project, reusing a family that another module already checked back
+     * in if one is available, and reserving a new family from the registry otherwise.
+     *
+     * @param reactorProjects keys of all projects in the reactor that are expected to check out a reservation. When
+     *            all of these have checked in, the cached reservations are released.
+     */
+    public synchronized PortConfiguration checkout( final String reactorKey, final String projectKey,
+                                                    final Collection<String> reactorProjects,
+                                                    final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        if ( !projectsRegistered )
+        {
+            for ( final String key : reactorProjects )
+            {
+                if ( key.length() > 0 )
+                {
+                    pendingProjects.add( key );
+                }
+            }
+            projectsRegistered = true;
+        }
+
+        Slot slot = checkedOut.get( projectKey );
+        if ( slot != null )
+        {
+            return slot.reservation;
+        }
+
+        if ( !available.isEmpty() )
+        {
+            slot = available.removeFirst();
+            log.info( "Reusing reactor port configuration: " + slot.reservation.getKey() + " for: " + projectKey );
+        }
+        else
+        {
+            slot = reserve( reactorKey, config, log );
+        }
+
+        checkedOut.put( projectKey, slot );
+        return slot.reservation;
+    }
+
+    /**
+     * Return the given project's port configuration to the cache, for use by the next module, once its ports have
+     * closed. If this was the last project expected to use the cache, all cached reservations are released.
+     */
+    public void checkin( final String projectKey, final Properties config, final Log log )
+    {
+        final Slot checked;
+        synchronized ( this )
+        {
+            checked = checkedOut.get( projectKey );
+        }
+
+        // wait outside the lock, so other modules can still check reservations in and out meanwhile.
+        if ( checked != null )
+        {
+            ReservationPortConfigurator.awaitPortsClosed( checked.reservation, config, log );
+        }
+
+        doCheckin( projectKey, log );
+    }
+
+    private synchronized void doCheckin( final String projectKey, final Log log )
+    {
+        final Slot slot = checkedOut.remove( projectKey );
+        if ( slot != null )
+        {
+            log.info( "Returning reactor port configuration: " + slot.reservation.getKey() + " from: " + projectKey );
+            available.addLast( slot );
+        }
+
+        pendingProjects.remove( projectKey );
+        if ( projectsRegistered && pendingProjects.isEmpty() && checkedOut.isEmpty() )
+        {
+            releaseAll( log );
+        }
+    }
+
+    public synchronized void releaseAll( final Log log )
+    {
+        for ( final Slot slot : all )
+        {
+            heartbeat.stop( slot.url, log );
+            registryClient.release( slot.url, slot.config, log );
+        }
+
+        all.clear();
+        available.clear();
+        checkedOut.clear();
+        pendingProjects.clear();
+        projectsRegistered = false;
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        releaseAll( new SystemStreamLog() );
+        if ( shutdownHook != null )
+        {
+            try
+            {
+                Runtime.getRuntime()
+                       .removeShutdownHook( shutdownHook );
+            }
+            catch ( final IllegalStateException e )
+            {
+                // already shutting down.
+            }
+            shutdownHook = null;
+        }
+    }
+
+    private Slot reserve( final String reactorKey, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final Properties slotConfig = new Properties();
+        slotConfig.putAll( config );
+        slotConfig.setProperty( ReservationPortConfigurator.CLIENT_KEY_CONFIG, reactorKey + "-" + all.size() );
+
+        final String url = ReservationPortConfigurator.getReservationUrl( slotConfig );
+        log.info( "Reserving reactor port configuration via: " + url );
+
+        final PortConfiguration reservation =
+            ReservationPortConfigurator.reserveVerified( registryClient,
+                                                         ReservationPortConfigurator.getRenewalUrl( slotConfig ),
+                                                         slotConfig, log );
+
+        final Slot slot = new Slot( url, reservation, slotConfig );
+        all.add( slot );
+
+        // the cache owns these reservations now, so keep them alive between modules.
+        heartbeat.start( url, ReservationPortConfigurator.getRenewalUrl( slotConfig ), reservation,
+                         ReservationPortConfigurator.getRenewalPeriod( slotConfig ), slotConfig, log );
+
+        if ( shutdownHook == null )
+        {
+            shutdownHook = new Thread( new ReleaseOnShutdown( this ), "qarqas-reservation-release" );
+            Runtime.getRuntime()
+                   .addShutdownHook( shutdownHook );
+        }
+
+        return slot;
+    }
+
+    private static final class Slot
+    {
+        private final String url;
+
+        private final PortConfiguration reservation;
+
+        private final Properties config;
+
+        Slot( final String url, final PortConfiguration reservation, final Properties config )
+        {
+            this.url = url;
+            this.reservation = reservation;
+            this.config = config;
+        }
+    }
+
+    private static final class ReleaseOnShutdown
+        implements Runnable
+    {
+        private final ReservationCache cache;
+
+        ReleaseOnShutdown( final ReservationCache cache )
+        {
+            this.cache = cache;
+        }
+
+        @Override
+        public void run()
+        {
+            cache.releaseAll( new SystemStreamLog() );
+        }
+    }
+
+}
@@ -2,27 +2,18 @@ package org.commonjava.maven.plugins.arqas.conf;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.InputStreamReader;
-import java.net.MalformedURLException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 
-import org.apache.http.HttpHeaders;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.StatusLine;
-import org.apache.http.client.HttpClient;
-import org.apache.http.client.methods.HttpDelete;
-import org.apache.http.client.methods.HttpGet;
-import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.maven.plugin.MojoExecutionException;
 import org.apache.maven.plugin.logging.Log;
 import org.codehaus.plexus.component.annotations.Component;
-import org.codehaus.plexus.util.IOUtil;
+import org.codehaus.plexus.component.annotations.Requirement;
 import org.commonjava.qarqas.registry.model.PortConfiguration;
 
-import com.google.gson.GsonBuilder;
-
 @Component( role = ASConfigurator.class, hint = "reservation" )
 public class ReservationPortConfigurator
     extends AbstractPortConfigurator
@@ -34,86 +25,304 @@ public class ReservationPortConfigurator
 
     public static final String DEFAULT_BASE_URL = "http://127.0.0.1:9080/qarqas/api/1.0/reservation/";
 
+    /**
+     * Lease period (in milliseconds) to request from the registry. If unspecified, the registry's default lease period
+     * (5 minutes) applies. Longer periods than {@link #MAX_LEASE_PERIOD} are clamped to it.
+     */
+    public static final String RESERVATION_LEASE_CONFIG = "reservationLease";
+
+    public static final long DEFAULT_LEASE_PERIOD = 5 * 60 * 1000; // 5 mins.
+
+    /**
+     * Longest lease the registry grants. It silently replaces any longer request with its default lease period, so
+     * asking for more would leave the renewals scheduled far too late.
+     */
+    public static final long MAX_LEASE_PERIOD = 2 * DEFAULT_LEASE_PERIOD;
+
+    /**
+     * If true, share reservations between all modules in the reactor through the {@link ReservationCache}, instead of
+     * reserving one port configuration per clientKey.
+     */
+    public static final String SHARE_RESERVATION_CONFIG = "shareReservation";
+
+    /**
+     * Base client key for reservations shared across the reactor.
+     */
+    public static final String REACTOR_KEY_CONFIG = "reactorKey";
+
+    /**
+     * Key of the project currently being built, used to check shared reservations out of (and back into) the cache.
+     */
+    public static final String PROJECT_KEY_CONFIG = "projectKey";
+
+    /**
+     * Comma-separated keys of all projects in the reactor that use this plugin.
+     */
+    public static final String REACTOR_PROJECTS_CONFIG = "reactorProjects";
+
+    /**
+     * If true (the default), probe every port of a reserved configuration before using it. If any port is in use, the
+     * configuration is banned in the registry and another one is reserved.
+     */
+    public static final String VERIFY_PORTS_CONFIG = "verifyPorts";
+
+    /**
+     * Number of times to ban and re-reserve when a reserved configuration has ports in use.
+     */
+    public static final String VERIFY_RETRIES_CONFIG = "verifyRetries";
+
+    public static final int DEFAULT_VERIFY_RETRIES = 3;
+
+    /**
+     * Milliseconds to wait for the port probe's connection attempts.
+     */
+    public static final String PROBE_TIMEOUT_CONFIG = "probeTimeout";
+
+    public static final long DEFAULT_PROBE_TIMEOUT = 1000;
+
+    /**
+     * Milliseconds to wait, during teardown, for the ports of a reservation to close before releasing it. If they are
+     * still in use after this, the reservation is released anyway.
+     */
+    public static final String RELEASE_TIMEOUT_CONFIG = "releaseTimeout";
+
+    public static final long DEFAULT_RELEASE_TIMEOUT = 30000;
+
+    private static final long RELEASE_POLL_INTERVAL = 250;
+
+    /**
+     * Renew the lease after this fraction of the lease period has elapsed.
+     */
+    private static final int RENEWALS_PER_LEASE = 3;
+
+    @Requirement
+    private RegistryClient registryClient;
+
+    @Requirement
+    private LeaseHeartbeat heartbeat;
+
+    @Requirement
+    private ReservationCache reservationCache;
+
+    private final Map<String, PortConfiguration> reservations =
+        Collections.synchronizedMap( new HashMap<String, PortConfiguration>() );
+
     private PortConfiguration reservePorts( final Properties config, final Log log )
         throws MojoExecutionException
     {
         final String clientKey = config.getProperty( CLIENT_KEY_CONFIG );
-        final String baseUrl = config.getProperty( RESERVATION_BASE_URL, DEFAULT_BASE_URL );
-        final String u = baseUrl + clientKey;
+        final String u = getRenewalUrl( config );
         log.info( "Reserving port configuration reservation via: " + u );
 
-        InputStream stream = null;
-        try
+        final String lease = config.getProperty( RESERVATION_LEASE_CONFIG );
+        if ( lease != null && Long.parseLong( lease.trim() ) > MAX_LEASE_PERIOD )
         {
-            final HttpClient client = new DefaultHttpClient();
-            final HttpGet req = new HttpGet( u );
-            req.setHeader( HttpHeaders.ACCEPT, "application/json" );
-            final HttpResponse response = client.execute( req );
+            log.warn( RESERVATION_LEASE_CONFIG + ": " + lease.trim() + " is longer than the registry grants. Using: "
+                + MAX_LEASE_PERIOD + "ms." );
+        }
 
-            final StatusLine statusLine = response.getStatusLine();
-            if ( statusLine.getStatusCode() == HttpStatus.SC_OK )
-            {
-                stream = response.getEntity()
-                                 .getContent();
-                return new GsonBuilder().create()
-                                        .fromJson( new InputStreamReader( stream ), PortConfiguration.class );
-            }
+        try
+        {
+            final PortConfiguration reservation = reserveVerified( registryClient, u, config, log );
+            reservations.put( getReservationUrl( config ), reservation );
 
-            throw new MojoExecutionException(
-                                              "Cannot reserve port configuration from registry. Received HTTP response: "
-                                                  + statusLine );
+            return reservation;
         }
-        catch ( final MalformedURLException e )
+        catch ( final IllegalArgumentException e )
         {
             throw new MojoExecutionException( "Cannot format reservation URL. clientKey appears to be invalid: "
                 + clientKey + ". Reason: " + e.getMessage(), e );
         }
-        catch ( final IOException e )
-        {
-            throw new MojoExecutionException( "Cannot contact port configuration registry at: " + u + ". Reason: "
-                + e.getMessage(), e );
-        }
-        finally
-        {
-            IOUtil.close( stream );
-        }
+    }
+
+    private PortConfiguration checkoutSharedPorts( final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final String reactorProjects = config.getProperty( REACTOR_PROJECTS_CONFIG, "" );
+        return reservationCache.checkout( config.getProperty( REACTOR_KEY_CONFIG,
+                                                              config.getProperty( CLIENT_KEY_CONFIG ) ),
+                                          config.getProperty( PROJECT_KEY_CONFIG ),
+                                          Arrays.asList( reactorProjects.split( "\\s*,\\s*" ) ), config, log );
     }
 
     @Override
     public void cleanup( final File jbossasDir, final Properties config, final Log log )
     {
+        discardPrepared( config );
+        if ( isShared( config ) )
+        {
+            reservationCache.checkin( config.getProperty( PROJECT_KEY_CONFIG ), config, log );
+            return;
+        }
+
         final String clientKey = config.getProperty( CLIENT_KEY_CONFIG );
-        final String baseUrl = config.getProperty( RESERVATION_BASE_URL, DEFAULT_BASE_URL );
-        final String u = baseUrl + clientKey;
+        final String u = getReservationUrl( config );
+        stopLeaseRenewal( config, log );
+
+        final PortConfiguration reservation = reservations.get( u );
+        if ( reservation != null )
+        {
+            awaitPortsClosed( reservation, config, log );
+        }
+
         log.info( "Releasing port configuration reservation via: " + u );
 
         try
         {
-            final HttpClient client = new DefaultHttpClient();
-            final HttpDelete req = new HttpDelete( u );
-            final HttpResponse response = client.execute( req );
-
-            final StatusLine statusLine = response.getStatusLine();
-            if ( statusLine.getStatusCode() != HttpStatus.SC_OK )
-            {
-                log.error( "Cannot release port configuration from registry. Received HTTP response: " + statusLine );
-            }
+            registryClient.release( u, config, log );
+            reservations.remove( u );
         }
-        catch ( final MalformedURLException e )
+        catch ( final IllegalArgumentException e )
         {
             log.error( "Cannot format reservation URL. clientKey appears to be invalid: " + clientKey + ". Reason: "
                 + e.getMessage(), e );
         }
-        catch ( final IOException e )
+    }
+
+    /**
+     * Keep the reservation made during configure() alive in the background, renewing it several times per lease
+     * period until {@link #stopLeaseRenewal(Properties, Log)} or {@link #cleanup(File, Properties, Log)} is called.
+     */
+    public void startLeaseRenewal( final Properties config, final Log log )
+    {
+        final String u = getReservationUrl( config );
+        final PortConfiguration reservation = reservations.get( u );
+        if ( reservation == null )
         {
-            log.error( "Cannot contact port configuration registry at: " + u + ". Reason: " + e.getMessage(), e );
+            return;
         }
+
+        heartbeat.start( u, getRenewalUrl( config ), reservation, getRenewalPeriod( config ), config, log );
+    }
+
+    public void stopLeaseRenewal( final Properties config, final Log log )
+    {
+        heartbeat.stop( getReservationUrl( config ), log );
+    }
+
+    /**
+     * Reserve a port configuration, and make sure all of its ports are actually free before handing it back. The
+     * registry only checks the http port, so a configuration with any other port in use is banned and replaced, up to
+     * {@link #VERIFY_RETRIES_CONFIG} times.
+     */
+    static PortConfiguration reserveVerified( final RegistryClient registryClient, final String url,
+                                              final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        PortConfiguration reservation = registryClient.reserve( url, config, log );
+        if ( !Boolean.parseBoolean( config.getProperty( VERIFY_PORTS_CONFIG, Boolean.TRUE.toString() ) ) )
+        {
+            return reservation;
+        }
+
+        final String retriesVal = config.getProperty( VERIFY_RETRIES_CONFIG );
+        final int retries = retriesVal == null ? DEFAULT_VERIFY_RETRIES : Integer.parseInt( retriesVal.trim() );
+
+        final String timeoutVal = config.getProperty( PROBE_TIMEOUT_CONFIG );
+        final long timeout = timeoutVal == null ? DEFAULT_PROBE_TIMEOUT : Long.parseLong( timeoutVal.trim() );
+
+        int attempt = 0;
+        while ( true )
+        {
+            final Map<String, Integer> unavailable;
+            try
+            {
+                // ports of subsystems removed by 'subsystem-trim' will never be bound, so they needn't be free.
+                unavailable = PortProbe.findUnavailable( SubsystemTrimConfigurator.inUse( reservation, config ),
+                                                         timeout );
+            }
+            catch ( final IOException e )
+            {
+                log.warn( "Cannot probe ports of configuration: " + reservation.getKey()
+                    + ". Using it unverified. Reason: " + e.getMessage() );
+                return reservation;
+            }
+
+            if ( unavailable.isEmpty() )
+            {
+                return reservation;
+            }
+
+            log.warn( "Port configuration: " + reservation.getKey() + " has ports in use: " + unavailable
+                + ". Banning it." );
+            registryClient.ban( getBanUrl( config, reservation ), config, log );
+
+            if ( ++attempt > retries )
+            {
+                throw new MojoExecutionException( "Could not reserve a port configuration with all ports free after "
+                    + attempt + " attempt(s)." );
+            }
+
+            reservation = registryClient.reserve( url, config, log );
+        }
+    }
+
+    /**
+     * Wait (bounded by {@link #RELEASE_TIMEOUT_CONFIG}) until nothing is using the reserved ports any more, so the next
+     * build to get this reservation can actually bind them. The AS JVM may still be shutting down when teardown runs.
+     */
+    static void awaitPortsClosed( final PortConfiguration reservation, final Properties config, final Log log )
+    {
+        final String timeoutVal = config.getProperty( RELEASE_TIMEOUT_CONFIG );
+        final long timeout = timeoutVal == null ? DEFAULT_RELEASE_TIMEOUT : Long.parseLong( timeoutVal.trim() );
+
+        final long start = System.nanoTime();
+        final PortConfiguration inUse = SubsystemTrimConfigurator.inUse( reservation, config );
+        if ( PortProbe.awaitAvailable( inUse, timeout, RELEASE_POLL_INTERVAL, log ) )
+        {
+            log.info( "Ports of configuration: " + reservation.getKey() + " are closed (waited "
+                + RegistryClient.elapsedMillis( start ) + "ms)." );
+        }
+    }
+
+    static String getBanUrl( final Properties config, final PortConfiguration reservation )
+    {
+        return config.getProperty( RESERVATION_BASE_URL, DEFAULT_BASE_URL ) + "ban/" + reservation.getKey();
+    }
+
+    static long getRenewalPeriod( final Properties config )
+    {
+        final Long lease = getLeasePeriod( config );
+        return ( lease == null ? DEFAULT_LEASE_PERIOD : lease ) / RENEWALS_PER_LEASE;
+    }
+
+    /**
+     * @return the lease period to request, clamped to {@link #MAX_LEASE_PERIOD}, or null to use the registry's default.
+     */
+    static Long getLeasePeriod( final Properties config )
+    {
+        final String lease = config.getProperty( RESERVATION_LEASE_CONFIG );
+        return lease == null ? null : Math.min( Long.parseLong( lease.trim() ), MAX_LEASE_PERIOD );
+    }
+
+    static boolean isShared( final Properties config )
+    {
+        return Boolean.parseBoolean( config.getProperty( SHARE_RESERVATION_CONFIG ) );
+    }
+
+    static String getRenewalUrl( final Properties config )
+    {
+        final Long lease = getLeasePeriod( config );
+        final String u = getReservationUrl( config );
+        return lease == null ? u : u + "?expires=" + lease;
+    }
+
+    public static String getReservationUrl( final Properties config )
+    {
+        final String clientKey = config.getProperty( CLIENT_KEY_CONFIG );
+        final String baseUrl = config.getProperty( RESERVATION_BASE_URL, DEFAULT_BASE_URL );
+        return baseUrl + clientKey;
     }
 
     @Override
     protected PortConfiguration getPortConfiguration( final File jbossasDir, final Properties config, final Log log )
         throws MojoExecutionException
     {
+        if ( isShared( config ) )
+        {
+            return checkoutSharedPorts( config, log );
+        }
+
         return reservePorts( config, log );
     }
 
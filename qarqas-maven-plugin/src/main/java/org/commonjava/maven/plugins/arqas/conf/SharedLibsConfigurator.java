@@ -0,0 +1,344 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.commonjava.maven.plugins.arqas.QArqASConstants.ARQ_AS_EXPORT_PREFIX;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.regex.Pattern;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.cdmckay.coffeedom.Document;
+import org.cdmckay.coffeedom.Element;
+import org.cdmckay.coffeedom.Namespace;
+import org.cdmckay.coffeedom.output.Format;
+import org.cdmckay.coffeedom.output.XMLOutputter;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.IOUtil;
+import org.commonjava.maven.plugins.arqas.SetupArqASGoal;
+import org.commonjava.maven.plugins.arqas.StageTimings;
+import org.commonjava.qarqas.lib.ProvidedLibraries;
+
+/**
+ * Installs the project's stable (non-snapshot) dependency jars as a JBoss module in the unpacked instance, so test
+ * deployments can depend on the module instead of packaging the same jars every time. The module name and the jars in
+ * it are exported to qarqas.properties, where the test harness's TestWarArchiveBuilder.withSharedLibraryModule() picks
+ * them up to leave those jars out of the WAR and add a jboss-deployment-structure.xml that references the module.
+ * AS doesn't scan module jars for components, so jars with a beans.xml, a web-fragment.xml or tag library descriptors
+ * stay in the WAR.
+ */
+@Component( role = ASConfigurator.class, hint = "shared-libs" )
+public class SharedLibsConfigurator
+    implements PipelineConfigurator
+{
+
+    /**
+     * Name of the module to install. Defaults to {@link #DEFAULT_MODULE}.
+     */
+    public static final String MODULE_CONFIG = "sharedLibsModule";
+
+    /**
+     * Comma-separated list of regular expressions; dependency jars whose file names match any of them stay out of the
+     * module. Defaults to {@link #DEFAULT_EXCLUDES}.
+     */
+    public static final String EXCLUDES_CONFIG = "sharedLibsExcludes";
+
+    /**
+     * If true, snapshot dependencies go into the module too. They are left out by default, since they are likely to
+     * change between setups and would then be stale in the module.
+     */
+    public static final String SNAPSHOTS_CONFIG = "sharedLibsIncludeSnapshots";
+
+    /**
+     * Comma-separated list of the AS modules the shared module depends on. Defaults to
+     * {@link #DEFAULT_DEPENDENCIES}.
+     */
+    public static final String DEPENDENCIES_CONFIG = "sharedLibsDependencies";
+
+    public static final String MODULE_EXPORT = ARQ_AS_EXPORT_PREFIX + "shared-libs.module";
+
+    /**
+     * Comma-separated file names of the jars in the module.
+     */
+    public static final String JARS_EXPORT = ARQ_AS_EXPORT_PREFIX + "shared-libs.jars";
+
+    public static final String DEFAULT_MODULE = "org.commonjava.qarqas.shared";
+
+    /**
+     * Libraries that AS already provides, or that belong to the test infrastructure (the ones TestWarArchiveBuilder
+     * leaves out of test WARs by default, plus JUnit and qarqas itself).
+     */
+    public static final String DEFAULT_EXCLUDES = ProvidedLibraries.FILE_PATTERNS + ",junit.+,hamcrest.+,qarqas-.+";
+
+    public static final String DEFAULT_DEPENDENCIES = "javax.api,javaee.api";
+
+    private static final String MODULE_NS = "urn:jboss:module:1.1";
+
+    /**
+     * Descriptors that only take effect when the jar is deployed inside the WAR.
+     */
+    private static final Set<String> COMPONENT_DESCRIPTORS =
+        new HashSet<String>( Arrays.asList( "META-INF/beans.xml", "META-INF/web-fragment.xml" ) );
+
+    private static final String TLD_SUFFIX = ".tld";
+
+    @Override
+    public ConfiguratorDeclaration declare( final File jbossasDir, final Properties config )
+    {
+        return new ConfiguratorDeclaration().writes( getModulePath( config ) );
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final XmlEditSession xml,
+                                          final Log log )
+        throws MojoExecutionException
+    {
+        return configure( jbossasDir, config, log );
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final String module = config.getProperty( MODULE_CONFIG, DEFAULT_MODULE );
+        final File moduleDir = new File( jbossasDir, getModulePath( config ) ).getParentFile();
+
+        final Map<String, File> jars = selectJars( config, log );
+        if ( jars.isEmpty() )
+        {
+            log.info( "No dependency jars to install in shared module: " + module );
+            return new HashMap<String, String>();
+        }
+
+        moduleDir.mkdirs();
+        for ( final Map.Entry<String, File> entry : jars.entrySet() )
+        {
+            final File target = new File( moduleDir, entry.getKey() );
+            try
+            {
+                FileUtils.copyFile( entry.getValue(), target );
+            }
+            catch ( final IOException e )
+            {
+                throw new MojoExecutionException( "Failed to copy: " + entry.getValue() + " into shared module: "
+                    + module + ". Reason: " + e.getMessage(), e );
+            }
+        }
+
+        writeModuleXml( new File( moduleDir, "module.xml" ), module, jars.keySet(), config );
+        StageTimings.count( config, StageTimings.FILES_WRITTEN, jars.size() + 1 );
+
+        log.info( "Installed " + jars.size() + " jar(s) as shared module: " + module );
+
+        final Map<String, String> exports = new HashMap<String, String>();
+        exports.put( MODULE_EXPORT, module );
+        exports.put( JARS_EXPORT, join( jars.keySet() ) );
+
+        return exports;
+    }
+
+    @Override
+    public void cleanup( final File jbossasDir, final Properties config, final Log log )
+    {
+    }
+
+    /**
+     * @return the jars to install, by file name. Where two dependencies have the same file name, the first one wins.
+     */
+    private Map<String, File> selectJars( final Properties config, final Log log )
+    {
+        final List<Pattern> excludes = new ArrayList<Pattern>();
+        for ( final String exclude : config.getProperty( EXCLUDES_CONFIG, DEFAULT_EXCLUDES )
+                                           .split( "\\s*,\\s*" ) )
+        {
+            if ( exclude.length() > 0 )
+            {
+                excludes.add( Pattern.compile( exclude ) );
+            }
+        }
+
+        final Set<String> skipped = new HashSet<String>();
+        if ( !Boolean.parseBoolean( config.getProperty( SNAPSHOTS_CONFIG ) ) )
+        {
+            skipped.addAll( splitPaths( config.getProperty( SetupArqASGoal.TEST_SNAPSHOT_LIBRARIES, "" ) ) );
+        }
+
+        final Map<String, File> jars = new LinkedHashMap<String, File>();
+        for ( final String path : splitPaths( config.getProperty( SetupArqASGoal.TEST_LIBRARIES, "" ) ) )
+        {
+            final File file = new File( path );
+            final String name = file.getName();
+            if ( !file.isFile() || jars.containsKey( name ) || skipped.contains( path )
+                || isExcluded( name, excludes ) )
+            {
+                continue;
+            }
+
+            if ( hasComponents( file, log ) )
+            {
+                log.debug( "Leaving in the WAR, since it contributes components: " + file );
+                continue;
+            }
+
+            log.debug( "Adding to shared module: " + file );
+            jars.put( name, file );
+        }
+
+        return jars;
+    }
+
+    private static List<String> splitPaths( final String paths )
+    {
+        final List<String> result = new ArrayList<String>();
+        for ( final String path : paths.split( Pattern.quote( File.pathSeparator ) ) )
+        {
+            if ( path.length() > 0 )
+            {
+                result.add( path );
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * @return true if the jar has a CDI beans.xml, a web-fragment.xml or tag library descriptors, none of which AS
+     *         picks up from a module. Jars that can't be read are treated the same way, and left to the WAR.
+     */
+    private static boolean hasComponents( final File file, final Log log )
+    {
+        JarFile jar = null;
+        try
+        {
+            jar = new JarFile( file );
+            for ( final Enumeration<JarEntry> entries = jar.entries(); entries.hasMoreElements(); )
+            {
+                final String name = entries.nextElement()
+                                           .getName();
+                if ( COMPONENT_DESCRIPTORS.contains( name )
+                    || ( name.startsWith( "META-INF/" ) && name.endsWith( TLD_SUFFIX ) ) )
+                {
+                    return true;
+                }
+            }
+
+            return false;
+        }
+        catch ( final IOException e )
+        {
+            log.debug( "Cannot read: " + file + ". Reason: " + e.getMessage() );
+            return true;
+        }
+        finally
+        {
+            if ( jar != null )
+            {
+                try
+                {
+                    jar.close();
+                }
+                catch ( final IOException e )
+                {
+                    log.debug( "Failed to close: " + file + ". Reason: " + e.getMessage() );
+                }
+            }
+        }
+    }
+
+    private static boolean isExcluded( final String name, final List<Pattern> excludes )
+    {
+        for ( final Pattern exclude : excludes )
+        {
+            if ( exclude.matcher( name )
+                        .matches() )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private void writeModuleXml( final File file, final String module, final Iterable<String> jars,
+                                 final Properties config )
+        throws MojoExecutionException
+    {
+        final Namespace ns = Namespace.getNamespace( MODULE_NS );
+        final Element root = new Element( "module", ns );
+        root.setAttribute( "name", module );
+
+        final Element resources = new Element( "resources", ns );
+        for ( final String jar : jars )
+        {
+            final Element resource = new Element( "resource-root", ns );
+            resource.setAttribute( "path", jar );
+            resources.addContent( resource );
+        }
+        root.addContent( resources );
+
+        final Element dependencies = new Element( "dependencies", ns );
+        for ( final String dependency : config.getProperty( DEPENDENCIES_CONFIG, DEFAULT_DEPENDENCIES )
+                                              .split( "\\s*,\\s*" ) )
+        {
+            if ( dependency.length() > 0 )
+            {
+                final Element dep = new Element( "module", ns );
+                dep.setAttribute( "name", dependency );
+                dependencies.addContent( dep );
+            }
+        }
+        root.addContent( dependencies );
+
+        FileWriter writer = null;
+        try
+        {
+            writer = new FileWriter( file );
+            new XMLOutputter( Format.getPrettyFormat() ).output( new Document( root ), writer );
+        }
+        catch ( final IOException e )
+        {
+            throw new MojoExecutionException( "Cannot write module descriptor: " + file + ". Reason: "
+                + e.getMessage(), e );
+        }
+        finally
+        {
+            IOUtil.close( writer );
+        }
+    }
+
+    private static String getModulePath( final Properties config )
+    {
+        return "modules/" + config.getProperty( MODULE_CONFIG, DEFAULT_MODULE )
+                                  .replace( '.', '/' ) + "/main/module.xml";
+    }
+
+    private static String join( final Iterable<String> values )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( final String value : values )
+        {
+            if ( sb.length() > 0 )
+            {
+                sb.append( ',' );
+            }
+            sb.append( value );
+        }
+
+        return sb.toString();
+    }
+
+}
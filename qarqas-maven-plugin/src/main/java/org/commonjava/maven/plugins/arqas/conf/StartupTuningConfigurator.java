@@ -0,0 +1,112 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.codehaus.plexus.component.annotations.Component;
+import org.commonjava.maven.plugins.arqas.SetupArqASGoal;
+
+/**
+ * Applies a test profile to the AS JVM: modest heap and class-metadata sizing, client-level (C1) JIT only, which suits
+ * a server that lives for a few minutes, and serial GC. The arguments are added to the javaVmArguments of the generated
+ * arquillian.xml (and to JAVA_OPTS of a pre-started instance).
+ */
+@Component( role = ASConfigurator.class, hint = "startup-tuning" )
+public class StartupTuningConfigurator
+    implements PipelineConfigurator
+{
+
+    public static final String INITIAL_HEAP_CONFIG = "tuningInitialHeap";
+
+    public static final String MAX_HEAP_CONFIG = "tuningMaxHeap";
+
+    public static final String MAX_METADATA_CONFIG = "tuningMaxMetadata";
+
+    /**
+     * If true, add -Djava.net.preferIPv4Stack=true. AS7's standalone.conf sets this, but the javaVmArguments replace
+     * its JAVA_OPTS, so set this to keep it. Off by default, since it stops the AS from binding IPv6 addresses.
+     */
+    public static final String PREFER_IPV4_CONFIG = "tuningPreferIPv4Stack";
+
+    /**
+     * Java specification version (eg. 1.7, 11, 17) of the JVM that will run AS. Defaults to that of the JVM running
+     * Maven, which is what the AS7 Arquillian container uses unless it is given a different javaHome.
+     */
+    public static final String JAVA_VERSION_CONFIG = "tuningJavaVersion";
+
+    private static final String DEFAULT_INITIAL_HEAP = "64m";
+
+    private static final String DEFAULT_MAX_HEAP = "512m";
+
+    private static final String DEFAULT_MAX_METADATA = "256m";
+
+    @Override
+    public ConfiguratorDeclaration declare( final File jbossasDir, final Properties config )
+    {
+        return new ConfiguratorDeclaration().produces( SetupArqASGoal.JAVA_VM_ARGS );
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final XmlEditSession xml,
+                                          final Log log )
+        throws MojoExecutionException
+    {
+        return configure( jbossasDir, config, log );
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final int javaVersion = getJavaVersion( config );
+
+        add( config, "-Xms" + config.getProperty( INITIAL_HEAP_CONFIG, DEFAULT_INITIAL_HEAP ), log );
+        add( config, "-Xmx" + config.getProperty( MAX_HEAP_CONFIG, DEFAULT_MAX_HEAP ), log );
+
+        final String metadata = config.getProperty( MAX_METADATA_CONFIG, DEFAULT_MAX_METADATA );
+        add( config, ( javaVersion < 8 ? "-XX:MaxPermSize=" : "-XX:MaxMetaspaceSize=" ) + metadata, log );
+
+        if ( javaVersion >= 7 )
+        {
+            add( config, "-XX:+TieredCompilation", log );
+            add( config, "-XX:TieredStopAtLevel=1", log );
+        }
+
+        add( config, "-XX:+UseSerialGC", log );
+
+        if ( Boolean.parseBoolean( config.getProperty( PREFER_IPV4_CONFIG ) ) )
+        {
+            add( config, "-Djava.net.preferIPv4Stack=true", log );
+        }
+
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void cleanup( final File jbossasDir, final Properties config, final Log log )
+    {
+    }
+
+    static int getJavaVersion( final Properties config )
+    {
+        final String spec =
+            config.getProperty( JAVA_VERSION_CONFIG, System.getProperty( "java.specification.version" ) )
+                  .trim();
+
+        // 1.6, 1.7, 1.8 -> 6, 7, 8; 9 and later are plain integers.
+        final String major = spec.startsWith( "1." ) ? spec.substring( 2 ) : spec;
+        final int dot = major.indexOf( '.' );
+        return Integer.parseInt( dot > -1 ? major.substring( 0, dot ) : major );
+    }
+
+    private static void add( final Properties config, final String arg, final Log log )
+    {
+        log.debug( "Adding JVM argument: " + arg );
+        SetupArqASGoal.addJavaVmArgument( config, arg );
+    }
+
+}
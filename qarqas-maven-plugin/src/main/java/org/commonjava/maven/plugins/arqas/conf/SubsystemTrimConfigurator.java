@@ -0,0 +1,337 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.cdmckay.coffeedom.Attribute;
+import org.cdmckay.coffeedom.Document;
+import org.cdmckay.coffeedom.Element;
+import org.cdmckay.coffeedom.Namespace;
+import org.codehaus.plexus.component.annotations.Component;
+import org.commonjava.maven.plugins.arqas.AbstractArqASGoal;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+
+/**
+ * Removes subsystems that tests rarely need from standalone.xml, along with their extensions and socket bindings, so
+ * the instance boots faster, uses less memory and binds fewer ports. Which subsystems go is selected by the
+ * {@link #PROFILE_CONFIG} property. When this configurator is in use, the port configurators neither export nor probe
+ * the ports of the removed socket bindings (see {@link #inUse(PortConfiguration, Properties)}).
+ */
+@Component( role = ASConfigurator.class, hint = "subsystem-trim" )
+public class SubsystemTrimConfigurator
+    implements PipelineConfigurator
+{
+
+    public static final String HINT = "subsystem-trim";
+
+    /**
+     * Comma-separated list of the subsystem groups to remove: any of messaging, jacorb, osgi and jmx. Defaults to all
+     * of them.
+     */
+    public static final String PROFILE_CONFIG = "trimProfile";
+
+    private static final String DEFAULT_PROFILE = "messaging,jacorb,osgi,jmx";
+
+    private static final String EJB3_NS = "urn:jboss:domain:ejb3:";
+
+    private static final Map<String, TrimGroup> GROUPS = new LinkedHashMap<String, TrimGroup>();
+
+    static
+    {
+        // MDB and IIOP settings of the EJB3 subsystem need messaging and JacORB respectively.
+        final TrimGroup messaging = new TrimGroup( "org.jboss.as.messaging", "urn:jboss:domain:messaging:" );
+        GROUPS.put( "messaging", messaging.child( EJB3_NS, "mdb" )
+                                          .sockets( "messaging", "messaging-throughput" ) );
+
+        final TrimGroup jacorb = new TrimGroup( "org.jboss.as.jacorb", "urn:jboss:domain:jacorb:" );
+        GROUPS.put( "jacorb", jacorb.child( EJB3_NS, "iiop" )
+                                    .sockets( "jacorb", "jacorb-ssl" ) );
+
+        final TrimGroup osgi = new TrimGroup( "org.jboss.as.osgi", "urn:jboss:domain:osgi:" );
+        GROUPS.put( "osgi", osgi.sockets( "osgi-http" ) );
+
+        // the JMX subsystem itself stays: other subsystems register MBeans, and Arquillian's JMX protocol uses its
+        // remoting connector. Only the standalone RMI connector and its ports go.
+        final TrimGroup jmx = new TrimGroup( null, null );
+        GROUPS.put( "jmx", jmx.child( "urn:jboss:domain:jmx:", "jmx-connector" )
+                              .sockets( "jmx-connector-registry", "jmx-connector-server" ) );
+    }
+
+    @Override
+    public ConfiguratorDeclaration declare( final File jbossasDir, final Properties config )
+    {
+        return new ConfiguratorDeclaration().writes( AbstractPortConfigurator.STANDALONE_XML );
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final XmlEditSession xml = new XmlEditSession( jbossasDir );
+        final Map<String, String> exports = configure( jbossasDir, config, xml, log );
+        xml.flush( config, log );
+
+        return exports;
+    }
+
+    @Override
+    public Map<String, String> configure( final File jbossasDir, final Properties config, final XmlEditSession xml,
+                                          final Log log )
+        throws MojoExecutionException
+    {
+        final List<TrimGroup> groups = getGroups( config );
+        if ( groups == null )
+        {
+            throw new MojoExecutionException( "Invalid " + PROFILE_CONFIG + ": '" + config.getProperty( PROFILE_CONFIG )
+                + "'. Valid groups are: " + GROUPS.keySet() );
+        }
+
+        final Document doc = xml.getDocument( AbstractPortConfigurator.STANDALONE_XML, log );
+        final Element root = doc.getRootElement();
+        final Namespace ns = root.getNamespace();
+
+        int removed = 0;
+        for ( final TrimGroup group : groups )
+        {
+            removed += group.trim( root, ns, log );
+        }
+
+        if ( removed > 0 )
+        {
+            xml.changed( AbstractPortConfigurator.STANDALONE_XML );
+        }
+
+        log.info( "Removed " + removed + " element(s) from standalone.xml for trim profile: " + names( groups ) );
+
+        return Collections.emptyMap();
+    }
+
+    @Override
+    public void cleanup( final File jbossasDir, final Properties config, final Log log )
+    {
+    }
+
+    /**
+     * @return the given port configuration without the ports of socket bindings this configurator removes, or the
+     *         configuration itself if this configurator isn't in use. The key is kept, so the result can still be used
+     *         to release or ban the reservation.
+     */
+    public static PortConfiguration inUse( final PortConfiguration ports, final Properties config )
+    {
+        final Set<String> trimmed = getTrimmedSockets( config );
+        if ( ports == null || trimmed.isEmpty() )
+        {
+            return ports;
+        }
+
+        final Map<String, Integer> inUse = new HashMap<String, Integer>();
+        for ( final Map.Entry<String, Integer> entry : ports )
+        {
+            if ( !trimmed.contains( entry.getKey() ) )
+            {
+                inUse.put( entry.getKey(), entry.getValue() );
+            }
+        }
+
+        return new PortConfiguration( ports.getKey(), inUse );
+    }
+
+    /**
+     * @return names of the socket bindings removed by this configurator, or an empty set if it isn't in use.
+     */
+    static Set<String> getTrimmedSockets( final Properties config )
+    {
+        final String hints = config.getProperty( AbstractArqASGoal.CONFIGURATOR_HINTS, "" );
+        if ( !Arrays.asList( hints.split( "\\s*,\\s*" ) )
+                    .contains( HINT ) )
+        {
+            return Collections.emptySet();
+        }
+
+        final List<TrimGroup> groups = getGroups( config );
+        if ( groups == null )
+        {
+            return Collections.emptySet();
+        }
+
+        final Set<String> sockets = new LinkedHashSet<String>();
+        for ( final TrimGroup group : groups )
+        {
+            sockets.addAll( group.sockets );
+        }
+
+        return sockets;
+    }
+
+    /**
+     * @return the groups named in the profile, or null if it names an unknown group.
+     */
+    private static List<TrimGroup> getGroups( final Properties config )
+    {
+        final List<TrimGroup> groups = new ArrayList<TrimGroup>();
+        for ( final String name : config.getProperty( PROFILE_CONFIG, DEFAULT_PROFILE )
+                                        .trim()
+                                        .split( "\\s*,\\s*" ) )
+        {
+            if ( name.length() < 1 )
+            {
+                continue;
+            }
+
+            final TrimGroup group = GROUPS.get( name );
+            if ( group == null )
+            {
+                return null;
+            }
+
+            groups.add( group );
+        }
+
+        return groups;
+    }
+
+    private static List<String> names( final List<TrimGroup> groups )
+    {
+        final List<String> names = new ArrayList<String>();
+        for ( final Map.Entry<String, TrimGroup> entry : GROUPS.entrySet() )
+        {
+            if ( groups.contains( entry.getValue() ) )
+            {
+                names.add( entry.getKey() );
+            }
+        }
+
+        return names;
+    }
+
+    private static final class TrimGroup
+    {
+        private final String extensionModule;
+
+        private final String subsystemNamespacePrefix;
+
+        private final List<String[]> children = new ArrayList<String[]>();
+
+        private final List<String> sockets = new ArrayList<String>();
+
+        /**
+         * @param extensionModule module of the extension to remove, or null to keep all extensions.
+         * @param subsystemNamespacePrefix namespace of the subsystem to remove, without its version, or null to keep
+         *            all subsystems.
+         */
+        TrimGroup( final String extensionModule, final String subsystemNamespacePrefix )
+        {
+            this.extensionModule = extensionModule;
+            this.subsystemNamespacePrefix = subsystemNamespacePrefix;
+        }
+
+        /**
+         * Also remove elements with the given name from the given (remaining) subsystem, eg. settings that depend on
+         * the removed subsystem.
+         */
+        TrimGroup child( final String namespacePrefix, final String name )
+        {
+            children.add( new String[] { namespacePrefix, name } );
+            return this;
+        }
+
+        TrimGroup sockets( final String... names )
+        {
+            sockets.addAll( Arrays.asList( names ) );
+            return this;
+        }
+
+        int trim( final Element root, final Namespace ns, final Log log )
+        {
+            final List<Element> remove = new ArrayList<Element>();
+
+            final Element extensions = root.getChild( "extensions", ns );
+            if ( extensions != null && extensionModule != null )
+            {
+                for ( final Element extension : extensions.getChildren( "extension", ns ) )
+                {
+                    if ( extensionModule.equals( extension.getAttributeValue( "module" ) ) )
+                    {
+                        remove.add( extension );
+                    }
+                }
+            }
+
+            final Element profile = root.getChild( "profile", ns );
+            if ( profile != null )
+            {
+                for ( final Element subsystem : profile.getChildren() )
+                {
+                    if ( !"subsystem".equals( subsystem.getName() ) )
+                    {
+                        continue;
+                    }
+
+                    final String uri = subsystem.getNamespaceURI();
+                    if ( subsystemNamespacePrefix != null && uri.startsWith( subsystemNamespacePrefix ) )
+                    {
+                        remove.add( subsystem );
+                        continue;
+                    }
+
+                    for ( final String[] child : children )
+                    {
+                        if ( uri.startsWith( child[0] ) )
+                        {
+                            remove.addAll( subsystem.getChildren( child[1], subsystem.getNamespace() ) );
+                        }
+                    }
+                }
+            }
+
+            for ( final Element group : root.getChildren( "socket-binding-group", ns ) )
+            {
+                for ( final Element binding : group.getChildren( "socket-binding", ns ) )
+                {
+                    final Attribute name = binding.getAttribute( "name" );
+                    if ( name != null && sockets.contains( name.getValue() ) )
+                    {
+                        remove.add( binding );
+                    }
+                }
+            }
+
+            for ( final Element element : remove )
+            {
+                log.debug( "Removing: " + describe( element ) );
+                element.detach();
+            }
+
+            return remove.size();
+        }
+
+        private static String describe( final Element element )
+        {
+            final String name = element.getAttributeValue( "name" );
+            if ( name != null )
+            {
+                return element.getName() + " '" + name + "'";
+            }
+
+            final String module = element.getAttributeValue( "module" );
+            if ( module != null )
+            {
+                return element.getName() + " '" + module + "'";
+            }
+
+            return element.getName() + " (" + element.getNamespaceURI() + ")";
+        }
+    }
+
+}
@@ -0,0 +1,144 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.cdmckay.coffeedom.Document;
+import org.cdmckay.coffeedom.input.SAXBuilder;
+import org.cdmckay.coffeedom.output.Format;
+import org.cdmckay.coffeedom.output.XMLOutputter;
+import org.codehaus.plexus.util.IOUtil;
+import org.commonjava.maven.plugins.arqas.StageTimings;
+
+/**
+ * Shared, parsed copies of the XML configuration files in a JBossAS directory. Each file is parsed the first time a
+ * configurator asks for it, and written back once, on {@link #flush(Properties, Log)}, if any configurator marked it
+ * as changed. Configurators that edit the same document must not run concurrently; the setup goal guarantees this
+ * for {@link PipelineConfigurator}s that declare the files they write.
+ */
+public final class XmlEditSession
+{
+
+    private final File jbossasDir;
+
+    private final Map<String, Document> documents = new LinkedHashMap<String, Document>();
+
+    private final Set<String> changed = new HashSet<String>();
+
+    public XmlEditSession( final File jbossasDir )
+    {
+        this.jbossasDir = jbossasDir;
+    }
+
+    /**
+     * @param path location of the file, relative to the JBossAS directory.
+     */
+    public Document getDocument( final String path, final Log log )
+        throws MojoExecutionException
+    {
+        synchronized ( documents )
+        {
+            final Document doc = documents.get( path );
+            if ( doc != null )
+            {
+                return doc;
+            }
+        }
+
+        // parse outside the lock, so unrelated files can be parsed concurrently.
+        final File xml = new File( jbossasDir, path );
+        log.info( "Parsing XML from: " + xml );
+        final Document doc;
+        try
+        {
+            doc = new SAXBuilder().build( xml );
+        }
+        catch ( final IOException e )
+        {
+            throw new MojoExecutionException( "Cannot read file: " + e.getMessage(), e );
+        }
+
+        synchronized ( documents )
+        {
+            final Document existing = documents.get( path );
+            if ( existing != null )
+            {
+                return existing;
+            }
+
+            documents.put( path, doc );
+            return doc;
+        }
+    }
+
+    /**
+     * Mark the document at the given path as changed, so it is written back on the next flush.
+     */
+    public void changed( final String path )
+    {
+        synchronized ( documents )
+        {
+            changed.add( path );
+        }
+    }
+
+    /**
+     * Write back every changed document, then forget all parsed documents (since code outside the session may now
+     * change the files).
+     * 
+     * @return the number of files written.
+     */
+    public int flush( final Properties config, final Log log )
+        throws MojoExecutionException
+    {
+        final Map<String, Document> toWrite = new LinkedHashMap<String, Document>();
+        synchronized ( documents )
+        {
+            for ( final Map.Entry<String, Document> entry : documents.entrySet() )
+            {
+                if ( changed.contains( entry.getKey() ) )
+                {
+                    toWrite.put( entry.getKey(), entry.getValue() );
+                }
+            }
+
+            documents.clear();
+            changed.clear();
+        }
+
+        for ( final Map.Entry<String, Document> entry : toWrite.entrySet() )
+        {
+            final File xml = new File( jbossasDir, entry.getKey() );
+            log.info( "Writing XML to: " + xml );
+
+            final String xmlStr = new XMLOutputter( Format.getRawFormat() ).outputString( entry.getValue() );
+
+            FileWriter writer = null;
+            try
+            {
+                writer = new FileWriter( xml );
+                writer.write( xmlStr );
+            }
+            catch ( final IOException e )
+            {
+                throw new MojoExecutionException( "Cannot write " + xml.getName() + " file: " + e.getMessage(), e );
+            }
+            finally
+            {
+                IOUtil.close( writer );
+            }
+        }
+
+        StageTimings.count( config, StageTimings.FILES_WRITTEN, toWrite.size() );
+        return toWrite.size();
+    }
+
+}
@@ -0,0 +1,381 @@
+package org.commonjava.maven.plugins.arqas.instance;
+
+import static org.codehaus.plexus.util.IOUtil.close;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * A JBossAS instance launched in the background from an unpacked distribution, via its standalone launch script.
+ * Console output is copied to a log file, and watched for the message AS7 prints once it has finished booting.
+ */
+public final class ASInstance
+{
+
+    private static final String STARTED_MESSAGE = "JBAS015874";
+
+    private static final String STARTED_WITH_ERRORS_MESSAGE = "JBAS015875";
+
+    private static final long POLL_INTERVAL = 250;
+
+    private static final int CONNECT_TIMEOUT = 500;
+
+    private final File jbossHome;
+
+    private final String managementAddress;
+
+    private final int managementPort;
+
+    private final Process process;
+
+    private final long startNanos = System.nanoTime();
+
+    private long bootMillis = -1;
+
+    private boolean startedWithErrors;
+
+    private ASInstance( final File jbossHome, final String managementAddress, final int managementPort,
+                        final Process process )
+    {
+        this.jbossHome = jbossHome;
+        this.managementAddress = managementAddress;
+        this.managementPort = managementPort;
+        this.process = process;
+    }
+
+    /**
+     * Launch bin/standalone.sh (or standalone.bat) in jbossHome, passing javaVmArgs as JAVA_OPTS. This returns as soon
+     * as the process has been started; use {@link #awaitReady(long, Log)} to wait for the boot to finish.
+     */
+    public static ASInstance start( final File jbossHome, final String javaVmArgs, final String managementAddress,
+                                    final int managementPort, final File consoleLog, final Log log )
+        throws MojoExecutionException
+    {
+        final List<String> cmd = new ArrayList<String>();
+        if ( isWindows() )
+        {
+            cmd.add( "cmd" );
+            cmd.add( "/c" );
+            cmd.add( new File( jbossHome, "bin/standalone.bat" ).getAbsolutePath() );
+        }
+        else
+        {
+            cmd.add( "sh" );
+            cmd.add( new File( jbossHome, "bin/standalone.sh" ).getAbsolutePath() );
+        }
+
+        final ProcessBuilder pb = new ProcessBuilder( cmd );
+        pb.directory( jbossHome );
+        pb.redirectErrorStream( true );
+
+        final Map<String, String> env = pb.environment();
+        env.put( "JBOSS_HOME", jbossHome.getAbsolutePath() );
+        env.put( "JAVA_OPTS", javaVmArgs );
+
+        // makes standalone.sh forward TERM to the AS JVM, so destroying the process doesn't orphan the server.
+        env.put( "LAUNCH_JBOSS_IN_BACKGROUND", "true" );
+
+        log.info( "Starting JBossAS instance in background: " + jbossHome + "\nJAVA_OPTS: " + javaVmArgs
+            + "\nConsole output: " + consoleLog );
+
+        final Process process;
+        try
+        {
+            process = pb.start();
+        }
+        catch ( final IOException e )
+        {
+            throw new MojoExecutionException( "Failed to start JBossAS instance: " + jbossHome + ". Reason: "
+                + e.getMessage(), e );
+        }
+
+        final ASInstance instance = new ASInstance( jbossHome, managementAddress, managementPort, process );
+
+        final Thread pump =
+            new Thread( new ConsolePump( instance, consoleLog, log ), "qarqas-console-" + jbossHome.getName() );
+        pump.setDaemon( true );
+        pump.start();
+
+        return instance;
+    }
+
+    /**
+     * Wait up to timeoutMillis for the instance to finish booting and accept management connections.
+     */
+    public void awaitReady( final long timeoutMillis, final Log log )
+        throws MojoExecutionException
+    {
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        while ( true )
+        {
+            synchronized ( this )
+            {
+                if ( bootMillis > -1 && isManagementListening() )
+                {
+                    if ( startedWithErrors )
+                    {
+                        log.warn( "JBossAS instance: " + jbossHome
+                            + " started with errors. See the console log for details." );
+                    }
+
+                    log.info( "JBossAS instance: " + jbossHome + " is ready (boot took " + bootMillis + "ms)." );
+                    return;
+                }
+            }
+
+            if ( !isAlive() )
+            {
+                throw new MojoExecutionException( "JBossAS instance: " + jbossHome + " exited with status: "
+                    + process.exitValue() + " before it finished booting." );
+            }
+
+            if ( System.nanoTime() > deadline )
+            {
+                throw new MojoExecutionException( "JBossAS instance: " + jbossHome + " did not start within "
+                    + timeoutMillis + "ms." );
+            }
+
+            try
+            {
+                Thread.sleep( POLL_INTERVAL );
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread()
+                      .interrupt();
+                throw new MojoExecutionException( "Interrupted while waiting for JBossAS instance: " + jbossHome );
+            }
+        }
+    }
+
+    /**
+     * Ask the instance to shut down via jboss-cli, then destroy the process if it hasn't exited after timeoutMillis.
+     */
+    public void stop( final long timeoutMillis, final Log log )
+    {
+        if ( !isAlive() )
+        {
+            return;
+        }
+
+        log.info( "Stopping JBossAS instance: " + jbossHome );
+
+        final List<String> cmd = new ArrayList<String>();
+        if ( isWindows() )
+        {
+            cmd.add( "cmd" );
+            cmd.add( "/c" );
+            cmd.add( new File( jbossHome, "bin/jboss-cli.bat" ).getAbsolutePath() );
+        }
+        else
+        {
+            cmd.add( "sh" );
+            cmd.add( new File( jbossHome, "bin/jboss-cli.sh" ).getAbsolutePath() );
+        }
+        cmd.add( "--connect" );
+        cmd.add( "--controller=" + managementAddress + ":" + managementPort );
+        cmd.add( "--command=:shutdown" );
+
+        try
+        {
+            final ProcessBuilder pb = new ProcessBuilder( cmd );
+            pb.directory( jbossHome );
+            pb.redirectErrorStream( true );
+            pb.environment()
+              .put( "JBOSS_HOME", jbossHome.getAbsolutePath() );
+
+            final Process cli = pb.start();
+            close( cli.getOutputStream() );
+            drain( cli );
+        }
+        catch ( final IOException e )
+        {
+            log.warn( "Failed to run jboss-cli shutdown for: " + jbossHome + ". Reason: " + e.getMessage() );
+        }
+
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos( timeoutMillis );
+        while ( isAlive() && System.nanoTime() < deadline )
+        {
+            try
+            {
+                Thread.sleep( POLL_INTERVAL );
+            }
+            catch ( final InterruptedException e )
+            {
+                Thread.currentThread()
+                      .interrupt();
+                break;
+            }
+        }
+
+        if ( isAlive() )
+        {
+            log.warn( "JBossAS instance: " + jbossHome + " did not shut down within " + timeoutMillis
+                + "ms. Destroying process." );
+            destroy();
+        }
+    }
+
+    public void destroy()
+    {
+        process.destroy();
+    }
+
+    public boolean isAlive()
+    {
+        try
+        {
+            process.exitValue();
+            return false;
+        }
+        catch ( final IllegalThreadStateException e )
+        {
+            return true;
+        }
+    }
+
+    public File getJbossHome()
+    {
+        return jbossHome;
+    }
+
+    public int getManagementPort()
+    {
+        return managementPort;
+    }
+
+    /**
+     * @return milliseconds from launch until AS reported it had started, or -1 if it hasn't finished booting.
+     */
+    public synchronized long getBootMillis()
+    {
+        return bootMillis;
+    }
+
+    private synchronized void consoleLine( final String line )
+    {
+        if ( bootMillis < 0 )
+        {
+            startedWithErrors = line.contains( STARTED_WITH_ERRORS_MESSAGE );
+            if ( startedWithErrors || line.contains( STARTED_MESSAGE ) )
+            {
+                bootMillis = TimeUnit.NANOSECONDS.toMillis( System.nanoTime() - startNanos );
+            }
+        }
+    }
+
+    private boolean isManagementListening()
+    {
+        Socket sock = null;
+        try
+        {
+            sock = new Socket();
+            sock.connect( new InetSocketAddress( managementAddress, managementPort ), CONNECT_TIMEOUT );
+            return true;
+        }
+        catch ( final IOException e )
+        {
+            return false;
+        }
+        finally
+        {
+            if ( sock != null )
+            {
+                try
+                {
+                    sock.close();
+                }
+                catch ( final IOException e )
+                {
+                }
+            }
+        }
+    }
+
+    private static void drain( final Process process )
+        throws IOException
+    {
+        final BufferedReader reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
+        try
+        {
+            while ( reader.readLine() != null )
+            {
+                // discard
+            }
+        }
+        finally
+        {
+            close( reader );
+        }
+    }
+
+    private static boolean isWindows()
+    {
+        return System.getProperty( "os.name" )
+                     .toLowerCase()
+                     .startsWith( "windows" );
+    }
+
+    private static final class ConsolePump
+        implements Runnable
+    {
+        private final ASInstance instance;
+
+        private final File consoleLog;
+
+        private final Log log;
+
+        ConsolePump( final ASInstance instance, final File consoleLog, final Log log )
+        {
+            this.instance = instance;
+            this.consoleLog = consoleLog;
+            this.log = log;
+        }
+
+        @Override
+        public void run()
+        {
+            BufferedReader reader = null;
+            PrintWriter writer = null;
+            try
+            {
+                consoleLog.getParentFile()
+                          .mkdirs();
+
+                reader = new BufferedReader( new InputStreamReader( instance.process.getInputStream() ) );
+                writer = new PrintWriter( new FileWriter( consoleLog ), true );
+
+                String line = null;
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    writer.println( line );
+                    instance.consoleLine( line );
+                }
+            }
+            catch ( final IOException e )
+            {
+                log.warn( "Lost console output of JBossAS instance: " + instance.jbossHome + ". Reason: "
+                    + e.getMessage() );
+            }
+            finally
+            {
+                close( reader );
+                close( writer );
+            }
+        }
+    }
+
+}
@@ -0,0 +1,119 @@
+package org.commonjava.maven.plugins.arqas.instance;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+
+/**
+ * Tracks the JBossAS instances pre-started by the setup goal, so later goals in the same Maven session can wait for
+ * them to finish booting and shut them down. Any instance still running when Maven exits is destroyed.
+ */
+@Component( role = ASInstanceManager.class )
+public class ASInstanceManager
+    implements Disposable
+{
+
+    private static final long SHUTDOWN_TIMEOUT = 30000;
+
+    private final Map<File, ASInstance> instances = new HashMap<File, ASInstance>();
+
+    private Thread shutdownHook;
+
+    public synchronized ASInstance start( final File jbossHome, final String javaVmArgs,
+                                          final String managementAddress, final int managementPort,
+                                          final File consoleLog, final Log log )
+        throws MojoExecutionException
+    {
+        final File key = jbossHome.getAbsoluteFile();
+        final ASInstance existing = instances.get( key );
+        if ( existing != null && existing.isAlive() )
+        {
+            log.info( "JBossAS instance: " + jbossHome + " is already running." );
+            return existing;
+        }
+
+        final ASInstance instance =
+            ASInstance.start( jbossHome, javaVmArgs, managementAddress, managementPort, consoleLog, log );
+        instances.put( key, instance );
+
+        if ( shutdownHook == null )
+        {
+            shutdownHook = new Thread( new DestroyOnShutdown( this ), "qarqas-instance-destroy" );
+            Runtime.getRuntime()
+                   .addShutdownHook( shutdownHook );
+        }
+
+        return instance;
+    }
+
+    public synchronized ASInstance get( final File jbossHome )
+    {
+        return instances.get( jbossHome.getAbsoluteFile() );
+    }
+
+    public void stop( final File jbossHome, final Log log )
+    {
+        final ASInstance instance;
+        synchronized ( this )
+        {
+            instance = instances.remove( jbossHome.getAbsoluteFile() );
+        }
+
+        if ( instance != null )
+        {
+            instance.stop( SHUTDOWN_TIMEOUT, log );
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        final List<ASInstance> running;
+        synchronized ( this )
+        {
+            running = new ArrayList<ASInstance>( instances.values() );
+            instances.clear();
+        }
+
+        final Log log = new SystemStreamLog();
+        for ( final ASInstance instance : running )
+        {
+            instance.stop( SHUTDOWN_TIMEOUT, log );
+        }
+    }
+
+    private synchronized void destroyAll()
+    {
+        for ( final ASInstance instance : instances.values() )
+        {
+            instance.destroy();
+        }
+        instances.clear();
+    }
+
+    private static final class DestroyOnShutdown
+        implements Runnable
+    {
+        private final ASInstanceManager manager;
+
+        DestroyOnShutdown( final ASInstanceManager manager )
+        {
+            this.manager = manager;
+        }
+
+        @Override
+        public void run()
+        {
+            manager.destroyAll();
+        }
+    }
+
+}
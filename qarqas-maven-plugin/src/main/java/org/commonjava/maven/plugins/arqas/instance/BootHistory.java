@@ -0,0 +1,111 @@
+package org.commonjava.maven.plugins.arqas.instance;
+
+import static org.codehaus.plexus.util.IOUtil.close;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+
+/**
+ * Remembers the most recent boot time of each JBossAS distribution, with and without startup tuning, across builds. This
+ * gives the timing report a before/after comparison without booting the instance twice.
+ */
+public final class BootHistory
+{
+
+    private static final String DEFAULT_SUFFIX = ".default";
+
+    private static final String TUNED_SUFFIX = ".tuned";
+
+    private final File file;
+
+    public BootHistory()
+    {
+        this( new File( System.getProperty( "user.home" ), ".qarqas/boot-history.properties" ) );
+    }
+
+    public BootHistory( final File file )
+    {
+        this.file = file;
+    }
+
+    /**
+     * Store the boot time of the given distribution, and return the history as it now stands.
+     */
+    public synchronized Properties record( final String distribution, final boolean tuned, final long bootMillis,
+                                           final Log log )
+    {
+        final Properties history = load( log );
+        history.setProperty( distribution + ( tuned ? TUNED_SUFFIX : DEFAULT_SUFFIX ), Long.toString( bootMillis ) );
+
+        // write-and-rename, so a concurrent build never reads a half-written file.
+        final File tmp = new File( file.getPath() + "." + System.nanoTime() + ".tmp" );
+        FileOutputStream out = null;
+        try
+        {
+            file.getParentFile()
+                .mkdirs();
+
+            out = new FileOutputStream( tmp );
+            history.store( out, "Most recent JBossAS boot times (ms) written by qarqas" );
+            out.close();
+
+            if ( !tmp.renameTo( file ) )
+            {
+                file.delete();
+                tmp.renameTo( file );
+            }
+        }
+        catch ( final IOException e )
+        {
+            log.warn( "Cannot write boot history: " + file + ". Reason: " + e.getMessage() );
+        }
+        finally
+        {
+            close( out );
+            tmp.delete();
+        }
+
+        return history;
+    }
+
+    /**
+     * @return the last recorded boot time of the distribution with (tuned) or without startup tuning, or -1 if unknown.
+     */
+    public static long getBootMillis( final Properties history, final String distribution, final boolean tuned )
+    {
+        final String value = history.getProperty( distribution + ( tuned ? TUNED_SUFFIX : DEFAULT_SUFFIX ) );
+        return value == null ? -1 : Long.parseLong( value );
+    }
+
+    private Properties load( final Log log )
+    {
+        final Properties history = new Properties();
+        if ( !file.isFile() )
+        {
+            return history;
+        }
+
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream( file );
+            history.load( in );
+        }
+        catch ( final IOException e )
+        {
+            log.warn( "Cannot read boot history: " + file + ". Reason: " + e.getMessage() );
+        }
+        finally
+        {
+            close( in );
+        }
+
+        return history;
+    }
+
+}
@@ -0,0 +1,302 @@
+package org.commonjava.maven.plugins.arqas;
+
+import static org.codehaus.plexus.util.FileUtils.fileRead;
+import static org.codehaus.plexus.util.FileUtils.fileWrite;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.commonjava.maven.plugins.arqas.conf.ASConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.ConfiguratorDeclaration;
+import org.commonjava.maven.plugins.arqas.conf.PipelineConfigurator;
+import org.commonjava.maven.plugins.arqas.conf.XmlEditSession;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ConfiguratorPipelineTest
+{
+
+    private static final String XML = "test.xml";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private final List<String> events = Collections.synchronizedList( new ArrayList<String>() );
+
+    private final Map<ASConfigurator, Future<?>> noPreparations = new HashMap<ASConfigurator, Future<?>>();
+
+    private ExecutorService executor;
+
+    private File asDir;
+
+    private Properties config;
+
+    private StageTimings timings;
+
+    @Before
+    public void setup()
+        throws Exception
+    {
+        executor = Executors.newFixedThreadPool( 4 );
+        asDir = temp.newFolder( "jboss-as" );
+        config = new Properties();
+        timings = new StageTimings();
+
+        fileWrite( new File( asDir, XML ).getAbsolutePath(), "<root/>" );
+    }
+
+    @After
+    public void shutdown()
+    {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void runsProducerBeforeConsumerListedAheadOfIt()
+        throws Exception
+    {
+        final Stage consumer = new Stage( "consumer", new ConfiguratorDeclaration().consumes( "port" ) );
+        final Stage producer = new Stage( "producer", new ConfiguratorDeclaration().produces( "port" ) );
+        final Barrier barrier = new Barrier( "barrier" );
+
+        final Map<String, String> exports =
+            pipeline().run( Arrays.<ASConfigurator> asList( consumer, producer, barrier ), noPreparations, executor );
+
+        assertThat( events, equalTo( Arrays.asList( "producer", "consumer", "barrier" ) ) );
+        assertThat( exports.get( "consumer" ), equalTo( "port=producer" ) );
+    }
+
+    @Test
+    public void rejectsCircularDependencies()
+        throws Exception
+    {
+        final Stage first = new Stage( "first", new ConfiguratorDeclaration().produces( "a" )
+                                                                             .consumes( "b" ) );
+        final Stage second = new Stage( "second", new ConfiguratorDeclaration().produces( "b" )
+                                                                               .consumes( "a" ) );
+
+        try
+        {
+            pipeline().run( Arrays.<ASConfigurator> asList( first, second ), noPreparations, executor );
+            fail( "Circular dependencies should be rejected." );
+        }
+        catch ( final MojoExecutionException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage()
+                                         .contains( "circular dependencies" ) );
+        }
+
+        assertTrue( events.isEmpty() );
+    }
+
+    @Test
+    public void failingStageFailsItsDependents()
+        throws Exception
+    {
+        final MojoExecutionException failure = new MojoExecutionException( "producer failed" );
+        final Stage producer = new Stage( "producer", new ConfiguratorDeclaration().produces( "port" ) );
+        producer.failure = failure;
+
+        final Stage consumer = new Stage( "consumer", new ConfiguratorDeclaration().consumes( "port" ) );
+        final Stage unrelated = new Stage( "unrelated", new ConfiguratorDeclaration().produces( "other" ) );
+
+        try
+        {
+            pipeline().run( Arrays.<ASConfigurator> asList( producer, consumer, unrelated ), noPreparations,
+                            executor );
+            fail( "The producer's failure should fail the pipeline." );
+        }
+        catch ( final MojoExecutionException e )
+        {
+            assertSame( failure, e );
+        }
+
+        executor.shutdown();
+        assertTrue( executor.awaitTermination( 10, TimeUnit.SECONDS ) );
+
+        assertFalse( events.contains( "consumer" ) );
+        assertTrue( events.contains( "unrelated" ) );
+    }
+
+    @Test
+    public void writesSharedXmlOnce()
+        throws Exception
+    {
+        final Stage first = new Stage( "first", new ConfiguratorDeclaration().writes( XML ) );
+        first.edit = true;
+
+        final Stage second = new Stage( "second", new ConfiguratorDeclaration().writes( XML ) );
+        second.edit = true;
+
+        pipeline().run( Arrays.<ASConfigurator> asList( first, second ), noPreparations, executor );
+
+        timings.countAll( config );
+        assertThat( timings.getCounters()
+                           .get( StageTimings.FILES_WRITTEN ), equalTo( 1L ) );
+
+        final String xml = fileRead( new File( asDir, XML ) );
+        assertTrue( xml, xml.contains( "first=\"edited\"" ) );
+        assertTrue( xml, xml.contains( "second=\"edited\"" ) );
+    }
+
+    @Test
+    public void flushesPendingEditsBeforeUndeclaredConfigurator()
+        throws Exception
+    {
+        final Stage first = new Stage( "first", new ConfiguratorDeclaration().writes( XML ) );
+        first.edit = true;
+
+        final Barrier barrier = new Barrier( "barrier" );
+
+        final Stage second = new Stage( "second", new ConfiguratorDeclaration().writes( XML ) );
+        second.edit = true;
+
+        pipeline().run( Arrays.<ASConfigurator> asList( first, barrier, second ), noPreparations, executor );
+
+        assertTrue( barrier.seen, barrier.seen.contains( "first=\"edited\"" ) );
+
+        final String xml = fileRead( new File( asDir, XML ) );
+        assertTrue( xml, xml.contains( "first=\"edited\"" ) );
+        assertTrue( xml, xml.contains( "second=\"edited\"" ) );
+    }
+
+    private ConfiguratorPipeline pipeline()
+    {
+        return new ConfiguratorPipeline( asDir, config, timings, new SystemStreamLog() );
+    }
+
+    /**
+     * Records when it runs, publishes the keys it produces, and optionally edits the shared XML or fails.
+     */
+    private final class Stage
+        implements PipelineConfigurator
+    {
+        private final String name;
+
+        private final ConfiguratorDeclaration declaration;
+
+        private boolean edit;
+
+        private MojoExecutionException failure;
+
+        Stage( final String name, final ConfiguratorDeclaration declaration )
+        {
+            this.name = name;
+            this.declaration = declaration;
+        }
+
+        @Override
+        public ConfiguratorDeclaration declare( final File jbossasDir, final Properties config )
+        {
+            return declaration;
+        }
+
+        @Override
+        public Map<String, String> configure( final File jbossasDir, final Properties config,
+                                              final XmlEditSession xml, final Log log )
+            throws MojoExecutionException
+        {
+            if ( failure != null )
+            {
+                throw failure;
+            }
+
+            if ( edit )
+            {
+                xml.getDocument( XML, log )
+                   .getRootElement()
+                   .setAttribute( name, "edited" );
+                xml.changed( XML );
+            }
+
+            final StringBuilder consumed = new StringBuilder();
+            for ( final String key : declaration.getConsumes() )
+            {
+                consumed.append( key )
+                        .append( '=' )
+                        .append( config.getProperty( key ) );
+            }
+
+            for ( final String key : declaration.getProduces() )
+            {
+                config.setProperty( key, name );
+            }
+
+            events.add( name );
+            return Collections.singletonMap( name, consumed.toString() );
+        }
+
+        @Override
+        public Map<String, String> configure( final File jbossasDir, final Properties config, final Log log )
+            throws MojoExecutionException
+        {
+            throw new UnsupportedOperationException( "Pipeline configurators are configured with an XML session." );
+        }
+
+        @Override
+        public void cleanup( final File jbossasDir, final Properties config, final Log log )
+        {
+        }
+    }
+
+    /**
+     * A configurator that doesn't declare what it touches, and reads the shared XML straight from disk.
+     */
+    private final class Barrier
+        implements ASConfigurator
+    {
+        private final String name;
+
+        private String seen;
+
+        Barrier( final String name )
+        {
+            this.name = name;
+        }
+
+        @Override
+        public Map<String, String> configure( final File jbossasDir, final Properties config, final Log log )
+            throws MojoExecutionException
+        {
+            try
+            {
+                seen = fileRead( new File( jbossasDir, XML ) );
+            }
+            catch ( final Exception e )
+            {
+                throw new MojoExecutionException( "Cannot read: " + XML, e );
+            }
+
+            events.add( name );
+            return Collections.emptyMap();
+        }
+
+        @Override
+        public void cleanup( final File jbossasDir, final Properties config, final Log log )
+        {
+        }
+    }
+
+}
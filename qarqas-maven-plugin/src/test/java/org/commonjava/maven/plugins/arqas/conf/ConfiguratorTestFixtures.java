@@ -0,0 +1,59 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.codehaus.plexus.util.IOUtil.close;
+import static org.codehaus.plexus.util.IOUtil.copy;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Fixture files shared by the configurator tests.
+ */
+final class ConfiguratorTestFixtures
+{
+
+    private ConfiguratorTestFixtures()
+    {
+    }
+
+    /**
+     * Copy the standalone.xml test resource to where the AS keeps it under asDir.
+     */
+    static File installStandaloneXml( final File asDir )
+        throws IOException
+    {
+        return copyStandaloneXml( new File( asDir, AbstractPortConfigurator.STANDALONE_XML ) );
+    }
+
+    /**
+     * Copy the standalone.xml test resource to the given file.
+     */
+    static File copyStandaloneXml( final File xml )
+        throws IOException
+    {
+        xml.getAbsoluteFile()
+           .getParentFile()
+           .mkdirs();
+
+        final InputStream resource = Thread.currentThread()
+                                           .getContextClassLoader()
+                                           .getResourceAsStream( "standalone.xml" );
+
+        FileOutputStream fos = null;
+        try
+        {
+            fos = new FileOutputStream( xml );
+            copy( resource, fos );
+        }
+        finally
+        {
+            close( resource );
+            close( fos );
+        }
+
+        return xml;
+    }
+
+}
@@ -0,0 +1,164 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.not;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LocalLockPortConfiguratorTest
+{
+
+    private static final int BUILDS = 8;
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Allocates from several threads at once, through two configurator instances sharing the lock directory. The
+     * second instance stands in for another build: it doesn't know the families the first one holds, so only the file
+     * locks keep them apart.
+     */
+    @Test
+    public void concurrentBuildsLockDistinctFamilies()
+        throws Exception
+    {
+        final Properties config = lockConfig();
+        final Log log = new SystemStreamLog();
+
+        final LocalLockPortConfigurator[] configurators =
+            { new LocalLockPortConfigurator(), new LocalLockPortConfigurator() };
+
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final ExecutorService executor = Executors.newFixedThreadPool( BUILDS );
+        try
+        {
+            final List<Future<PortConfiguration>> allocations = new ArrayList<Future<PortConfiguration>>();
+            for ( int i = 0; i < BUILDS; i++ )
+            {
+                final LocalLockPortConfigurator configurator = configurators[i % configurators.length];
+                final File asDir = new File( temp.getRoot(), "build-" + i );
+                allocations.add( executor.submit( new Callable<PortConfiguration>()
+                {
+                    @Override
+                    public PortConfiguration call()
+                        throws Exception
+                    {
+                        start.await();
+                        return configurator.getPortConfiguration( asDir, config, log );
+                    }
+                } ) );
+            }
+
+            start.countDown();
+
+            final Set<Integer> families = new HashSet<Integer>();
+            for ( final Future<PortConfiguration> allocation : allocations )
+            {
+                final PortConfiguration ports = allocation.get();
+                families.add( ports.getKey() );
+                assertThat( ports.getPort( "http" ), equalTo( 8080 + ports.getKey() * 1000 ) );
+            }
+
+            assertThat( families.size(), equalTo( BUILDS ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+            for ( final LocalLockPortConfigurator configurator : configurators )
+            {
+                configurator.dispose();
+            }
+        }
+    }
+
+    @Test
+    public void reusesReleasedFamily()
+        throws Exception
+    {
+        final Properties config = lockConfig();
+
+        final Log log = new SystemStreamLog();
+        final File first = new File( temp.getRoot(), "first" );
+        final File second = new File( temp.getRoot(), "second" );
+        final File third = new File( temp.getRoot(), "third" );
+
+        final LocalLockPortConfigurator configurator = new LocalLockPortConfigurator();
+        final PortConfiguration firstPorts = configurator.getPortConfiguration( first, config, log );
+        final PortConfiguration secondPorts = configurator.getPortConfiguration( second, config, log );
+
+        assertThat( firstPorts.getKey(), not( equalTo( secondPorts.getKey() ) ) );
+
+        configurator.cleanup( first, config, log );
+        final PortConfiguration thirdPorts = configurator.getPortConfiguration( third, config, log );
+
+        assertThat( thirdPorts.getKey(), equalTo( firstPorts.getKey() ) );
+
+        configurator.dispose();
+    }
+
+    @Test
+    public void stopsAtTheLastFamilyInThePortRange()
+        throws Exception
+    {
+        final PortConfiguration highest = LocalLockPortConfigurator.getFamily( LocalLockPortConfigurator.MAX_FAMILY );
+        assertThat( highest.getPort( "management-native" ) <= 65535, equalTo( true ) );
+
+        final Properties config = lockConfig();
+        config.setProperty( LocalLockPortConfigurator.FIRST_FAMILY_CONFIG,
+                            Integer.toString( LocalLockPortConfigurator.MAX_FAMILY ) );
+        config.setProperty( LocalLockPortConfigurator.FAMILY_COUNT_CONFIG, "5" );
+
+        final Log log = new SystemStreamLog();
+        final LocalLockPortConfigurator configurator = new LocalLockPortConfigurator();
+        try
+        {
+            assertThat( configurator.getPortConfiguration( new File( temp.getRoot(), "first" ), config, log )
+                                    .getKey(), equalTo( LocalLockPortConfigurator.MAX_FAMILY ) );
+
+            configurator.getPortConfiguration( new File( temp.getRoot(), "second" ), config, log );
+            fail( "Only one family is left in the port range." );
+        }
+        catch ( final MojoExecutionException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage()
+                                         .endsWith( "(tried families " + LocalLockPortConfigurator.MAX_FAMILY + " to "
+                                             + LocalLockPortConfigurator.MAX_FAMILY + ")." ) );
+        }
+        finally
+        {
+            configurator.dispose();
+        }
+    }
+
+    private Properties lockConfig()
+        throws Exception
+    {
+        final Properties config = new Properties();
+        config.setProperty( LocalLockPortConfigurator.LOCK_DIR_CONFIG, temp.newFolder( "locks" )
+                                                                            .getAbsolutePath() );
+
+        return config;
+    }
+
+}
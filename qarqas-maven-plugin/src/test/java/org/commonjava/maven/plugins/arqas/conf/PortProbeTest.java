@@ -0,0 +1,165 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.Properties;
+
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+import org.commonjava.qarqas.registry.model.PortConfigurationBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PortProbeTest
+{
+
+    private static final long TIMEOUT = 1000;
+
+    private ServerSocket taken;
+
+    @Before
+    public void bind()
+        throws IOException
+    {
+        taken = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+    }
+
+    @After
+    public void unbind()
+        throws IOException
+    {
+        taken.close();
+    }
+
+    @Test
+    public void reportsOnlyTheBoundPort()
+        throws Exception
+    {
+        final int free = freePort();
+        final PortConfiguration ports = new PortConfigurationBuilder().key( 1 )
+                                                                      .port( "http", taken.getLocalPort() )
+                                                                      .port( "management-http", free )
+                                                                      .build();
+
+        assertThat( PortProbe.findUnavailable( ports, TIMEOUT ),
+                    equalTo( Collections.singletonMap( "http", taken.getLocalPort() ) ) );
+    }
+
+    @Test
+    public void reportsNothingForFreePorts()
+        throws Exception
+    {
+        final PortConfiguration ports = new PortConfigurationBuilder().key( 1 )
+                                                                      .port( "http", freePort() )
+                                                                      .build();
+
+        assertTrue( PortProbe.findUnavailable( ports, TIMEOUT )
+                             .isEmpty() );
+    }
+
+    @Test
+    public void bansTakenReservationAndUsesTheNext()
+        throws Exception
+    {
+        final StubRegistryClient registry = new StubRegistryClient();
+        registry.offer( taken.getLocalPort() );
+        registry.offer( freePort() );
+
+        final PortConfiguration reservation =
+            ReservationPortConfigurator.reserveVerified( registry, "http://localhost/reservation", new Properties(),
+                                                         new SystemStreamLog() );
+
+        assertThat( reservation.getKey(), equalTo( 2 ) );
+        assertThat( registry.bans, equalTo( 1 ) );
+    }
+
+    @Test
+    public void givesUpAfterRetryBudget()
+        throws Exception
+    {
+        final StubRegistryClient registry = new StubRegistryClient();
+        for ( int i = 0; i < 5; i++ )
+        {
+            registry.offer( taken.getLocalPort() );
+        }
+
+        final Properties config = new Properties();
+        config.setProperty( ReservationPortConfigurator.VERIFY_RETRIES_CONFIG, "2" );
+
+        try
+        {
+            ReservationPortConfigurator.reserveVerified( registry, "http://localhost/reservation", config,
+                                                         new SystemStreamLog() );
+            fail( "Reservations with ports in use should run out of retries." );
+        }
+        catch ( final MojoExecutionException e )
+        {
+            assertTrue( e.getMessage(), e.getMessage()
+                                         .contains( "3 attempt(s)" ) );
+        }
+
+        assertThat( registry.reserves, equalTo( 3 ) );
+        assertThat( registry.bans, equalTo( 3 ) );
+    }
+
+    private static int freePort()
+        throws IOException
+    {
+        final ServerSocket socket = new ServerSocket( 0, 50, InetAddress.getByName( "127.0.0.1" ) );
+        try
+        {
+            return socket.getLocalPort();
+        }
+        finally
+        {
+            socket.close();
+        }
+    }
+
+    /**
+     * Hands out a reservation with the next offered http port on each reserve, and counts bans.
+     */
+    private static final class StubRegistryClient
+        extends RegistryClient
+    {
+        private final LinkedList<Integer> offered = new LinkedList<Integer>();
+
+        private int reserves;
+
+        private int bans;
+
+        void offer( final int port )
+        {
+            offered.add( port );
+        }
+
+        @Override
+        public PortConfiguration reserve( final String url, final Properties config, final Log log )
+            throws MojoExecutionException
+        {
+            reserves++;
+            return new PortConfigurationBuilder().key( reserves )
+                                                 .port( "http", offered.removeFirst() )
+                                                 .build();
+        }
+
+        @Override
+        public boolean ban( final String url, final Properties config, final Log log )
+        {
+            bans++;
+            return true;
+        }
+    }
+
+}
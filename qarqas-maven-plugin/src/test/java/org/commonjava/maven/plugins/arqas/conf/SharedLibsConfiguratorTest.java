@@ -0,0 +1,140 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.codehaus.plexus.util.FileUtils.fileRead;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.Map;
+import java.util.Properties;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.codehaus.plexus.util.IOUtil;
+import org.commonjava.maven.plugins.arqas.SetupArqASGoal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SharedLibsConfiguratorTest
+{
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void installsStableLibrariesAsModule()
+        throws Exception
+    {
+        final File asDir = temp.newFolder( "jboss-as" );
+        final File libs = temp.newFolder( "libs" );
+
+        final String snapshot = jar( libs, "my-api-1.0-20120601.101010-3.jar" );
+
+        final Properties config = new Properties();
+        config.setProperty( SetupArqASGoal.TEST_LIBRARIES,
+                            jar( libs, "commons-lang-2.6.jar" ) + File.pathSeparator + snapshot + File.pathSeparator
+                                + jar( libs, "jboss-logging-3.1.0.GA.jar" ) + File.pathSeparator
+                                + jar( libs, "qarqas-test-harness-0.1.jar" ) + File.pathSeparator
+                                + jar( libs, "gson-2.1.jar" ) );
+        config.setProperty( SetupArqASGoal.TEST_SNAPSHOT_LIBRARIES, snapshot );
+
+        final Map<String, String> exports =
+            new SharedLibsConfigurator().configure( asDir, config, new SystemStreamLog() );
+
+        assertThat( exports.get( SharedLibsConfigurator.MODULE_EXPORT ),
+                    equalTo( SharedLibsConfigurator.DEFAULT_MODULE ) );
+        assertThat( exports.get( SharedLibsConfigurator.JARS_EXPORT ), equalTo( "commons-lang-2.6.jar,gson-2.1.jar" ) );
+
+        final File moduleDir = new File( asDir, "modules/org/commonjava/qarqas/shared/main" );
+        assertTrue( new File( moduleDir, "commons-lang-2.6.jar" ).isFile() );
+        assertTrue( new File( moduleDir, "gson-2.1.jar" ).isFile() );
+        assertFalse( new File( moduleDir, "my-api-1.0-20120601.101010-3.jar" ).exists() );
+
+        final String moduleXml = fileRead( new File( moduleDir, "module.xml" ) );
+        assertTrue( moduleXml.contains( "name=\"" + SharedLibsConfigurator.DEFAULT_MODULE + "\"" ) );
+        assertTrue( moduleXml.contains( "path=\"gson-2.1.jar\"" ) );
+        assertTrue( moduleXml.contains( "name=\"javaee.api\"" ) );
+        assertFalse( moduleXml.contains( "jboss-logging" ) );
+        assertFalse( moduleXml.contains( "qarqas-test-harness" ) );
+    }
+
+    @Test
+    public void leavesJarsWithComponentsInTheWar()
+        throws Exception
+    {
+        final File asDir = temp.newFolder( "jboss-as" );
+        final File libs = temp.newFolder( "libs" );
+
+        final Properties config = new Properties();
+        config.setProperty( SetupArqASGoal.TEST_LIBRARIES,
+                            jar( libs, "beans-1.0.jar", "META-INF/beans.xml" ) + File.pathSeparator
+                                + jar( libs, "fragment-1.0.jar", "META-INF/web-fragment.xml" ) + File.pathSeparator
+                                + jar( libs, "taglib-1.0.jar", "META-INF/tags/c.tld" ) + File.pathSeparator
+                                + jar( libs, "plain-1.0.jar", "META-INF/plain.xml" ) );
+
+        final Map<String, String> exports =
+            new SharedLibsConfigurator().configure( asDir, config, new SystemStreamLog() );
+
+        assertThat( exports.get( SharedLibsConfigurator.JARS_EXPORT ), equalTo( "plain-1.0.jar" ) );
+    }
+
+    @Test
+    public void includesSnapshotsWhenAsked()
+        throws Exception
+    {
+        final File asDir = temp.newFolder( "jboss-as" );
+        final File libs = temp.newFolder( "libs" );
+        final String snapshot = jar( libs, "my-api-1.0-SNAPSHOT.jar" );
+
+        final Properties config = new Properties();
+        config.setProperty( SetupArqASGoal.TEST_LIBRARIES, snapshot );
+        config.setProperty( SetupArqASGoal.TEST_SNAPSHOT_LIBRARIES, snapshot );
+        config.setProperty( SharedLibsConfigurator.SNAPSHOTS_CONFIG, "true" );
+
+        final Map<String, String> exports =
+            new SharedLibsConfigurator().configure( asDir, config, new SystemStreamLog() );
+
+        assertThat( exports.get( SharedLibsConfigurator.JARS_EXPORT ), equalTo( "my-api-1.0-SNAPSHOT.jar" ) );
+    }
+
+    @Test
+    public void exportsNothingWithoutLibraries()
+        throws Exception
+    {
+        final File asDir = temp.newFolder( "jboss-as" );
+
+        final Map<String, String> exports =
+            new SharedLibsConfigurator().configure( asDir, new Properties(), new SystemStreamLog() );
+
+        assertTrue( exports.isEmpty() );
+        assertFalse( new File( asDir, "modules" ).exists() );
+    }
+
+    private String jar( final File dir, final String name, final String... entries )
+        throws Exception
+    {
+        final File jar = new File( dir, name );
+        final JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ) );
+        try
+        {
+            out.putNextEntry( new ZipEntry( name.replace( ".jar", ".txt" ) ) );
+            out.write( name.getBytes() );
+            for ( final String entry : entries )
+            {
+                out.putNextEntry( new ZipEntry( entry ) );
+            }
+        }
+        finally
+        {
+            IOUtil.close( out );
+        }
+
+        return jar.getAbsolutePath();
+    }
+
+}
@@ -0,0 +1,43 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.codehaus.plexus.util.FileUtils.fileRead;
+import static org.commonjava.maven.plugins.arqas.conf.ConfiguratorTestFixtures.installStandaloneXml;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.commonjava.maven.plugins.arqas.SetupArqASGoal;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SimplePortShiftConfiguratorTest
+{
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void offsetModeLeavesStandaloneXmlUntouched()
+        throws Exception
+    {
+        final File asDir = temp.newFolder( "jboss-as" );
+        final File standaloneXml = installStandaloneXml( asDir );
+        final String original = fileRead( standaloneXml );
+
+        final Properties config = new Properties();
+        config.setProperty( SimplePortShiftConfigurator.PORT_SHIFT_CONFIG, "100" );
+        config.setProperty( AbstractPortConfigurator.PORT_MODE_CONFIG, AbstractPortConfigurator.PORT_MODE_OFFSET );
+
+        new SimplePortShiftConfigurator().configure( asDir, config, new SystemStreamLog() );
+
+        assertThat( fileRead( standaloneXml ), equalTo( original ) );
+        assertThat( config.getProperty( SetupArqASGoal.MGMT_PORT ), equalTo( "10099" ) );
+        assertThat( config.getProperty( SetupArqASGoal.JAVA_VM_ARGS ),
+                    equalTo( SetupArqASGoal.DEFAULT_JAVA_VM_ARGS + " -Djboss.socket.binding.port-offset=100" ) );
+    }
+
+}
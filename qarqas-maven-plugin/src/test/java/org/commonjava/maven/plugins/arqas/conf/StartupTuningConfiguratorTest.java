@@ -0,0 +1,77 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.commonjava.maven.plugins.arqas.SetupArqASGoal;
+import org.junit.Test;
+
+public class StartupTuningConfiguratorTest
+{
+
+    @Test
+    public void parsesJavaVersions()
+    {
+        assertThat( StartupTuningConfigurator.getJavaVersion( javaVersion( "1.6" ) ), equalTo( 6 ) );
+        assertThat( StartupTuningConfigurator.getJavaVersion( javaVersion( "1.8" ) ), equalTo( 8 ) );
+        assertThat( StartupTuningConfigurator.getJavaVersion( javaVersion( "11" ) ), equalTo( 11 ) );
+        assertThat( StartupTuningConfigurator.getJavaVersion( javaVersion( "17.0.2" ) ), equalTo( 17 ) );
+    }
+
+    @Test
+    public void capsPermGenBeforeJava8()
+        throws Exception
+    {
+        final String args = tune( "1.7" );
+
+        assertTrue( args, args.contains( "-XX:MaxPermSize=256m" ) );
+        assertFalse( args, args.contains( "MaxMetaspaceSize" ) );
+        assertTrue( args, args.contains( "-XX:TieredStopAtLevel=1" ) );
+    }
+
+    @Test
+    public void capsMetaspaceFromJava8()
+        throws Exception
+    {
+        final String args = tune( "1.8" );
+
+        assertTrue( args, args.contains( "-XX:MaxMetaspaceSize=256m" ) );
+        assertFalse( args, args.contains( "MaxPermSize" ) );
+    }
+
+    @Test
+    public void leavesTieredCompilationAloneOnJava6()
+        throws Exception
+    {
+        final String args = tune( "1.6" );
+
+        assertFalse( args, args.contains( "TieredCompilation" ) );
+        assertTrue( args, args.contains( "-XX:+UseSerialGC" ) );
+    }
+
+    private static String tune( final String javaVersion )
+        throws Exception
+    {
+        final Properties config = javaVersion( javaVersion );
+        config.setProperty( SetupArqASGoal.JAVA_VM_ARGS, "" );
+
+        new StartupTuningConfigurator().configure( new File( "target/jboss-as" ), config, new SystemStreamLog() );
+
+        return config.getProperty( SetupArqASGoal.JAVA_VM_ARGS );
+    }
+
+    private static Properties javaVersion( final String version )
+    {
+        final Properties config = new Properties();
+        config.setProperty( StartupTuningConfigurator.JAVA_VERSION_CONFIG, version );
+
+        return config;
+    }
+
+}
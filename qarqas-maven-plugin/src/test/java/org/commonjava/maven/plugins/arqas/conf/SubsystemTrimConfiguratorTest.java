@@ -0,0 +1,66 @@
+package org.commonjava.maven.plugins.arqas.conf;
+
+import static org.codehaus.plexus.util.FileUtils.fileRead;
+import static org.commonjava.maven.plugins.arqas.conf.ConfiguratorTestFixtures.installStandaloneXml;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.hamcrest.CoreMatchers.nullValue;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.commonjava.maven.plugins.arqas.AbstractArqASGoal;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SubsystemTrimConfiguratorTest
+{
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void removesProfileSubsystemsAndTheirPortsOnly()
+        throws Exception
+    {
+        final File asDir = temp.newFolder( "jboss-as" );
+        final File standaloneXml = installStandaloneXml( asDir );
+
+        final Properties config = new Properties();
+        config.setProperty( AbstractArqASGoal.CONFIGURATOR_HINTS, "subsystem-trim, reservation" );
+        config.setProperty( SubsystemTrimConfigurator.PROFILE_CONFIG, "osgi,jmx" );
+
+        new SubsystemTrimConfigurator().configure( asDir, config, new SystemStreamLog() );
+
+        final String trimmed = fileRead( standaloneXml );
+        assertFalse( trimmed.contains( "org.jboss.as.osgi" ) );
+        assertFalse( trimmed.contains( "urn:jboss:domain:osgi:" ) );
+        assertFalse( trimmed.contains( "\"osgi-http\"" ) );
+        assertFalse( trimmed.contains( "\"jmx-connector-server\"" ) );
+        assertTrue( trimmed.contains( "org.jboss.as.jmx" ) );
+        assertTrue( trimmed.contains( "urn:jboss:domain:jmx:" ) );
+        assertTrue( trimmed.contains( "\"messaging\"" ) );
+
+        final PortConfiguration inUse = SubsystemTrimConfigurator.inUse( PortConfiguration.STANDARD, config );
+        assertThat( inUse.getKey(), equalTo( PortConfiguration.STANDARD.getKey() ) );
+        assertThat( inUse.getPort( "osgi-http" ), nullValue() );
+        assertThat( inUse.getPort( "jmx-connector-registry" ), nullValue() );
+        assertThat( inUse.getPort( "messaging" ), equalTo( 5445 ) );
+    }
+
+    @Test
+    public void keepsAllPortsWhenNotInUse()
+    {
+        final Properties config = new Properties();
+        config.setProperty( AbstractArqASGoal.CONFIGURATOR_HINTS, "reservation" );
+
+        assertThat( SubsystemTrimConfigurator.inUse( PortConfiguration.STANDARD, config ),
+                    equalTo( PortConfiguration.STANDARD ) );
+    }
+
+}
@@ -0,0 +1,63 @@
+package org.commonjava.maven.plugins.arqas.instance;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.util.Properties;
+
+import org.apache.maven.plugin.logging.Log;
+import org.apache.maven.plugin.logging.SystemStreamLog;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BootHistoryTest
+{
+
+    private static final String DISTRIBUTION = "jboss-as-7.1.1.Final";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void unknownBootsAreMinusOne()
+    {
+        assertThat( BootHistory.getBootMillis( new Properties(), DISTRIBUTION, false ), equalTo( -1L ) );
+    }
+
+    @Test
+    public void keepsTunedAndDefaultBootsApartAcrossInstances()
+        throws Exception
+    {
+        final File file = new File( temp.getRoot(), "history/boot-history.properties" );
+        final Log log = new SystemStreamLog();
+
+        new BootHistory( file ).record( DISTRIBUTION, false, 9000, log );
+        new BootHistory( file ).record( DISTRIBUTION, true, 4000, log );
+
+        // a later build reloads what earlier builds wrote.
+        final Properties history = new BootHistory( file ).record( "jboss-as-7.1.0.Final", true, 5000, log );
+
+        assertThat( BootHistory.getBootMillis( history, DISTRIBUTION, false ), equalTo( 9000L ) );
+        assertThat( BootHistory.getBootMillis( history, DISTRIBUTION, true ), equalTo( 4000L ) );
+        assertThat( BootHistory.getBootMillis( history, "jboss-as-7.1.0.Final", true ), equalTo( 5000L ) );
+    }
+
+    @Test
+    public void latestBootReplacesTheLastOne()
+        throws Exception
+    {
+        final File file = new File( temp.getRoot(), "boot-history.properties" );
+        final BootHistory bootHistory = new BootHistory( file );
+        final Log log = new SystemStreamLog();
+
+        bootHistory.record( DISTRIBUTION, true, 4000, log );
+        final Properties history = bootHistory.record( DISTRIBUTION, true, 3500, log );
+
+        assertThat( BootHistory.getBootMillis( history, DISTRIBUTION, true ), equalTo( 3500L ) );
+        assertThat( temp.getRoot()
+                        .list().length, equalTo( 1 ) );
+    }
+
+}
@@ -0,0 +1,23 @@
+package org.commonjava.qarqas.lib;
+
+/**
+ * Libraries that JBossAS already provides, or that belong to the Arquillian test infrastructure, so they must not be
+ * packaged with the code under test. The test harness leaves these out of test WARs, and the Maven plugin's
+ * 'shared-libs' configurator leaves them out of the shared module.
+ */
+public final class ProvidedLibraries
+{
+
+    /**
+     * Comma-separated regular expressions, matched against jar file names.
+     */
+    public static final String FILE_PATTERNS =
+        "jboss.+,arquillian.+,jbosgi.+,jsoup.+,cal10n.+,cdi-api.+,commons-httpclient.+,el-api.+,guava.+,httpserver.+,"
+            + "jandex.+,javassist.+,javax.inject.+,jaxrs-api.+,jcip-annotations.+,jsr250-api.+,shrinkwrap.+,"
+            + "staxmapper.+,tjws.+,weld.+,xnio.+,resteasy.+,scannotation.+";
+
+    private ProvidedLibraries()
+    {
+    }
+
+}
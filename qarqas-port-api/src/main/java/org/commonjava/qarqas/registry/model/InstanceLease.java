@@ -0,0 +1,122 @@
+package org.commonjava.qarqas.registry.model;
+
+/**
+ * A pre-booted JBossAS instance from the registry's warm instance pool, leased to a single client. The instance runs
+ * on the ports in its {@link PortConfiguration}, and is managed through its management-native port.
+ */
+public class InstanceLease
+{
+
+    private Integer key;
+
+    private String jbossHome;
+
+    private String managementAddress;
+
+    private PortConfiguration ports;
+
+    private Long leasePeriod;
+
+    public InstanceLease( final Integer key, final String jbossHome, final String managementAddress,
+                          final PortConfiguration ports )
+    {
+        this( key, jbossHome, managementAddress, ports, null );
+    }
+
+    /**
+     * @param leasePeriod milliseconds until the lease expires, as granted by the pool.
+     */
+    public InstanceLease( final Integer key, final String jbossHome, final String managementAddress,
+                          final PortConfiguration ports, final Long leasePeriod )
+    {
+        this.key = key;
+        this.jbossHome = jbossHome;
+        this.managementAddress = managementAddress;
+        this.ports = ports;
+        this.leasePeriod = leasePeriod;
+    }
+
+    InstanceLease()
+    {
+    }
+
+    public Integer getKey()
+    {
+        return key;
+    }
+
+    public String getJbossHome()
+    {
+        return jbossHome;
+    }
+
+    public String getManagementAddress()
+    {
+        return managementAddress;
+    }
+
+    public PortConfiguration getPorts()
+    {
+        return ports;
+    }
+
+    /**
+     * @return milliseconds until the lease expires unless it's renewed, or null if the pool didn't say.
+     */
+    public Long getLeasePeriod()
+    {
+        return leasePeriod;
+    }
+
+    public Integer getManagementPort()
+    {
+        return ports == null ? null : ports.getPort( "management-native" );
+    }
+
+    @Override
+    public int hashCode()
+    {
+        final int prime = 31;
+        int result = 1;
+        result = prime * result + ( ( key == null ) ? 0 : key.hashCode() );
+        return result;
+    }
+
+    @Override
+    public boolean equals( final Object obj )
+    {
+        if ( this == obj )
+        {
+            return true;
+        }
+        if ( obj == null )
+        {
+            return false;
+        }
+        if ( getClass() != obj.getClass() )
+        {
+            return false;
+        }
+        final InstanceLease other = (InstanceLease) obj;
+        if ( key == null )
+        {
+            if ( other.key != null )
+            {
+                return false;
+            }
+        }
+        else if ( !key.equals( other.key ) )
+        {
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "InstanceLease [key=" + key + ", jbossHome=" + jbossHome + ", managementAddress=" + managementAddress
+            + ", managementPort=" + getManagementPort() + "]";
+    }
+
+}
@@ -0,0 +1,70 @@
+package org.commonjava.qarqas.registry.conf;
+
+import java.io.File;
+
+import javax.inject.Singleton;
+
+/**
+ * Configuration for the warm JBossAS instance pool, read from system properties of the JVM hosting the registry:
+ * <ul>
+ * <li><b>qarqas.pool.size</b> - number of instances to keep booted (default: 0, which disables the pool)</li>
+ * <li><b>qarqas.pool.distribution</b> - unpacked JBossAS distribution to copy for each pooled instance</li>
+ * <li><b>qarqas.pool.dir</b> - where pooled instances are created (default: ${java.io.tmpdir}/qarqas-pool)</li>
+ * <li><b>qarqas.pool.javaOpts</b> - JVM options for pooled instances</li>
+ * <li><b>qarqas.pool.leasePeriod</b> - default lease period, in milliseconds (default: 30 mins.)</li>
+ * </ul>
+ */
+@Singleton
+public class InstancePoolConfig
+{
+
+    public static final String POOL_SIZE = "qarqas.pool.size";
+
+    public static final String POOL_DISTRIBUTION = "qarqas.pool.distribution";
+
+    public static final String POOL_DIR = "qarqas.pool.dir";
+
+    public static final String POOL_JAVA_OPTS = "qarqas.pool.javaOpts";
+
+    public static final String POOL_LEASE_PERIOD = "qarqas.pool.leasePeriod";
+
+    private static final String DEFAULT_JAVA_OPTS = "-Xmx512m -XX:MaxPermSize=128m";
+
+    private static final long DEFAULT_LEASE_PERIOD = 30 * 60 * 1000; // 30 mins.
+
+    private static final long STARTUP_TIMEOUT = 2 * 60 * 1000; // 2 mins.
+
+    public int getPoolSize()
+    {
+        return Integer.parseInt( System.getProperty( POOL_SIZE, "0" ) );
+    }
+
+    public File getDistribution()
+    {
+        final String dist = System.getProperty( POOL_DISTRIBUTION );
+        return dist == null ? null : new File( dist );
+    }
+
+    public File getPoolDir()
+    {
+        return new File( System.getProperty( POOL_DIR, new File( System.getProperty( "java.io.tmpdir" ),
+                                                                 "qarqas-pool" ).getPath() ) );
+    }
+
+    public String getJavaOpts()
+    {
+        return System.getProperty( POOL_JAVA_OPTS, DEFAULT_JAVA_OPTS );
+    }
+
+    public long getLeasePeriod()
+    {
+        final String period = System.getProperty( POOL_LEASE_PERIOD );
+        return period == null ? DEFAULT_LEASE_PERIOD : Long.parseLong( period );
+    }
+
+    public long getStartupTimeout()
+    {
+        return STARTUP_TIMEOUT;
+    }
+
+}
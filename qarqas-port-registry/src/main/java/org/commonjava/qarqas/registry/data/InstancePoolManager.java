@@ -0,0 +1,348 @@
+package org.commonjava.qarqas.registry.data;
+
+import static org.commonjava.qarqas.registry.model.PortConfiguration.STANDARD;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.commonjava.qarqas.registry.conf.InstancePoolConfig;
+import org.commonjava.qarqas.registry.data.PooledInstance.State;
+import org.commonjava.qarqas.registry.model.InstanceLease;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+import org.commonjava.util.logging.Logger;
+
+/**
+ * Keeps a configurable number of JBossAS instances booted and ready, each on its own port configuration reserved from
+ * the {@link PortDataManager}, and leases whole instances to builds. When a lease is released (or expires) the
+ * instance is recycled: if its client left it clean it goes straight back into the pool, otherwise it is stopped,
+ * scrubbed back to the state of the distribution, and restarted.
+ */
+@Singleton
+public class InstancePoolManager
+{
+
+    private static final String POOL_CLIENT_PREFIX = "qarqas-pool-";
+
+    private static final long RENEW_INTERVAL = 60 * 1000;
+
+    private final Logger logger = new Logger( getClass() );
+
+    @Inject
+    private PortDataManager data;
+
+    @Inject
+    private InstancePoolConfig config;
+
+    private final List<PooledInstance> instances = new ArrayList<PooledInstance>();
+
+    private ExecutorService recycler;
+
+    private Timer timer;
+
+    private boolean initialized;
+
+    public synchronized void initialize()
+        throws PortDataException
+    {
+        if ( initialized )
+        {
+            return;
+        }
+
+        initialized = true;
+
+        final int size = config.getPoolSize();
+        final File distribution = config.getDistribution();
+        if ( size < 1 || distribution == null )
+        {
+            logger.info( "Warm instance pool is disabled. Set -D%s and -D%s to enable it.",
+                         InstancePoolConfig.POOL_SIZE, InstancePoolConfig.POOL_DISTRIBUTION );
+            return;
+        }
+
+        if ( !distribution.isDirectory() )
+        {
+            throw new PortDataException( "Pool distribution: %s is not a directory.", distribution );
+        }
+
+        recycler = Executors.newCachedThreadPool();
+        for ( int i = 0; i < size; i++ )
+        {
+            final PortConfiguration ports = data.reserve( POOL_CLIENT_PREFIX + i, null );
+            if ( ports == null )
+            {
+                logger.warn( "No port configuration available for pooled instance: %s. "
+                    + "Pool will only contain %s instances.", i, i );
+                break;
+            }
+
+            final PooledInstance instance =
+                new PooledInstance( i, new File( config.getPoolDir(), "instance-" + i ), ports );
+            instances.add( instance );
+            recycler.execute( new CreateTask( instance, distribution ) );
+        }
+
+        timer = new Timer( true );
+        timer.schedule( new MaintenanceTask(), 1000, 1000 );
+        timer.schedule( new RenewTask(), RENEW_INTERVAL, RENEW_INTERVAL );
+    }
+
+    @PreDestroy
+    public synchronized void destroy()
+    {
+        if ( timer != null )
+        {
+            timer.cancel();
+            timer = null;
+        }
+
+        if ( recycler != null )
+        {
+            recycler.shutdownNow();
+            recycler = null;
+        }
+
+        for ( final PooledInstance instance : instances )
+        {
+            instance.stop( 30000 );
+            try
+            {
+                data.release( instance.getPorts(), POOL_CLIENT_PREFIX + instance.getKey() );
+            }
+            catch ( final PortDataException e )
+            {
+                logger.error( "Failed to release ports of pooled instance: %s. Reason: %s", e, instance.getKey(),
+                              e.getMessage() );
+            }
+        }
+
+        instances.clear();
+        initialized = false;
+    }
+
+    /**
+     * Lease a ready instance to the given client, or renew the client's existing lease.
+     *
+     * @return null if no instance is ready.
+     */
+    public synchronized InstanceLease lease( final String clientKey, final Long expiration )
+    {
+        PooledInstance leased = find( clientKey );
+        if ( leased == null )
+        {
+            for ( final PooledInstance instance : instances )
+            {
+                if ( instance.getState() == State.READY )
+                {
+                    leased = instance;
+                    break;
+                }
+            }
+        }
+
+        if ( leased == null )
+        {
+            return null;
+        }
+
+        logger.info( "LEASE INSTANCE: %s TO CLIENT: %s", leased.getKey(), clientKey );
+        leased.lease( clientKey, expires( expiration ) );
+
+        return leased.toLease();
+    }
+
+    public synchronized boolean release( final String clientKey )
+    {
+        final PooledInstance instance = find( clientKey );
+        if ( instance == null )
+        {
+            return false;
+        }
+
+        logger.info( "RELEASE INSTANCE: %s FROM CLIENT: %s", instance.getKey(), clientKey );
+        recycle( instance );
+
+        return true;
+    }
+
+    private PooledInstance find( final String clientKey )
+    {
+        for ( final PooledInstance instance : instances )
+        {
+            if ( instance.getState() == State.LEASED && clientKey.equals( instance.getClientKey() ) )
+            {
+                return instance;
+            }
+        }
+
+        return null;
+    }
+
+    private void recycle( final PooledInstance instance )
+    {
+        instance.clearLease();
+        instance.setState( State.RECYCLING );
+        recycler.execute( new RecycleTask( instance ) );
+    }
+
+    private Date expires( final Long expiration )
+    {
+        final long period = config.getLeasePeriod();
+        final long duration = expiration == null || expiration > period * 2 ? period : expiration;
+        return new Date( System.currentTimeMillis() + duration );
+    }
+
+    private synchronized void maintain()
+    {
+        final Date now = new Date();
+        for ( final PooledInstance instance : instances )
+        {
+            final State state = instance.getState();
+            if ( state == State.STARTING )
+            {
+                if ( instance.isBooted() )
+                {
+                    logger.info( "READY: pooled instance %s", instance.getKey() );
+                    instance.setState( State.READY );
+                }
+                else if ( !instance.isAlive()
+                    || System.currentTimeMillis() - instance.getStartedAt() > config.getStartupTimeout() )
+                {
+                    logger.error( "Pooled instance: %s failed to start.", instance.getKey() );
+                    instance.stop( 30000 );
+                    instance.setState( State.FAILED );
+                }
+            }
+            else if ( state == State.LEASED && now.after( instance.getExpiration() ) )
+            {
+                logger.info( "EXPIRE LEASE: pooled instance %s FROM CLIENT: %s", instance.getKey(),
+                             instance.getClientKey() );
+                recycle( instance );
+            }
+            else if ( state == State.READY && !instance.isAlive() )
+            {
+                logger.warn( "Pooled instance: %s died. Recycling.", instance.getKey() );
+                recycle( instance );
+            }
+        }
+    }
+
+    private void start( final PooledInstance instance )
+        throws IOException
+    {
+        final PortConfiguration ports = instance.getPorts();
+        final int offset = ports.getPort( "http" ) - STANDARD.getPort( "http" );
+        instance.start( config.getJavaOpts(), offset );
+    }
+
+    private final class CreateTask
+        implements Runnable
+    {
+        private final PooledInstance instance;
+
+        private final File distribution;
+
+        CreateTask( final PooledInstance instance, final File distribution )
+        {
+            this.instance = instance;
+            this.distribution = distribution;
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                instance.create( distribution );
+                start( instance );
+            }
+            catch ( final IOException e )
+            {
+                logger.error( "Failed to create pooled instance: %s. Reason: %s", e, instance.getKey(),
+                              e.getMessage() );
+                instance.setState( State.FAILED );
+            }
+        }
+    }
+
+    private final class RecycleTask
+        implements Runnable
+    {
+        private final PooledInstance instance;
+
+        RecycleTask( final PooledInstance instance )
+        {
+            this.instance = instance;
+        }
+
+        @Override
+        public void run()
+        {
+            if ( !instance.isDirty() )
+            {
+                logger.info( "RECYCLE: pooled instance %s is clean.", instance.getKey() );
+                instance.setState( State.READY );
+                return;
+            }
+
+            logger.info( "RECYCLE: pooled instance %s is dirty. Scrubbing and restarting.", instance.getKey() );
+            try
+            {
+                instance.scrub( config.getDistribution() );
+                start( instance );
+            }
+            catch ( final IOException e )
+            {
+                logger.error( "Failed to recycle pooled instance: %s. Reason: %s", e, instance.getKey(),
+                              e.getMessage() );
+                instance.setState( State.FAILED );
+            }
+        }
+    }
+
+    private final class MaintenanceTask
+        extends TimerTask
+    {
+        @Override
+        public void run()
+        {
+            maintain();
+        }
+    }
+
+    private final class RenewTask
+        extends TimerTask
+    {
+        @Override
+        public void run()
+        {
+            synchronized ( InstancePoolManager.this )
+            {
+                for ( final PooledInstance instance : instances )
+                {
+                    try
+                    {
+                        data.renew( instance.getPorts(), null );
+                    }
+                    catch ( final PortDataException e )
+                    {
+                        logger.error( "Failed to renew ports of pooled instance: %s. Reason: %s", e,
+                                      instance.getKey(), e.getMessage() );
+                    }
+                }
+            }
+        }
+    }
+
+}
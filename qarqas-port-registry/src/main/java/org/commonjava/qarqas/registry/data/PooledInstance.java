@@ -0,0 +1,484 @@
+package org.commonjava.qarqas.registry.data;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import org.commonjava.qarqas.registry.model.InstanceLease;
+import org.commonjava.qarqas.registry.model.PortConfiguration;
+import org.commonjava.util.logging.Logger;
+
+/**
+ * One JBossAS instance in the warm instance pool: a private copy of the pool's distribution, running on its own
+ * reserved port configuration (applied as a socket-binding port offset, so the copied configuration is untouched).
+ */
+public class PooledInstance
+{
+
+    public enum State
+    {
+        CREATING, STARTING, READY, LEASED, RECYCLING, FAILED;
+    }
+
+    private static final String STARTED_MESSAGE = "JBAS015874";
+
+    private static final String STARTED_WITH_ERRORS_MESSAGE = "JBAS015875";
+
+    private static final String STANDALONE_XML = "standalone/configuration/standalone.xml";
+
+    private static final String[] SCRUB_DIRS = { "standalone/deployments", "standalone/data", "standalone/tmp" };
+
+    private final Logger logger = new Logger( getClass() );
+
+    private final Integer key;
+
+    private final File jbossHome;
+
+    private final PortConfiguration ports;
+
+    private State state = State.CREATING;
+
+    private Process process;
+
+    private boolean booted;
+
+    private long startedAt;
+
+    private String clientKey;
+
+    private Date expiration;
+
+    public PooledInstance( final Integer key, final File jbossHome, final PortConfiguration ports )
+    {
+        this.key = key;
+        this.jbossHome = jbossHome;
+        this.ports = ports;
+    }
+
+    public Integer getKey()
+    {
+        return key;
+    }
+
+    public PortConfiguration getPorts()
+    {
+        return ports;
+    }
+
+    public synchronized State getState()
+    {
+        return state;
+    }
+
+    public synchronized void setState( final State state )
+    {
+        this.state = state;
+    }
+
+    public synchronized String getClientKey()
+    {
+        return clientKey;
+    }
+
+    public synchronized Date getExpiration()
+    {
+        return expiration;
+    }
+
+    public synchronized void lease( final String clientKey, final Date expiration )
+    {
+        this.clientKey = clientKey;
+        this.expiration = expiration;
+        this.state = State.LEASED;
+    }
+
+    public synchronized void clearLease()
+    {
+        this.clientKey = null;
+        this.expiration = null;
+    }
+
+    /**
+     * The lease carries the time left on it, so the client can schedule its renewals without knowing the pool's lease
+     * period (or trusting its own clock).
+     */
+    public synchronized InstanceLease toLease()
+    {
+        final Long remaining =
+            expiration == null ? null : Math.max( 0, expiration.getTime() - System.currentTimeMillis() );
+
+        return new InstanceLease( key, jbossHome.getAbsolutePath(), "127.0.0.1", ports, remaining );
+    }
+
+    /**
+     * Copy the distribution into this instance's directory, replacing anything that was there.
+     */
+    public void create( final File distribution )
+        throws IOException
+    {
+        delete( jbossHome );
+        copy( distribution, jbossHome );
+    }
+
+    public synchronized void start( final String javaOpts, final int portOffset )
+        throws IOException
+    {
+        final List<String> cmd = new ArrayList<String>();
+        cmd.add( "sh" );
+        cmd.add( new File( jbossHome, "bin/standalone.sh" ).getAbsolutePath() );
+
+        final ProcessBuilder pb = new ProcessBuilder( cmd );
+        pb.directory( jbossHome );
+        pb.redirectErrorStream( true );
+
+        final Map<String, String> env = pb.environment();
+        env.put( "JBOSS_HOME", jbossHome.getAbsolutePath() );
+        env.put( "JAVA_OPTS", javaOpts + " -Djboss.socket.binding.port-offset=" + portOffset );
+        env.put( "LAUNCH_JBOSS_IN_BACKGROUND", "true" );
+
+        logger.info( "Starting pooled instance: %s in: %s", key, jbossHome );
+
+        booted = false;
+        startedAt = System.currentTimeMillis();
+        state = State.STARTING;
+        process = pb.start();
+
+        final Thread pump = new Thread( new ConsolePump( this, process ), "qarqas-pool-console-" + key );
+        pump.setDaemon( true );
+        pump.start();
+    }
+
+    /**
+     * @return true once AS has reported that it finished booting and its management port accepts connections.
+     */
+    public synchronized boolean isBooted()
+    {
+        return booted && isListening( ports.getPort( "management-native" ) );
+    }
+
+    public synchronized long getStartedAt()
+    {
+        return startedAt;
+    }
+
+    public synchronized boolean isAlive()
+    {
+        if ( process == null )
+        {
+            return false;
+        }
+
+        try
+        {
+            process.exitValue();
+            return false;
+        }
+        catch ( final IllegalThreadStateException e )
+        {
+            return true;
+        }
+    }
+
+    /**
+     * An instance is dirty if its client left anything deployed, or if its process has died.
+     */
+    public boolean isDirty()
+    {
+        if ( !isAlive() )
+        {
+            return true;
+        }
+
+        final File deployments = new File( jbossHome, "standalone/deployments" );
+        final String[] deployed = deployments.list();
+        if ( deployed != null )
+        {
+            for ( final String name : deployed )
+            {
+                if ( !name.endsWith( ".txt" ) )
+                {
+                    return true;
+                }
+            }
+        }
+
+        try
+        {
+            return readFile( new File( jbossHome, STANDALONE_XML ) ).contains( "<deployments>" );
+        }
+        catch ( final IOException e )
+        {
+            logger.error( "Cannot read configuration of pooled instance: %s. Reason: %s", e, key, e.getMessage() );
+            return true;
+        }
+    }
+
+    /**
+     * Stop the instance and restore its configuration and content to the state of the distribution.
+     */
+    public void scrub( final File distribution )
+        throws IOException
+    {
+        stop( 30000 );
+
+        for ( final String dir : SCRUB_DIRS )
+        {
+            final File d = new File( jbossHome, dir );
+            delete( d );
+            final File original = new File( distribution, dir );
+            if ( original.exists() )
+            {
+                copy( original, d );
+            }
+        }
+
+        copy( new File( distribution, STANDALONE_XML ), new File( jbossHome, STANDALONE_XML ) );
+    }
+
+    public void stop( final long timeout )
+    {
+        final Process p;
+        synchronized ( this )
+        {
+            p = process;
+            process = null;
+            booted = false;
+        }
+
+        if ( p == null )
+        {
+            return;
+        }
+
+        logger.info( "Stopping pooled instance: %s", key );
+        p.destroy();
+
+        final long deadline = System.currentTimeMillis() + timeout;
+        while ( System.currentTimeMillis() < deadline )
+        {
+            try
+            {
+                p.exitValue();
+                return;
+            }
+            catch ( final IllegalThreadStateException e )
+            {
+                try
+                {
+                    Thread.sleep( 250 );
+                }
+                catch ( final InterruptedException ie )
+                {
+                    Thread.currentThread()
+                          .interrupt();
+                    return;
+                }
+            }
+        }
+
+        logger.warn( "Pooled instance: %s did not stop within %sms.", key, timeout );
+    }
+
+    private synchronized void consoleLine( final Process source, final String line )
+    {
+        if ( source == process && !booted
+            && ( line.contains( STARTED_MESSAGE ) || line.contains( STARTED_WITH_ERRORS_MESSAGE ) ) )
+        {
+            booted = true;
+        }
+    }
+
+    private static boolean isListening( final Integer port )
+    {
+        if ( port == null )
+        {
+            return false;
+        }
+
+        Socket sock = null;
+        try
+        {
+            sock = new Socket( InetAddress.getByAddress( new byte[] { 0x7f, 0x0, 0x0, 0x1 } ), port );
+            return true;
+        }
+        catch ( final IOException e )
+        {
+            return false;
+        }
+        finally
+        {
+            if ( sock != null )
+            {
+                try
+                {
+                    sock.close();
+                }
+                catch ( final IOException e )
+                {
+                }
+            }
+        }
+    }
+
+    private static String readFile( final File file )
+        throws IOException
+    {
+        final StringBuilder sb = new StringBuilder();
+        final BufferedReader reader = new BufferedReader( new FileReader( file ) );
+        try
+        {
+            String line = null;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                sb.append( line )
+                  .append( '\n' );
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+
+        return sb.toString();
+    }
+
+    private static void copy( final File from, final File to )
+        throws IOException
+    {
+        if ( from.isDirectory() )
+        {
+            to.mkdirs();
+            final String[] names = from.list();
+            if ( names != null )
+            {
+                for ( final String name : names )
+                {
+                    copy( new File( from, name ), new File( to, name ) );
+                }
+            }
+            return;
+        }
+
+        to.getParentFile()
+          .mkdirs();
+
+        final InputStream in = new FileInputStream( from );
+        try
+        {
+            final OutputStream out = new FileOutputStream( to );
+            try
+            {
+                final byte[] buf = new byte[16384];
+                int read = -1;
+                while ( ( read = in.read( buf ) ) > -1 )
+                {
+                    out.write( buf, 0, read );
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+        }
+        finally
+        {
+            in.close();
+        }
+
+        if ( from.canExecute() )
+        {
+            to.setExecutable( true );
+        }
+    }
+
+    private static void delete( final File file )
+        throws IOException
+    {
+        if ( file.isDirectory() )
+        {
+            final File[] children = file.listFiles();
+            if ( children != null )
+            {
+                for ( final File child : children )
+                {
+                    delete( child );
+                }
+            }
+        }
+
+        if ( file.exists() && !file.delete() )
+        {
+            throw new IOException( "Cannot delete: " + file );
+        }
+    }
+
+    private static final class ConsolePump
+        implements Runnable
+    {
+        private final PooledInstance instance;
+
+        private final Process process;
+
+        ConsolePump( final PooledInstance instance, final Process process )
+        {
+            this.instance = instance;
+            this.process = process;
+        }
+
+        @Override
+        public void run()
+        {
+            BufferedReader reader = null;
+            PrintWriter writer = null;
+            try
+            {
+                reader = new BufferedReader( new InputStreamReader( process.getInputStream() ) );
+                writer = new PrintWriter( new FileWriter( new File( instance.jbossHome, "console.log" ) ), true );
+
+                String line = null;
+                while ( ( line = reader.readLine() ) != null )
+                {
+                    writer.println( line );
+                    instance.consoleLine( process, line );
+                }
+            }
+            catch ( final IOException e )
+            {
+                instance.logger.warn( "Lost console output of pooled instance: %s. Reason: %s", instance.key,
+                                      e.getMessage() );
+            }
+            finally
+            {
+                if ( writer != null )
+                {
+                    writer.close();
+                }
+                if ( reader != null )
+                {
+                    try
+                    {
+                        reader.close();
+                    }
+                    catch ( final IOException e )
+                    {
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,72 @@
+package org.commonjava.qarqas.registry.rest;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+import javax.ws.rs.DELETE;
+import javax.ws.rs.GET;
+import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
+import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.Status;
+
+import org.commonjava.qarqas.registry.data.InstancePoolManager;
+import org.commonjava.qarqas.registry.model.InstanceLease;
+
+import com.google.gson.GsonBuilder;
+
+@Singleton
+@Path( "/instance" )
+public class InstancePoolResource
+{
+
+    @Inject
+    private InstancePoolManager pool;
+
+    @GET
+    @Path( "/{clientId}" )
+    @Produces( "application/json" )
+    public Response lease( @PathParam( "clientId" ) final String clientKey,
+                           @QueryParam( "expires" ) final Long expiration )
+    {
+        if ( clientKey == null )
+        {
+            return Response.status( Status.BAD_REQUEST )
+                           .build();
+        }
+
+        final InstanceLease lease = pool.lease( clientKey, expiration );
+        if ( lease != null )
+        {
+            return Response.ok( new GsonBuilder().setPrettyPrinting()
+                                                 .create()
+                                                 .toJson( lease ) )
+                           .build();
+        }
+
+        return Response.status( Status.SERVICE_UNAVAILABLE )
+                       .build();
+    }
+
+    @DELETE
+    @Path( "/{clientId}" )
+    public Response release( @PathParam( "clientId" ) final String clientKey )
+    {
+        if ( clientKey == null )
+        {
+            return Response.status( Status.BAD_REQUEST )
+                           .build();
+        }
+
+        if ( pool.release( clientKey ) )
+        {
+            return Response.ok( "Instance leased to: " + clientKey + " was released." )
+                           .build();
+        }
+
+        return Response.ok( "No instance was leased, or lease had already expired." )
+                       .build();
+    }
+
+}
@@ -5,6 +5,7 @@ import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 import javax.servlet.annotation.WebListener;
 
+import org.commonjava.qarqas.registry.data.InstancePoolManager;
 import org.commonjava.qarqas.registry.data.PortDataException;
 import org.commonjava.qarqas.registry.data.PortDataManager;
 
@@ -16,12 +17,16 @@ public class DataManagerCtl
     @Inject
     private PortDataManager data;
 
+    @Inject
+    private InstancePoolManager pool;
+
     @Override
     public void contextInitialized( final ServletContextEvent sce )
     {
         try
         {
             data.initialize();
+            pool.initialize();
         }
         catch ( final PortDataException e )
         {
@@ -33,6 +38,7 @@ public class DataManagerCtl
     @Override
     public void contextDestroyed( final ServletContextEvent sce )
     {
+        pool.destroy();
         data.destroy();
     }
 
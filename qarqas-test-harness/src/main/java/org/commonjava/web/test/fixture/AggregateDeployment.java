@@ -0,0 +1,219 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.commonjava.util.logging.Logger;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ArchivePath;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+
+/**
+ * Holds the aggregate deployments built by {@link TestWarArchiveBuilder}: one archive per distinct builder
+ * configuration, containing all of the module's test classes, which every test class with that configuration shares.
+ * Each caller gets a copy of the aggregate, so a copy that is modified after it was handed out doesn't change what
+ * other test classes deploy. Copies are checked as soon as Arquillian has generated them from the @Deployment method
+ * (see {@link AggregateScenarioGenerator}), before archive processors and the protocol packager add to them.
+ * {@link AggregateDeploymentObserver} deploys each aggregate once for all of its unmodified copies, and undeploys it at
+ * the end of the suite; a modified copy is deployed on its own, like any other deployment.
+ */
+final class AggregateDeployment
+{
+
+    private static final Logger logger = new Logger( AggregateDeployment.class );
+
+    private static final Map<String, WebArchive> ARCHIVES = new HashMap<String, WebArchive>();
+
+    /**
+     * Content of each aggregate, by fingerprint, to check its copies against.
+     */
+    private static final Map<String, Map<String, Asset>> CONTENTS = new HashMap<String, Map<String, Asset>>();
+
+    /**
+     * Copies handed out but not yet generated into a deployment, by fingerprint.
+     */
+    private static final Map<Archive<?>, String> COPIES = new IdentityHashMap<Archive<?>, String>();
+
+    /**
+     * Copies that were unmodified when their deployment was generated, and haven't been deployed yet.
+     */
+    private static final Set<Archive<?>> UNMODIFIED =
+        Collections.newSetFromMap( new IdentityHashMap<Archive<?>, Boolean>() );
+
+    private static final Set<String> NAMES = new HashSet<String>();
+
+    private AggregateDeployment()
+    {
+    }
+
+    /**
+     * @param builder builds the archive if there is none with this fingerprint yet.
+     * @return a new copy of the aggregate with this fingerprint.
+     */
+    static synchronized WebArchive get( final String fingerprint, final Callable<WebArchive> builder )
+    {
+        WebArchive archive = ARCHIVES.get( fingerprint );
+        if ( archive == null )
+        {
+            archive = build( fingerprint, builder );
+        }
+
+        final WebArchive copy = ShrinkWrap.create( WebArchive.class, archive.getName() );
+        copy.merge( archive );
+        COPIES.put( copy, fingerprint );
+
+        return copy;
+    }
+
+    private static WebArchive build( final String fingerprint, final Callable<WebArchive> builder )
+    {
+        final long start = System.currentTimeMillis();
+
+        WebArchive archive;
+        try
+        {
+            archive = builder.call();
+        }
+        catch ( final Exception e )
+        {
+            throw new RuntimeException( "Failed to build aggregate deployment: " + e.getMessage(), e );
+        }
+
+        // aggregates are deployed side by side, so a second configuration needs a name of its own.
+        if ( !NAMES.add( archive.getName() ) )
+        {
+            final WebArchive renamed = ShrinkWrap.create( WebArchive.class, uniqueName( archive.getName() ) );
+            renamed.merge( archive );
+            archive = renamed;
+        }
+
+        logger.info( "Built aggregate deployment: %s in %d ms", archive.getName(), System.currentTimeMillis() - start );
+
+        ARCHIVES.put( fingerprint, archive );
+        CONTENTS.put( fingerprint, content( archive ) );
+
+        return archive;
+    }
+
+    /**
+     * Check whether a generated deployment archive is a copy of an aggregate, with exactly the aggregate's content.
+     * Must be called before anything packages the archive for deployment.
+     */
+    static synchronized void generated( final Archive<?> archive )
+    {
+        final String fingerprint = COPIES.remove( archive );
+        if ( fingerprint == null )
+        {
+            return;
+        }
+
+        if ( sameContent( archive, CONTENTS.get( fingerprint ) ) )
+        {
+            UNMODIFIED.add( archive );
+        }
+        else
+        {
+            logger.warn( "Aggregate deployment: %s was modified after it was built. Deploying it separately.",
+                         archive.getName() );
+        }
+    }
+
+    /**
+     * Forget the archive, which is about to be deployed.
+     * 
+     * @return true if it is a copy of an aggregate that was unmodified when its deployment was generated.
+     */
+    static synchronized boolean deploying( final Archive<?> archive )
+    {
+        return archive != null && UNMODIFIED.remove( archive );
+    }
+
+    /**
+     * Forget all copies handed out so far, once nothing will deploy them any more.
+     */
+    static synchronized void forgetCopies()
+    {
+        COPIES.clear();
+        UNMODIFIED.clear();
+    }
+
+    private static Map<String, Asset> content( final Archive<?> archive )
+    {
+        final Map<String, Asset> content = new HashMap<String, Asset>();
+        for ( final Map.Entry<ArchivePath, Node> entry : archive.getContent()
+                                                                .entrySet() )
+        {
+            content.put( entry.getKey()
+                              .get(), entry.getValue()
+                                           .getAsset() );
+        }
+
+        return content;
+    }
+
+    /**
+     * Copies share the aggregate's asset instances, so comparing assets by identity is enough to tell whether anything
+     * was added, removed or replaced.
+     */
+    private static boolean sameContent( final Archive<?> archive, final Map<String, Asset> expected )
+    {
+        final Map<ArchivePath, Node> content = archive.getContent();
+        if ( content.size() != expected.size() )
+        {
+            return false;
+        }
+
+        for ( final Map.Entry<ArchivePath, Node> entry : content.entrySet() )
+        {
+            final String path = entry.getKey()
+                                     .get();
+            if ( !expected.containsKey( path ) || expected.get( path ) != entry.getValue()
+                                                                               .getAsset() )
+            {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static String uniqueName( final String name )
+    {
+        final int dot = name.lastIndexOf( '.' );
+        final String stem = dot < 0 ? name : name.substring( 0, dot );
+        final String extension = dot < 0 ? "" : name.substring( dot );
+
+        for ( int i = 2;; i++ )
+        {
+            final String candidate = stem + "-" + i + extension;
+            if ( NAMES.add( candidate ) )
+            {
+                return candidate;
+            }
+        }
+    }
+
+}
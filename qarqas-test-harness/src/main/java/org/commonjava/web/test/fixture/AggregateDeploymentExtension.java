@@ -0,0 +1,38 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import org.jboss.arquillian.container.test.impl.client.deployment.AnnotationDeploymentScenarioGenerator;
+import org.jboss.arquillian.container.test.spi.client.deployment.DeploymentScenarioGenerator;
+import org.jboss.arquillian.core.spi.LoadableExtension;
+
+/**
+ * Registers {@link AggregateDeploymentObserver} and {@link AggregateScenarioGenerator} with Arquillian, through
+ * META-INF/services.
+ */
+public class AggregateDeploymentExtension
+    implements LoadableExtension
+{
+
+    @Override
+    public void register( final ExtensionBuilder builder )
+    {
+        builder.observer( AggregateDeploymentObserver.class );
+        builder.override( DeploymentScenarioGenerator.class, AnnotationDeploymentScenarioGenerator.class,
+                          AggregateScenarioGenerator.class );
+    }
+
+}
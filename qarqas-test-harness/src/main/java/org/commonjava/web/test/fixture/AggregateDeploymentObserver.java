@@ -0,0 +1,179 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.commonjava.util.logging.Logger;
+import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
+import org.jboss.arquillian.container.spi.client.deployment.DeploymentDescription;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
+import org.jboss.arquillian.container.spi.context.annotation.DeploymentScoped;
+import org.jboss.arquillian.container.spi.event.DeployDeployment;
+import org.jboss.arquillian.container.spi.event.UnDeployDeployment;
+import org.jboss.arquillian.core.api.InstanceProducer;
+import org.jboss.arquillian.core.api.annotation.Inject;
+import org.jboss.arquillian.core.api.annotation.Observes;
+import org.jboss.arquillian.core.spi.EventContext;
+import org.jboss.arquillian.test.spi.event.suite.AfterSuite;
+import org.jboss.shrinkwrap.api.Archive;
+
+/**
+ * Deploys each aggregate deployment (see {@link AggregateDeployment}) once per test JVM rather than once per test
+ * class. The first test class using an aggregate deploys it as usual; later ones reuse that deployment and its protocol
+ * metadata, and the per-class undeploy is skipped. Aggregates are undeployed once the suite is over, before the
+ * container stops. Other deployments (including copies of an aggregate that were modified after build()) pass through
+ * untouched, except that an aggregate of the same name is undeployed first to make room for them. Whether a copy is
+ * unmodified is decided when its deployment is generated, since packaging adds the test protocol to it in place.
+ */
+public class AggregateDeploymentObserver
+{
+
+    private final Logger logger = new Logger( AggregateDeploymentObserver.class );
+
+    @Inject
+    @DeploymentScoped
+    private InstanceProducer<ProtocolMetaData> protocolMetaData;
+
+    private final Map<String, Deployed> deployed = new LinkedHashMap<String, Deployed>();
+
+    /**
+     * Archives handled as aggregates at deploy time, so their undeploy is skipped too.
+     */
+    private final Set<Archive<?>> handled = Collections.newSetFromMap( new IdentityHashMap<Archive<?>, Boolean>() );
+
+    public void deploy( @Observes final EventContext<DeployDeployment> context )
+        throws Exception
+    {
+        final DeployDeployment event = context.getEvent();
+        final DeploymentDescription description = event.getDeployment()
+                                                       .getDescription();
+        final String key = key( event.getContainerName(), description.getArchive() );
+
+        if ( !AggregateDeployment.deploying( description.getArchive() ) )
+        {
+            final Deployed aggregate = key == null ? null : deployed.remove( key );
+            if ( aggregate != null )
+            {
+                aggregate.undeploy();
+            }
+
+            context.proceed();
+            return;
+        }
+
+        handled.add( description.getArchive() );
+
+        final Deployed existing = deployed.get( key );
+        if ( existing != null )
+        {
+            logger.info( "Reusing aggregate deployment: %s", description.getArchive()
+                                                                        .getName() );
+            protocolMetaData.set( existing.metaData );
+            event.getDeployment()
+                 .deployed();
+            return;
+        }
+
+        context.proceed();
+
+        if ( event.getDeployment()
+                  .isDeployed() )
+        {
+            deployed.put( key, new Deployed( event.getDeployableContainer(), deployedArchive( description ),
+                                             protocolMetaData.get() ) );
+        }
+    }
+
+    public void undeploy( @Observes final EventContext<UnDeployDeployment> context )
+    {
+        final DeploymentDescription description = context.getEvent()
+                                                         .getDeployment()
+                                                         .getDescription();
+        if ( handled.remove( description.getArchive() ) )
+        {
+            return;
+        }
+
+        context.proceed();
+    }
+
+    public void undeployAggregates( @Observes( precedence = 10 ) final AfterSuite event )
+    {
+        final List<Deployed> toUndeploy = new ArrayList<Deployed>( deployed.values() );
+        deployed.clear();
+        handled.clear();
+        AggregateDeployment.forgetCopies();
+
+        for ( final Deployed aggregate : toUndeploy )
+        {
+            try
+            {
+                aggregate.undeploy();
+            }
+            catch ( final Exception e )
+            {
+                logger.warn( "Failed to undeploy aggregate deployment: %s. Reason: %s", aggregate.archive.getName(),
+                             e.getMessage() );
+            }
+        }
+    }
+
+    private static String key( final String container, final Archive<?> archive )
+    {
+        return archive == null ? null : container + "/" + archive.getName();
+    }
+
+    /**
+     * The archive the container actually received: the testable archive (with the test protocol packaged in) when
+     * there is one.
+     */
+    private static Archive<?> deployedArchive( final DeploymentDescription description )
+    {
+        final Archive<?> testable = description.getTestableArchive();
+        return testable == null ? description.getArchive() : testable;
+    }
+
+    private final class Deployed
+    {
+        private final DeployableContainer<?> container;
+
+        private final Archive<?> archive;
+
+        private final ProtocolMetaData metaData;
+
+        Deployed( final DeployableContainer<?> container, final Archive<?> archive, final ProtocolMetaData metaData )
+        {
+            this.container = container;
+            this.archive = archive;
+            this.metaData = metaData;
+        }
+
+        void undeploy()
+            throws Exception
+        {
+            logger.info( "Undeploying aggregate deployment: %s", archive.getName() );
+            container.undeploy( archive );
+        }
+    }
+
+}
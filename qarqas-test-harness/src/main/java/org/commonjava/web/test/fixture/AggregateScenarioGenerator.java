@@ -0,0 +1,51 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import java.util.List;
+
+import org.jboss.arquillian.container.spi.client.deployment.DeploymentDescription;
+import org.jboss.arquillian.container.test.impl.client.deployment.AnnotationDeploymentScenarioGenerator;
+import org.jboss.arquillian.container.test.spi.client.deployment.DeploymentScenarioGenerator;
+import org.jboss.arquillian.test.spi.TestClass;
+
+/**
+ * Generates deployments from @Deployment methods as usual, then tells {@link AggregateDeployment} about each archive
+ * while it is still exactly what the method returned. Later in deployment generation, archive processors and the
+ * protocol packager add to the archive in place.
+ */
+public class AggregateScenarioGenerator
+    implements DeploymentScenarioGenerator
+{
+
+    private final DeploymentScenarioGenerator delegate = new AnnotationDeploymentScenarioGenerator();
+
+    @Override
+    public List<DeploymentDescription> generate( final TestClass testClass )
+    {
+        final List<DeploymentDescription> descriptions = delegate.generate( testClass );
+        for ( final DeploymentDescription description : descriptions )
+        {
+            if ( description.getArchive() != null )
+            {
+                AggregateDeployment.generated( description.getArchive() );
+            }
+        }
+
+        return descriptions;
+    }
+
+}
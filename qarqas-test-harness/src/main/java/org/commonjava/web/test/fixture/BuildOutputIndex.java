@@ -0,0 +1,395 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.commonjava.util.logging.Logger;
+
+/**
+ * Lists the files under a directory (such as target/classes), remembering each directory's listing along with its
+ * timestamp in a manifest file. A later scan only lists directories whose timestamp changed since (ie. that had
+ * entries added, removed or renamed); other directories reuse the recorded listing, and only their files are
+ * re-stat'ed. Excluded paths are pruned during the walk, so excluded directories aren't visited at all.
+ * <p>
+ * Directory timestamps may only have one-second resolution, so a directory changed in the same second it was listed
+ * can keep its timestamp. As in git's "racy clean" check, a listing is only reused if the directory's timestamp was
+ * clearly older than the scan that recorded it.
+ */
+final class BuildOutputIndex
+{
+
+    private static final Logger logger = new Logger( BuildOutputIndex.class );
+
+    private static final String DIR = "D";
+
+    private static final String FILE = "F";
+
+    private static final String SUBDIR = "S";
+
+    private static final String SCANNED = "T";
+
+    /**
+     * How much older than the recording scan a directory's timestamp must be for its listing to be reused. Covers
+     * filesystems with one- or two-second timestamp resolution.
+     */
+    private static final long RACY_MARGIN = 2000;
+
+    private final File root;
+
+    private final File manifest;
+
+    private Map<String, DirRecord> previous;
+
+    /**
+     * When the scan that recorded the previous listings started, or 0 if unknown.
+     */
+    private long previousScan;
+
+    private final Map<String, DirRecord> current = new TreeMap<String, DirRecord>();
+
+    private int relisted;
+
+    private int changed;
+
+    /**
+     * @param indexDir where the manifest is kept; its name is derived from the root's path.
+     */
+    BuildOutputIndex( final File root, final File indexDir )
+    {
+        this.root = root.getAbsoluteFile();
+        this.manifest =
+            new File( indexDir, this.root.getName() + "-" + JarKnockouts.hex( sha1( this.root.getPath() ) ) + ".idx" );
+    }
+
+    /**
+     * @return all files under the root that aren't excluded, sorted by path.
+     */
+    List<Entry> scan( final PrefixTrie excludes )
+    {
+        final long scanned = System.currentTimeMillis();
+        previous = load();
+
+        final List<Entry> entries = new ArrayList<Entry>();
+        if ( root.isDirectory() )
+        {
+            walk( "", root, excludes, entries );
+        }
+
+        store( scanned );
+
+        logger.info( "Indexed %d files under: %s (%d changed, %d directories listed, %d reused)", entries.size(),
+                     root, changed, relisted, current.size() - relisted );
+
+        Collections.sort( entries );
+        return entries;
+    }
+
+    private void walk( final String path, final File dir, final PrefixTrie excludes, final List<Entry> entries )
+    {
+        final long mtime = dir.lastModified();
+        final DirRecord old = previous.get( path );
+
+        final DirRecord record;
+        if ( old != null && old.mtime == mtime && mtime + RACY_MARGIN <= previousScan )
+        {
+            record = new DirRecord( mtime, old.dirs );
+            for ( final String name : old.files.keySet() )
+            {
+                record.files.put( name, null );
+            }
+        }
+        else
+        {
+            relisted++;
+            record = list( dir, mtime );
+        }
+
+        current.put( path, record );
+
+        final String prefix = path.length() > 0 ? path + "/" : "";
+        for ( final String name : new ArrayList<String>( record.files.keySet() ) )
+        {
+            final String sub = prefix + name;
+            if ( excludes.matches( sub ) )
+            {
+                continue;
+            }
+
+            final File f = new File( dir, name );
+            final long[] stat = { f.length(), f.lastModified() };
+            record.files.put( name, stat );
+
+            final long[] oldStat = old == null ? null : old.files.get( name );
+            if ( oldStat == null || oldStat[0] != stat[0] || oldStat[1] != stat[1] )
+            {
+                changed++;
+            }
+
+            entries.add( new Entry( sub, f, stat[0], stat[1] ) );
+        }
+
+        for ( final String name : record.dirs )
+        {
+            final String sub = prefix + name;
+            if ( !excludes.matches( sub ) )
+            {
+                walk( sub, new File( dir, name ), excludes, entries );
+            }
+        }
+    }
+
+    private static DirRecord list( final File dir, final long mtime )
+    {
+        final List<String> dirs = new ArrayList<String>();
+        final List<String> files = new ArrayList<String>();
+
+        final File[] children = dir.listFiles();
+        if ( children != null )
+        {
+            for ( final File child : children )
+            {
+                if ( child.isDirectory() )
+                {
+                    dirs.add( child.getName() );
+                }
+                else
+                {
+                    files.add( child.getName() );
+                }
+            }
+        }
+
+        final DirRecord record = new DirRecord( mtime, dirs );
+        for ( final String name : files )
+        {
+            record.files.put( name, null );
+        }
+
+        return record;
+    }
+
+    private Map<String, DirRecord> load()
+    {
+        final Map<String, DirRecord> records = new HashMap<String, DirRecord>();
+        previousScan = 0;
+        if ( !manifest.isFile() )
+        {
+            return records;
+        }
+
+        BufferedReader reader = null;
+        try
+        {
+            reader = new BufferedReader( new InputStreamReader( new FileInputStream( manifest ), "UTF-8" ) );
+
+            DirRecord record = null;
+            String line;
+            while ( ( line = reader.readLine() ) != null )
+            {
+                final String[] parts = line.split( "\t" );
+                if ( SCANNED.equals( parts[0] ) )
+                {
+                    previousScan = Long.parseLong( parts[1] );
+                }
+                else if ( DIR.equals( parts[0] ) )
+                {
+                    record = new DirRecord( Long.parseLong( parts[2] ), new ArrayList<String>() );
+                    records.put( parts[1], record );
+                }
+                else if ( record != null && FILE.equals( parts[0] ) )
+                {
+                    final long[] stat = parts.length > 3 ? new long[] { Long.parseLong( parts[2] ),
+                        Long.parseLong( parts[3] ) } : null;
+                    record.files.put( parts[1], stat );
+                }
+                else if ( record != null && SUBDIR.equals( parts[0] ) )
+                {
+                    record.dirs.add( parts[1] );
+                }
+            }
+        }
+        catch ( final IOException e )
+        {
+            logger.warn( "Cannot read build-output index: %s. Rescanning. Reason: %s", manifest, e.getMessage() );
+            records.clear();
+            previousScan = 0;
+        }
+        catch ( final RuntimeException e )
+        {
+            logger.warn( "Corrupt build-output index: %s. Rescanning. Reason: %s", manifest, e.getMessage() );
+            records.clear();
+            previousScan = 0;
+        }
+        finally
+        {
+            closeQuietly( reader );
+        }
+
+        return records;
+    }
+
+    /**
+     * Write the manifest to a temporary file and rename it into place, so concurrent test JVMs never read a partial
+     * manifest. Losing a race just means the next scan lists a few more directories.
+     * 
+     * @param scanned when this scan started.
+     */
+    private void store( final long scanned )
+    {
+        final File dir = manifest.getParentFile();
+        dir.mkdirs();
+
+        File tmp = null;
+        PrintWriter writer = null;
+        try
+        {
+            tmp = File.createTempFile( manifest.getName() + ".", ".tmp", dir );
+            writer = new PrintWriter( new OutputStreamWriter( new FileOutputStream( tmp ), "UTF-8" ) );
+            writer.print( SCANNED + "\t" + scanned + "\n" );
+            for ( final Map.Entry<String, DirRecord> entry : current.entrySet() )
+            {
+                final DirRecord record = entry.getValue();
+                writer.print( DIR + "\t" + entry.getKey() + "\t" + record.mtime + "\n" );
+                for ( final Map.Entry<String, long[]> file : record.files.entrySet() )
+                {
+                    final long[] stat = file.getValue();
+                    writer.print( FILE + "\t" + file.getKey()
+                        + ( stat == null ? "" : "\t" + stat[0] + "\t" + stat[1] ) + "\n" );
+                }
+                for ( final String sub : record.dirs )
+                {
+                    writer.print( SUBDIR + "\t" + sub + "\n" );
+                }
+            }
+            writer.close();
+
+            if ( !tmp.renameTo( manifest ) )
+            {
+                manifest.delete();
+                tmp.renameTo( manifest );
+            }
+        }
+        catch ( final IOException e )
+        {
+            logger.warn( "Cannot write build-output index: %s. Reason: %s", manifest, e.getMessage() );
+        }
+        finally
+        {
+            closeQuietly( writer );
+            if ( tmp != null )
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static byte[] sha1( final String value )
+    {
+        try
+        {
+            return JarKnockouts.sha1()
+                               .digest( value.getBytes( "UTF-8" ) );
+        }
+        catch ( final IOException e )
+        {
+            throw new IllegalStateException( "UTF-8 is not supported: " + e.getMessage(), e );
+        }
+    }
+
+    static final class Entry
+        implements Comparable<Entry>
+    {
+        private final String path;
+
+        private final File file;
+
+        private final long length;
+
+        private final long lastModified;
+
+        Entry( final String path, final File file, final long length, final long lastModified )
+        {
+            this.path = path;
+            this.file = file;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return location relative to the indexed directory, '/'-separated.
+         */
+        String getPath()
+        {
+            return path;
+        }
+
+        File getFile()
+        {
+            return file;
+        }
+
+        long length()
+        {
+            return length;
+        }
+
+        long lastModified()
+        {
+            return lastModified;
+        }
+
+        @Override
+        public int compareTo( final Entry other )
+        {
+            return path.compareTo( other.path );
+        }
+    }
+
+    /**
+     * Listing of one directory. File stats are null for files that were listed but not stat'ed (because excluded).
+     */
+    private static final class DirRecord
+    {
+        private final long mtime;
+
+        private final List<String> dirs;
+
+        private final Map<String, long[]> files = new TreeMap<String, long[]>();
+
+        DirRecord( final long mtime, final List<String> dirs )
+        {
+            this.mtime = mtime;
+            this.dirs = dirs;
+        }
+    }
+
+}
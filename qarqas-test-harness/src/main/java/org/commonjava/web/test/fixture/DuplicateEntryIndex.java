@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Tracks which library provides each class or resource, so later libraries' copies can be found. Libraries must be
+ * added in the order they should take precedence. Entries under META-INF/ (manifests, signatures, service and license
+ * files) legitimately appear in many jars and aren't tracked.
+ */
+final class DuplicateEntryIndex
+{
+
+    private static final String META_INF = "META-INF/";
+
+    /**
+     * Entries that only describe the jar itself, and are worthless once its other entries are gone.
+     */
+    private static final Pattern PACKAGING_METADATA =
+        Pattern.compile( "META-INF/(?:MANIFEST\\.MF|INDEX\\.LIST|[^/]+\\.(?:SF|RSA|DSA|EC)|maven/.*)" );
+
+    private final Map<String, File> owners = new HashMap<String, File>();
+
+    /**
+     * List the tracked entries of a jar, other than those knocked out of it. Only the jar's central directory is read.
+     */
+    static Listing list( final File jar, final Set<JarKnockouts> knockouts )
+        throws IOException
+    {
+        final List<String> entries = new ArrayList<String>();
+        boolean untracked = false;
+
+        final ZipFile zip = new ZipFile( jar );
+        try
+        {
+            final Enumeration<? extends ZipEntry> en = zip.entries();
+            while ( en.hasMoreElements() )
+            {
+                final ZipEntry entry = en.nextElement();
+                final String name = entry.getName();
+                if ( entry.isDirectory() || isKnockedOut( name, knockouts ) )
+                {
+                    continue;
+                }
+
+                if ( name.startsWith( META_INF ) )
+                {
+                    untracked = untracked || !PACKAGING_METADATA.matcher( name )
+                                                                .matches();
+                    continue;
+                }
+
+                entries.add( name );
+            }
+        }
+        finally
+        {
+            zip.close();
+        }
+
+        return new Listing( entries, untracked );
+    }
+
+    private static boolean isKnockedOut( final String name, final Set<JarKnockouts> knockouts )
+    {
+        for ( final JarKnockouts jk : knockouts )
+        {
+            if ( jk.knockout( name ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the entries an earlier library already provides.
+     */
+    List<String> add( final File library, final List<String> entries )
+    {
+        final List<String> duplicates = new ArrayList<String>();
+        for ( final String entry : entries )
+        {
+            if ( owners.containsKey( entry ) )
+            {
+                duplicates.add( entry );
+            }
+            else
+            {
+                owners.put( entry, library );
+            }
+        }
+
+        return duplicates;
+    }
+
+    /**
+     * @return true if the library can be left out altogether: everything in it is either provided by an earlier library
+     *         or only describes the jar itself.
+     */
+    static boolean isRedundant( final Listing listing, final List<String> duplicates )
+    {
+        return !listing.untracked && duplicates.size() == listing.entries.size();
+    }
+
+    /**
+     * @return the library that provides the entry.
+     */
+    File getOwner( final String entry )
+    {
+        return owners.get( entry );
+    }
+
+    /**
+     * A jar's tracked entries, and whether it also has untracked entries, such as a beans.xml or service files, that
+     * would be lost if the jar were left out.
+     */
+    static final class Listing
+    {
+        final List<String> entries;
+
+        final boolean untracked;
+
+        Listing( final List<String> entries, final boolean untracked )
+        {
+            this.entries = entries;
+            this.untracked = untracked;
+        }
+    }
+
+}
@@ -0,0 +1,41 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+/**
+ * What {@link TestWarArchiveBuilder} does about classes and resources that more than one of the libraries it packages
+ * contain. Of each duplicated entry, the copy in the library whose file name sorts first is the one that counts.
+ */
+public enum DuplicateEntryPolicy
+{
+
+    /**
+     * Don't look for duplicates.
+     */
+    IGNORE,
+
+    /**
+     * Log the libraries that duplicate entries of others, and package them as they are.
+     */
+    REPORT,
+
+    /**
+     * Log them, and knock the duplicates out of every library but the first (see {@link JarKnockouts}), leaving out
+     * libraries that have nothing else to offer.
+     */
+    KNOCKOUT
+
+}
@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+
+import org.commonjava.util.logging.Logger;
+import org.jboss.as.controller.client.ModelControllerClient;
+import org.jboss.dmr.ModelNode;
+
+/**
+ * Deploys an exploded WAR directory (see {@link TestWarArchiveBuilder#buildExploded(File)}) to a running AS7 instance
+ * by path, through the management API. Nothing is zipped or uploaded; the server reads the directory in place. A WAR
+ * that is already deployed under the same name is redeployed, which picks up whatever changed in the directory.
+ */
+public final class ExplodedDeployer
+    implements Closeable
+{
+
+    private static final Logger logger = new Logger( ExplodedDeployer.class );
+
+    /**
+     * Management port exported by the qarqas-maven-plugin's port configurators to qarqas.properties.
+     */
+    public static final String MGMT_PORT_EXPORT = QarqasExports.PREFIX + "management-native";
+
+    public static final String DEFAULT_HOST = "127.0.0.1";
+
+    public static final int DEFAULT_MGMT_PORT = 9999;
+
+    private static final String DEPLOYMENT = "deployment";
+
+    private final ModelControllerClient client;
+
+    public ExplodedDeployer( final String host, final int managementPort )
+        throws IOException
+    {
+        this.client = ModelControllerClient.Factory.create( host, managementPort );
+    }
+
+    /**
+     * Connect to the instance configured by the qarqas-maven-plugin, using the management port it exported to
+     * qarqas.properties on the classpath, or the default port if there is none.
+     */
+    public static ExplodedDeployer forExportedInstance()
+        throws IOException
+    {
+        final String port = QarqasExports.load()
+                                         .getProperty( MGMT_PORT_EXPORT );
+
+        return new ExplodedDeployer( DEFAULT_HOST, port == null ? DEFAULT_MGMT_PORT : Integer.parseInt( port.trim() ) );
+    }
+
+    /**
+     * Deploy the directory under its own name (eg. test.war), or redeploy it if a deployment of that name exists.
+     */
+    public void deploy( final File explodedWar )
+        throws IOException
+    {
+        final String name = explodedWar.getName();
+        final long start = System.currentTimeMillis();
+
+        if ( isDeployed( name ) )
+        {
+            execute( operation( "redeploy", name ), "redeploy" );
+            logger.info( "Redeployed: %s in %d ms", name, System.currentTimeMillis() - start );
+            return;
+        }
+
+        final ModelNode add = operation( "add", name );
+        final ModelNode content = new ModelNode();
+        content.get( "path" )
+               .set( explodedWar.getAbsolutePath() );
+        content.get( "archive" )
+               .set( false );
+        add.get( "content" )
+           .add( content );
+
+        final ModelNode composite = new ModelNode();
+        composite.get( "operation" )
+                 .set( "composite" );
+        composite.get( "address" )
+                 .setEmptyList();
+        final ModelNode steps = composite.get( "steps" );
+        steps.add( add );
+        steps.add( operation( "deploy", name ) );
+
+        execute( composite, "deploy" );
+        logger.info( "Deployed: %s from: %s in %d ms", name, explodedWar, System.currentTimeMillis() - start );
+    }
+
+    public void undeploy( final String name )
+        throws IOException
+    {
+        if ( !isDeployed( name ) )
+        {
+            return;
+        }
+
+        final ModelNode composite = new ModelNode();
+        composite.get( "operation" )
+                 .set( "composite" );
+        composite.get( "address" )
+                 .setEmptyList();
+        final ModelNode steps = composite.get( "steps" );
+        steps.add( operation( "undeploy", name ) );
+        steps.add( operation( "remove", name ) );
+
+        execute( composite, "undeploy" );
+        logger.info( "Undeployed: %s", name );
+    }
+
+    private boolean isDeployed( final String name )
+        throws IOException
+    {
+        final ModelNode read = new ModelNode();
+        read.get( "operation" )
+            .set( "read-children-names" );
+        read.get( "address" )
+            .setEmptyList();
+        read.get( "child-type" )
+            .set( DEPLOYMENT );
+
+        for ( final ModelNode child : execute( read, "list deployments" ).asList() )
+        {
+            if ( name.equals( child.asString() ) )
+            {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static ModelNode operation( final String operation, final String name )
+    {
+        final ModelNode op = new ModelNode();
+        op.get( "operation" )
+          .set( operation );
+        op.get( "address" )
+          .add( DEPLOYMENT, name );
+
+        return op;
+    }
+
+    private ModelNode execute( final ModelNode op, final String description )
+        throws IOException
+    {
+        final ModelNode result = client.execute( op );
+        if ( !"success".equals( result.get( "outcome" )
+                                      .asString() ) )
+        {
+            throw new IOException( "Failed to " + description + ": " + result.get( "failure-description" ) );
+        }
+
+        return result.get( "result" );
+    }
+
+    @Override
+    public void close()
+        throws IOException
+    {
+        client.close();
+    }
+
+}
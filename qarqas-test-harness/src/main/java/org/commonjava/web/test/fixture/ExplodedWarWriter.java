@@ -0,0 +1,305 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.commonjava.util.logging.Logger;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ArchivePath;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.asset.FileAsset;
+
+/**
+ * Writes an archive out as a directory, touching only what changed since the last write: entries backed by a file
+ * (build output, libraries) are copied only if the source's size or timestamp differ from the copy, other entries are
+ * written only if their content differs, and files no longer in the archive are deleted. Unchanged files keep their
+ * timestamps, so the container sees only real changes. Entries of a base WAR are read straight from its file, one at a
+ * time, and only where the archive doesn't have an entry of the same path.
+ */
+final class ExplodedWarWriter
+{
+
+    private static final Logger logger = new Logger( ExplodedWarWriter.class );
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File dir;
+
+    private int written;
+
+    private int unchanged;
+
+    private int removed;
+
+    private ExplodedWarWriter( final File dir )
+    {
+        this.dir = dir;
+    }
+
+    /**
+     * @return the number of files written or removed; zero if the directory already matched the archive.
+     */
+    static int write( final Archive<?> archive, final File baseWar, final File dir )
+        throws IOException
+    {
+        return new ExplodedWarWriter( dir ).write( archive, baseWar );
+    }
+
+    private int write( final Archive<?> archive, final File baseWar )
+        throws IOException
+    {
+        final long start = System.currentTimeMillis();
+        dir.mkdirs();
+
+        final Set<String> paths = new HashSet<String>();
+        for ( final Map.Entry<ArchivePath, Node> entry : archive.getContent()
+                                                                .entrySet() )
+        {
+            final String path = entry.getKey()
+                                     .get()
+                                     .substring( 1 );
+            final File target = new File( dir, path );
+
+            addPath( paths, path );
+
+            final Asset asset = entry.getValue()
+                                     .getAsset();
+            if ( asset == null )
+            {
+                target.mkdirs();
+            }
+            else if ( asset instanceof FileAsset )
+            {
+                copyIfChanged( ( (FileAsset) asset ).getSource(), target );
+            }
+            else
+            {
+                writeIfChanged( asset.openStream(), target );
+            }
+        }
+
+        if ( baseWar != null )
+        {
+            writeBase( baseWar, paths );
+        }
+
+        removeStale( dir, "", paths );
+
+        logger.info( "Exploded %s to: %s in %d ms (%d files written, %d unchanged, %d removed)", archive.getName(), dir,
+                     System.currentTimeMillis() - start, written, unchanged, removed );
+
+        return written + removed;
+    }
+
+    private void writeBase( final File baseWar, final Set<String> paths )
+        throws IOException
+    {
+        ZipInputStream zip = null;
+        try
+        {
+            zip = new ZipInputStream( new FileInputStream( baseWar ) );
+
+            ZipEntry entry;
+            while ( ( entry = zip.getNextEntry() ) != null )
+            {
+                String path = entry.getName();
+                if ( path.endsWith( "/" ) )
+                {
+                    path = path.substring( 0, path.length() - 1 );
+                }
+
+                if ( path.length() < 1 || paths.contains( path ) )
+                {
+                    continue;
+                }
+
+                addPath( paths, path );
+
+                final File target = new File( dir, path );
+                if ( entry.isDirectory() )
+                {
+                    target.mkdirs();
+                }
+                else
+                {
+                    writeIfChanged( new EntryStream( zip ), target );
+                }
+            }
+        }
+        finally
+        {
+            closeQuietly( zip );
+        }
+    }
+
+    /**
+     * Add the path and its parent directories, which aren't necessarily entries of their own.
+     */
+    private static void addPath( final Set<String> paths, final String path )
+    {
+        for ( int idx = path.indexOf( '/' ); idx > 0; idx = path.indexOf( '/', idx + 1 ) )
+        {
+            paths.add( path.substring( 0, idx ) );
+        }
+        paths.add( path );
+    }
+
+    private void copyIfChanged( final File source, final File target )
+        throws IOException
+    {
+        if ( target.isFile() && target.length() == source.length() && target.lastModified() == source.lastModified() )
+        {
+            unchanged++;
+            return;
+        }
+
+        FileUtils.copyFile( source, target, true );
+        written++;
+    }
+
+    /**
+     * Stream the content into a temporary file next to the target while comparing it with the target's current content,
+     * and only replace the target if the two differ.
+     */
+    private void writeIfChanged( final InputStream in, final File target )
+        throws IOException
+    {
+        target.getParentFile()
+              .mkdirs();
+
+        File tmp = null;
+        InputStream current = null;
+        OutputStream out = null;
+        try
+        {
+            tmp = File.createTempFile( target.getName() + ".", ".tmp", target.getParentFile() );
+            current = target.isFile() ? new BufferedInputStream( new FileInputStream( target ) ) : null;
+            out = new FileOutputStream( tmp );
+
+            boolean same = current != null;
+            final byte[] buf = new byte[BUFFER_SIZE];
+            int read;
+            while ( ( read = in.read( buf ) ) > -1 )
+            {
+                out.write( buf, 0, read );
+                for ( int i = 0; same && i < read; i++ )
+                {
+                    same = current.read() == ( buf[i] & 0xff );
+                }
+            }
+
+            same = same && current.read() == -1;
+            out.close();
+            closeQuietly( current );
+
+            if ( same )
+            {
+                unchanged++;
+                return;
+            }
+
+            if ( !tmp.renameTo( target ) )
+            {
+                target.delete();
+                if ( !tmp.renameTo( target ) )
+                {
+                    throw new IOException( "Cannot replace: " + target );
+                }
+            }
+
+            written++;
+        }
+        finally
+        {
+            closeQuietly( in );
+            closeQuietly( current );
+            closeQuietly( out );
+            if ( tmp != null )
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    private void removeStale( final File current, final String prefix, final Set<String> paths )
+        throws IOException
+    {
+        final File[] children = current.listFiles();
+        if ( children == null )
+        {
+            return;
+        }
+
+        for ( final File child : children )
+        {
+            final String path = prefix + child.getName();
+            if ( paths.contains( path ) )
+            {
+                if ( child.isDirectory() )
+                {
+                    removeStale( child, path + "/", paths );
+                }
+            }
+            else
+            {
+                if ( child.isDirectory() )
+                {
+                    FileUtils.deleteDirectory( child );
+                }
+                else
+                {
+                    child.delete();
+                }
+                removed++;
+            }
+        }
+    }
+
+    /**
+     * The current entry of a zip stream, which can be closed without closing the zip stream itself.
+     */
+    private static final class EntryStream
+        extends FilterInputStream
+    {
+        EntryStream( final ZipInputStream zip )
+        {
+            super( zip );
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+
+}
@@ -20,12 +20,20 @@ import static org.apache.commons.io.IOUtils.copy;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Enumeration;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
@@ -33,6 +41,8 @@ import java.util.jar.JarOutputStream;
 public class JarKnockouts
 {
 
+    private static final Map<String, byte[]> SOURCE_DIGESTS = new ConcurrentHashMap<String, byte[]>();
+
     private final Set<String> knockoutPaths = new HashSet<String>();
 
     public JarKnockouts( final Class<?>... knockoutClasses )
@@ -67,75 +77,91 @@ public class JarKnockouts
         throws IOException
     {
         targetDir.mkdirs();
-        final File target = new File( targetDir, source.getName() );
+        write( source, new File( targetDir, source.getName() ), this );
+    }
 
-        JarFile in = null;
-        JarOutputStream out = null;
-        try
+    /**
+     * Rewrite the source jar without any of the paths knocked out by the given {@link JarKnockouts}, or reuse an
+     * earlier rewrite. Rewrites are cached in targetDir under a hash of the source jar's content and the sorted
+     * knockout paths, so repeated test classes and repeated builds only pay for hashing the jar. A rewrite is written
+     * to a temporary file and renamed into place, so concurrent test forks never see (or produce) a partial jar.
+     * 
+     * @return the rewritten jar, which keeps the source jar's file name.
+     */
+    public static File rewriteJar( final File source, final File targetDir, final Set<JarKnockouts> jarKnockouts )
+        throws IOException
+    {
+        final JarKnockouts allKnockouts = new JarKnockouts();
+        for ( final JarKnockouts jk : jarKnockouts )
         {
-            in = new JarFile( source );
+            allKnockouts.knockoutPaths( jk.getKnockedOutPaths() );
+        }
 
-            final BufferedOutputStream fos = new BufferedOutputStream( new FileOutputStream( target ) );
-            out = new JarOutputStream( fos, in.getManifest() );
+        final File keyDir = new File( targetDir, cacheKey( source, allKnockouts ) );
+        final File target = new File( keyDir, source.getName() );
+        if ( target.isFile() )
+        {
+            return target;
+        }
 
-            final Enumeration<JarEntry> entries = in.entries();
-            while ( entries.hasMoreElements() )
+        keyDir.mkdirs();
+        final File tmp = File.createTempFile( source.getName() + ".", ".tmp", keyDir );
+        try
+        {
+            write( source, tmp, allKnockouts );
+
+            // another fork may have published the same rewrite first; its copy is just as good as ours.
+            if ( !tmp.renameTo( target ) && !target.isFile() )
             {
-                final JarEntry entry = entries.nextElement();
-                if ( !knockout( entry.getName() ) )
-                {
-                    final InputStream stream = in.getInputStream( entry );
-                    out.putNextEntry( entry );
-                    copy( stream, out );
-                    out.closeEntry();
-                }
+                throw new IOException( "Cannot move rewritten jar: " + tmp + " to: " + target );
             }
         }
         finally
         {
-            closeQuietly( out );
-            if ( in != null )
-            {
-                try
-                {
-                    in.close();
-                }
-                catch ( final IOException e )
-                {
-                }
-            }
+            tmp.delete();
         }
+
+        return target;
     }
 
-    public static File rewriteJar( final File source, final File targetDir, final Set<JarKnockouts> jarKnockouts )
+    private static void write( final File source, final File target, final JarKnockouts knockouts )
         throws IOException
     {
-        final JarKnockouts allKnockouts = new JarKnockouts();
-        for ( final JarKnockouts jk : jarKnockouts )
+        if ( !RawJarRewriter.rewrite( source, target, knockouts ) )
         {
-            allKnockouts.knockoutPaths( jk.getKnockedOutPaths() );
+            rewriteStreaming( source, target, knockouts );
         }
+    }
 
-        targetDir.mkdirs();
-        final File target = new File( targetDir, source.getName() );
-
+    /**
+     * Rewrite by inflating each kept entry and deflating it again. Only used for jars {@link RawJarRewriter} can't
+     * copy.
+     */
+    static void rewriteStreaming( final File source, final File target, final JarKnockouts knockouts )
+        throws IOException
+    {
         JarFile in = null;
         JarOutputStream out = null;
         try
         {
             in = new JarFile( source );
 
+            // the manifest is copied like any other entry; passing it to JarOutputStream as well would duplicate it.
             final BufferedOutputStream fos = new BufferedOutputStream( new FileOutputStream( target ) );
-            out = new JarOutputStream( fos, in.getManifest() );
+            out = new JarOutputStream( fos );
 
             final Enumeration<JarEntry> entries = in.entries();
             while ( entries.hasMoreElements() )
             {
                 final JarEntry entry = entries.nextElement();
-                if ( !allKnockouts.knockout( entry.getName() ) )
+                if ( !knockouts.knockout( entry.getName() ) )
                 {
+                    // a fresh entry: the recompressed size needn't match the compressed size recorded in the source.
+                    final JarEntry kept = new JarEntry( entry.getName() );
+                    kept.setTime( entry.getTime() );
+
                     final InputStream stream = in.getInputStream( entry );
-                    out.putNextEntry( entry );
+                    out.putNextEntry( kept );
                     copy( stream, out );
                     out.closeEntry();
                 }
@@ -155,8 +181,83 @@ public class JarKnockouts
                 }
             }
         }
+    }
 
-        return target;
+    private static String cacheKey( final File source, final JarKnockouts knockouts )
+        throws IOException
+    {
+        final MessageDigest digest = sha1();
+        digest.update( digestOf( source ) );
+
+        final List<String> paths = new ArrayList<String>( knockouts.knockoutPaths );
+        Collections.sort( paths );
+        for ( final String path : paths )
+        {
+            digest.update( ( path + "\n" ).getBytes( "UTF-8" ) );
+        }
+
+        return hex( digest.digest() );
+    }
+
+    /**
+     * Digest of the jar's content, remembered for as long as the jar's size and timestamp don't change, so the jar is
+     * only read once per JVM however many test classes use it.
+     */
+    private static byte[] digestOf( final File source )
+        throws IOException
+    {
+        final String key = source.getAbsolutePath() + ":" + source.length() + ":" + source.lastModified();
+        byte[] result = SOURCE_DIGESTS.get( key );
+        if ( result != null )
+        {
+            return result;
+        }
+
+        final MessageDigest digest = sha1();
+        final byte[] buf = new byte[65536];
+        InputStream in = null;
+        try
+        {
+            in = new FileInputStream( source );
+            int read;
+            while ( ( read = in.read( buf ) ) > -1 )
+            {
+                digest.update( buf, 0, read );
+            }
+        }
+        finally
+        {
+            closeQuietly( in );
+        }
+
+        result = digest.digest();
+        SOURCE_DIGESTS.put( key, result );
+
+        return result;
+    }
+
+    static MessageDigest sha1()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "SHA-1" );
+        }
+        catch ( final NoSuchAlgorithmException e )
+        {
+            throw new IllegalStateException( "SHA-1 is not available: " + e.getMessage(), e );
+        }
+    }
+
+    static String hex( final byte[] bytes )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( final byte b : bytes )
+        {
+            sb.append( Character.forDigit( ( b >> 4 ) & 0xf, 16 ) )
+              .append( Character.forDigit( b & 0xf, 16 ) );
+        }
+
+        return sb.toString();
     }
 
     public String[] getKnockedOutPaths()
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A set of path prefixes that can tell whether any of them is a prefix of a given path in time proportional to the
+ * length of the path, however many prefixes there are.
+ */
+final class PrefixTrie
+{
+
+    private final Node root = new Node();
+
+    PrefixTrie( final Collection<String> prefixes )
+    {
+        for ( final String prefix : prefixes )
+        {
+            add( prefix );
+        }
+    }
+
+    void add( final String prefix )
+    {
+        Node node = root;
+        for ( int i = 0; i < prefix.length(); i++ )
+        {
+            final Character c = prefix.charAt( i );
+            Node next = node.children.get( c );
+            if ( next == null )
+            {
+                next = new Node();
+                node.children.put( c, next );
+            }
+            node = next;
+        }
+
+        node.terminal = true;
+    }
+
+    /**
+     * @return true if any prefix in the trie is a prefix of (or equal to) the path.
+     */
+    boolean matches( final String path )
+    {
+        Node node = root;
+        for ( int i = 0; !node.terminal && i < path.length(); i++ )
+        {
+            node = node.children.get( path.charAt( i ) );
+            if ( node == null )
+            {
+                return false;
+            }
+        }
+
+        return node.terminal;
+    }
+
+    private static final class Node
+    {
+        private final Map<Character, Node> children = new HashMap<Character, Node>( 4 );
+
+        private boolean terminal;
+    }
+
+}
@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Properties;
+
+/**
+ * Reads the qarqas.properties that the qarqas-maven-plugin's setup goal exports to the test classpath.
+ */
+final class QarqasExports
+{
+
+    static final String RESOURCE = "qarqas.properties";
+
+    static final String PREFIX = "qarqas.export.";
+
+    private QarqasExports()
+    {
+    }
+
+    /**
+     * @return the exported properties, or empty properties if there is no qarqas.properties on the classpath.
+     */
+    static Properties load()
+        throws IOException
+    {
+        final Properties props = new Properties();
+
+        final URL exports = Thread.currentThread()
+                                  .getContextClassLoader()
+                                  .getResource( RESOURCE );
+        if ( exports != null )
+        {
+            InputStream in = null;
+            try
+            {
+                in = exports.openStream();
+                props.load( in );
+            }
+            finally
+            {
+                closeQuietly( in );
+            }
+        }
+
+        return props;
+    }
+
+}
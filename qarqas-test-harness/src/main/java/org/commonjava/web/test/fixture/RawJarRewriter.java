@@ -0,0 +1,279 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+
+/**
+ * Copies a jar without some of its entries, by copying the local header and compressed data of every kept entry
+ * byte-for-byte from a memory-mapped view of the source, then writing a central directory with adjusted offsets. No
+ * entry is inflated or deflated. Jars this can't handle (ZIP64, multi-disk, or malformed) are left to the caller.
+ */
+final class RawJarRewriter
+{
+
+    private static final int LOCAL_HEADER_SIG = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIG = 0x02014b50;
+
+    private static final int END_SIG = 0x06054b50;
+
+    private static final int ZIP64_LOCATOR_SIG = 0x07064b50;
+
+    private static final int DATA_DESCRIPTOR_SIG = 0x08074b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int END_SIZE = 22;
+
+    private static final int MAX_COMMENT = 0xffff;
+
+    private static final int DATA_DESCRIPTOR_FLAG = 0x8;
+
+    private RawJarRewriter()
+    {
+    }
+
+    /**
+     * @return false if the source can't be copied this way, in which case nothing was written.
+     */
+    static boolean rewrite( final File source, final File target, final JarKnockouts knockouts )
+        throws IOException
+    {
+        FileInputStream in = null;
+        try
+        {
+            in = new FileInputStream( source );
+            final FileChannel channel = in.getChannel();
+            if ( channel.size() > Integer.MAX_VALUE || channel.size() < END_SIZE )
+            {
+                return false;
+            }
+
+            final MappedByteBuffer mapped = channel.map( MapMode.READ_ONLY, 0, channel.size() );
+            mapped.order( ByteOrder.LITTLE_ENDIAN );
+
+            return rewrite( mapped, target, knockouts );
+        }
+        finally
+        {
+            closeQuietly( in );
+        }
+    }
+
+    private static boolean rewrite( final ByteBuffer src, final File target, final JarKnockouts knockouts )
+        throws IOException
+    {
+        final int end = findEnd( src );
+        if ( end < 0 || ( end >= 20 && src.getInt( end - 20 ) == ZIP64_LOCATOR_SIG ) )
+        {
+            return false;
+        }
+
+        final int entries = u16( src, end + 10 );
+        final long cdSize = u32( src, end + 12 );
+        final long cdOffset = u32( src, end + 16 );
+        if ( u16( src, end + 4 ) != 0 || u16( src, end + 6 ) != 0 || cdOffset + cdSize > end )
+        {
+            return false;
+        }
+
+        // validate and select entries before writing anything, so a malformed jar can still be handed back.
+        final ByteArrayOutputStream central = new ByteArrayOutputStream( (int) cdSize );
+        final int[] keptHeaders = new int[entries];
+        final int[] keptLengths = new int[entries];
+        int kept = 0;
+        long total = 0;
+
+        int pos = (int) cdOffset;
+        for ( int i = 0; i < entries; i++ )
+        {
+            if ( pos + CENTRAL_HEADER_SIZE > end || src.getInt( pos ) != CENTRAL_HEADER_SIG )
+            {
+                return false;
+            }
+
+            final int nameLen = u16( src, pos + 28 );
+            final int recordLen = CENTRAL_HEADER_SIZE + nameLen + u16( src, pos + 30 ) + u16( src, pos + 32 );
+            if ( u32( src, pos + 20 ) == 0xffffffffL || u32( src, pos + 42 ) == 0xffffffffL )
+            {
+                return false;
+            }
+
+            if ( !knockouts.knockout( name( src, pos + CENTRAL_HEADER_SIZE, nameLen ) ) )
+            {
+                final int localLen = localRecordLength( src, pos, (int) u32( src, pos + 42 ) );
+                if ( localLen < 0 )
+                {
+                    return false;
+                }
+
+                keptHeaders[kept] = pos;
+                keptLengths[kept++] = localLen;
+                total += localLen;
+            }
+
+            pos += recordLen;
+        }
+
+        if ( total > 0xffffffffL )
+        {
+            // the rewritten jar would need ZIP64.
+            return false;
+        }
+
+        FileOutputStream fos = null;
+        try
+        {
+            fos = new FileOutputStream( target );
+            final FileChannel out = fos.getChannel();
+
+            long written = 0;
+            for ( int i = 0; i < kept; i++ )
+            {
+                final int header = keptHeaders[i];
+                final int localOffset = (int) u32( src, header + 42 );
+                final int localLen = keptLengths[i];
+
+                write( out, slice( src, localOffset, localLen ) );
+
+                final int recordLen =
+                    CENTRAL_HEADER_SIZE + u16( src, header + 28 ) + u16( src, header + 30 ) + u16( src, header + 32 );
+                final ByteBuffer record = ByteBuffer.allocate( recordLen )
+                                                    .order( ByteOrder.LITTLE_ENDIAN );
+                record.put( slice( src, header, recordLen ) );
+                record.putInt( 42, (int) written );
+                central.write( record.array() );
+
+                written += localLen;
+            }
+
+            final int commentLen = u16( src, end + 20 );
+            final ByteBuffer trailer = ByteBuffer.allocate( END_SIZE + commentLen )
+                                                 .order( ByteOrder.LITTLE_ENDIAN );
+            trailer.putInt( END_SIG )
+                   .putShort( (short) 0 )
+                   .putShort( (short) 0 )
+                   .putShort( (short) kept )
+                   .putShort( (short) kept )
+                   .putInt( central.size() )
+                   .putInt( (int) written )
+                   .putShort( (short) commentLen )
+                   .put( slice( src, end + END_SIZE, commentLen ) );
+            trailer.flip();
+
+            write( out, ByteBuffer.wrap( central.toByteArray() ) );
+            write( out, trailer );
+        }
+        finally
+        {
+            closeQuietly( fos );
+        }
+
+        return true;
+    }
+
+    /**
+     * @return the length of the local header, data and data descriptor (if any) of the entry, or -1 if malformed.
+     */
+    private static int localRecordLength( final ByteBuffer src, final int centralHeader, final int localOffset )
+    {
+        if ( localOffset < 0 || localOffset + LOCAL_HEADER_SIZE > src.limit()
+            || src.getInt( localOffset ) != LOCAL_HEADER_SIG )
+        {
+            return -1;
+        }
+
+        // sizes come from the central directory; the local header may not have them (see DATA_DESCRIPTOR_FLAG).
+        final long compressed = u32( src, centralHeader + 20 );
+        long len = LOCAL_HEADER_SIZE + u16( src, localOffset + 26 ) + u16( src, localOffset + 28 ) + compressed;
+
+        if ( ( u16( src, localOffset + 6 ) & DATA_DESCRIPTOR_FLAG ) != 0 )
+        {
+            final long descriptor = localOffset + len;
+            len += descriptor + 4 <= src.limit() && src.getInt( (int) descriptor ) == DATA_DESCRIPTOR_SIG ? 16 : 12;
+        }
+
+        return localOffset + len > src.limit() ? -1 : (int) len;
+    }
+
+    private static int findEnd( final ByteBuffer src )
+    {
+        final int last = src.limit() - END_SIZE;
+        final int first = Math.max( 0, last - MAX_COMMENT );
+        for ( int pos = last; pos >= first; pos-- )
+        {
+            if ( src.getInt( pos ) == END_SIG && pos + END_SIZE + u16( src, pos + 20 ) == src.limit() )
+            {
+                return pos;
+            }
+        }
+
+        return -1;
+    }
+
+    private static String name( final ByteBuffer src, final int pos, final int len )
+        throws IOException
+    {
+        final byte[] bytes = new byte[len];
+        slice( src, pos, len ).get( bytes );
+
+        // same default as JarFile.
+        return new String( bytes, "UTF-8" );
+    }
+
+    private static ByteBuffer slice( final ByteBuffer src, final int pos, final int len )
+    {
+        final ByteBuffer dup = src.duplicate();
+        dup.position( pos );
+        dup.limit( pos + len );
+
+        return dup.slice();
+    }
+
+    private static void write( final FileChannel out, final ByteBuffer buf )
+        throws IOException
+    {
+        while ( buf.hasRemaining() )
+        {
+            out.write( buf );
+        }
+    }
+
+    private static int u16( final ByteBuffer src, final int pos )
+    {
+        return src.getShort( pos ) & 0xffff;
+    }
+
+    private static long u32( final ByteBuffer src, final int pos )
+    {
+        return src.getInt( pos ) & 0xffffffffL;
+    }
+
+}
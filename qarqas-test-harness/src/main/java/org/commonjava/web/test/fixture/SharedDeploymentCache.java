@@ -0,0 +1,147 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.commonjava.util.logging.Logger;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.exporter.ZipExporter;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+
+/**
+ * Holds the test-class-independent parts of test deployments built by {@link TestWarArchiveBuilder}, keyed by a
+ * fingerprint of their inputs. Each part is kept in memory for the life of the JVM and, optionally, as a WAR file on
+ * disk for later JVMs. Several builders (eg. in different test classes) can share one directory, so stored archives
+ * are only deleted once none of them has used them for {@link #STALE_AGE} ms.
+ */
+final class SharedDeploymentCache
+{
+
+    private static final Logger logger = new Logger( SharedDeploymentCache.class );
+
+    private static final String EXTENSION = ".war";
+
+    private static final long STALE_AGE = 24 * 60 * 60 * 1000L;
+
+    private static final Map<String, WebArchive> ARCHIVES = new HashMap<String, WebArchive>();
+
+    private SharedDeploymentCache()
+    {
+    }
+
+    /**
+     * @param dir where to store the archive as a file, or null to keep it in memory only.
+     * @param builder builds the archive if it isn't cached.
+     */
+    static synchronized WebArchive get( final String fingerprint, final File dir, final Callable<WebArchive> builder )
+    {
+        WebArchive archive = ARCHIVES.get( fingerprint );
+        if ( archive != null )
+        {
+            return archive;
+        }
+
+        final File file = dir == null ? null : new File( dir, fingerprint + EXTENSION );
+        if ( file != null && file.isFile() )
+        {
+            logger.info( "Loading shared deployment: %s", file );
+            archive = ShrinkWrap.createFromZipFile( WebArchive.class, file );
+
+            // mark it as in use, so it isn't pruned as stale.
+            file.setLastModified( System.currentTimeMillis() );
+        }
+        else
+        {
+            final long start = System.currentTimeMillis();
+            try
+            {
+                archive = builder.call();
+            }
+            catch ( final Exception e )
+            {
+                throw new RuntimeException( "Failed to build shared deployment: " + e.getMessage(), e );
+            }
+
+            logger.info( "Built shared deployment: %s in %d ms", fingerprint, System.currentTimeMillis() - start );
+
+            if ( file != null )
+            {
+                store( archive, file );
+            }
+        }
+
+        ARCHIVES.put( fingerprint, archive );
+        return archive;
+    }
+
+    /**
+     * Write the archive to a temporary file and rename it into place, so another JVM never loads a partial archive.
+     * Archives stored for other fingerprints that haven't been stored or loaded for {@link #STALE_AGE} ms are stale,
+     * and are deleted.
+     */
+    private static void store( final WebArchive archive, final File file )
+    {
+        final File dir = file.getParentFile();
+        dir.mkdirs();
+
+        File tmp = null;
+        try
+        {
+            tmp = File.createTempFile( "shared.", ".tmp", dir );
+            archive.as( ZipExporter.class )
+                   .exportTo( tmp, true );
+
+            if ( !tmp.renameTo( file ) && !file.isFile() )
+            {
+                logger.warn( "Cannot store shared deployment: %s", file );
+                return;
+            }
+        }
+        catch ( final IOException e )
+        {
+            logger.warn( "Cannot store shared deployment: %s. Reason: %s", file, e.getMessage() );
+            return;
+        }
+        finally
+        {
+            if ( tmp != null )
+            {
+                tmp.delete();
+            }
+        }
+
+        final long staleBefore = System.currentTimeMillis() - STALE_AGE;
+        final File[] stored = dir.listFiles();
+        if ( stored != null )
+        {
+            for ( final File f : stored )
+            {
+                if ( f.getName()
+                      .endsWith( EXTENSION ) && !f.equals( file ) && f.lastModified() < staleBefore )
+                {
+                    logger.info( "Deleting stale shared deployment: %s", f );
+                    f.delete();
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,234 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.commonjava.util.logging.Logger;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ArchivePath;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.asset.FileAsset;
+
+/**
+ * Writes an archive to a zip file one entry at a time, through a fixed-size buffer, so the memory used doesn't depend
+ * on the size of the deployment. Entries of a base WAR are copied straight from its file afterwards, skipping any path
+ * the archive has its own entry for, rather than being imported into the archive first.
+ */
+final class StreamingWarExporter
+{
+
+    private static final Logger logger = new Logger( StreamingWarExporter.class );
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final ZipOutputStream zip;
+
+    private final Set<String> written = new HashSet<String>();
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+
+    private StreamingWarExporter( final ZipOutputStream zip )
+    {
+        this.zip = zip;
+    }
+
+    /**
+     * Write to a temporary file and rename it into place, so the target is never left half-written.
+     *
+     * @param baseWar merged underneath the archive, or null.
+     */
+    static void export( final Archive<?> archive, final File baseWar, final File target )
+        throws IOException
+    {
+        final long start = System.currentTimeMillis();
+
+        final File dir = target.getAbsoluteFile()
+                               .getParentFile();
+        dir.mkdirs();
+
+        File tmp = null;
+        ZipOutputStream zip = null;
+        try
+        {
+            tmp = File.createTempFile( target.getName() + ".", ".tmp", dir );
+            zip = new ZipOutputStream( new BufferedOutputStream( new FileOutputStream( tmp ) ) );
+
+            final StreamingWarExporter exporter = new StreamingWarExporter( zip );
+            exporter.writeArchive( archive );
+            if ( baseWar != null )
+            {
+                exporter.writeBase( baseWar );
+            }
+
+            zip.close();
+
+            if ( !tmp.renameTo( target ) )
+            {
+                target.delete();
+                if ( !tmp.renameTo( target ) )
+                {
+                    throw new IOException( "Cannot replace: " + target );
+                }
+            }
+
+            logger.info( "Exported %s to: %s in %d ms (%d entries)", archive.getName(), target,
+                         System.currentTimeMillis() - start, exporter.written.size() );
+        }
+        finally
+        {
+            closeQuietly( zip );
+            if ( tmp != null )
+            {
+                tmp.delete();
+            }
+        }
+    }
+
+    private void writeArchive( final Archive<?> archive )
+        throws IOException
+    {
+        // sorted, so each directory entry comes before its contents and the zip is the same from run to run.
+        final Map<String, Asset> entries = new TreeMap<String, Asset>();
+        for ( final Map.Entry<ArchivePath, Node> entry : archive.getContent()
+                                                                .entrySet() )
+        {
+            entries.put( entry.getKey()
+                              .get()
+                              .substring( 1 ), entry.getValue()
+                                                    .getAsset() );
+        }
+
+        for ( final Map.Entry<String, Asset> entry : entries.entrySet() )
+        {
+            final String path = entry.getKey();
+            final Asset asset = entry.getValue();
+            if ( asset == null )
+            {
+                putDirectory( path, -1 );
+            }
+            else if ( asset instanceof FileAsset )
+            {
+                final File source = ( (FileAsset) asset ).getSource();
+                put( path, new FileInputStream( source ), source.lastModified() );
+            }
+            else
+            {
+                put( path, asset.openStream(), -1 );
+            }
+        }
+    }
+
+    private void writeBase( final File baseWar )
+        throws IOException
+    {
+        ZipInputStream base = null;
+        try
+        {
+            base = new ZipInputStream( new FileInputStream( baseWar ) );
+
+            ZipEntry entry;
+            while ( ( entry = base.getNextEntry() ) != null )
+            {
+                if ( entry.isDirectory() )
+                {
+                    final String name = entry.getName();
+                    putDirectory( name.substring( 0, name.length() - 1 ), entry.getTime() );
+                }
+                else
+                {
+                    copy( base, entry.getName(), entry.getTime() );
+                }
+            }
+        }
+        finally
+        {
+            closeQuietly( base );
+        }
+    }
+
+    private void putDirectory( final String path, final long time )
+        throws IOException
+    {
+        if ( path.length() < 1 || !written.add( path + "/" ) )
+        {
+            return;
+        }
+
+        final ZipEntry entry = new ZipEntry( path + "/" );
+        if ( time > -1 )
+        {
+            entry.setTime( time );
+        }
+
+        zip.putNextEntry( entry );
+        zip.closeEntry();
+    }
+
+    private void put( final String path, final InputStream in, final long time )
+        throws IOException
+    {
+        try
+        {
+            copy( in, path, time );
+        }
+        finally
+        {
+            closeQuietly( in );
+        }
+    }
+
+    private void copy( final InputStream in, final String path, final long time )
+        throws IOException
+    {
+        if ( !written.add( path ) )
+        {
+            return;
+        }
+
+        final ZipEntry entry = new ZipEntry( path );
+        if ( time > -1 )
+        {
+            entry.setTime( time );
+        }
+
+        zip.putNextEntry( entry );
+
+        int read;
+        while ( ( read = in.read( buffer ) ) > -1 )
+        {
+            zip.write( buffer, 0, read );
+        }
+
+        zip.closeEntry();
+    }
+
+}
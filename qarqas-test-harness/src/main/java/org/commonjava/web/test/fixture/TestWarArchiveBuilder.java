@@ -15,26 +15,53 @@
  ******************************************************************************/
 package org.commonjava.web.test.fixture;
 
+import static org.apache.commons.io.IOUtils.closeQuietly;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.commonjava.qarqas.lib.ProvidedLibraries;
 import org.commonjava.util.logging.Logger;
+import org.jboss.shrinkwrap.api.ArchivePath;
+import org.jboss.shrinkwrap.api.Node;
 import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
 import org.jboss.shrinkwrap.api.asset.ClassLoaderAsset;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
 import org.jboss.shrinkwrap.api.asset.UrlAsset;
 import org.jboss.shrinkwrap.api.spec.WebArchive;
 
 public class TestWarArchiveBuilder
 {
 
+    private static final String SHARED_LIBS_MODULE_EXPORT = QarqasExports.PREFIX + "shared-libs.module";
+
+    private static final String SHARED_LIBS_JARS_EXPORT = QarqasExports.PREFIX + "shared-libs.jars";
+
     private final Logger logger = new Logger( TestWarArchiveBuilder.class );
 
     protected WebArchive war;
@@ -45,36 +72,8 @@ public class TestWarArchiveBuilder
 
     private final Set<String> excludedBuildOutput = new HashSet<String>();
 
-    private static final Set<String> DEFAULT_LIB_FILTERS = new HashSet<String>()
-    {
-        private static final long serialVersionUID = 1L;
-
-        {
-            add( "jboss.+" );
-            add( "arquillian.+" );
-            add( "jbosgi.+" );
-            add( "jsoup.+" );
-            add( "cal10n.+" );
-            add( "cdi-api.+" );
-            add( "commons-httpclient.+" );
-            add( "el-api.+" );
-            add( "guava.+" );
-            add( "httpserver.+" );
-            add( "jandex.+" );
-            add( "javassist.+" );
-            add( "javax.inject.+" );
-            add( "jaxrs-api.+" );
-            add( "jcip-annotations.+" );
-            add( "jsr250-api.+" );
-            add( "shrinkwrap.+" );
-            add( "staxmapper.+" );
-            add( "tjws.+" );
-            add( "weld.+" );
-            add( "xnio.+" );
-            add( "resteasy.+" );
-            add( "scannotation.+" );
-        }
-    };
+    private static final Set<String> DEFAULT_LIB_FILTERS =
+        new HashSet<String>( Arrays.asList( ProvidedLibraries.FILE_PATTERNS.split( "," ) ) );
 
     private final Set<String> libraryFilters = new HashSet<String>()
     {
@@ -85,15 +84,31 @@ public class TestWarArchiveBuilder
         }
     };
 
+    private File baseWar;
+
     private File librariesDir;
 
     private File knockoutRewritesDir = new File( "target/knockout-rewritten" );
 
+    private File indexDir = new File( "target/qarqas-index" );
+
+    private final Map<File, List<BuildOutputIndex.Entry>> scans = new HashMap<File, List<BuildOutputIndex.Entry>>();
+
     private final Map<String, JarKnockouts> knockouts = new HashMap<String, JarKnockouts>();
 
-    private boolean beansXmlIncluded;
+    private DuplicateEntryPolicy duplicatePolicy = DuplicateEntryPolicy.REPORT;
+
+    private boolean sharedDeployment;
+
+    private File sharedDeploymentDir;
 
-    private boolean webXmlIncluded;
+    private boolean isolated;
+
+    private File testOutput = new File( "target/test-classes" ).getAbsoluteFile();
+
+    private String beansXmlResource;
+
+    private String webXmlResource;
 
     private final Set<String> classloaderResources = new HashSet<String>()
     {
@@ -126,7 +141,49 @@ public class TestWarArchiveBuilder
     public TestWarArchiveBuilder( final File baseWar, final Class<?> testClass, final File buildOutput )
     {
         this( testClass, buildOutput );
-        war.merge( ShrinkWrap.createFromZipFile( WebArchive.class, baseWar ) );
+        this.baseWar = baseWar;
+    }
+
+    /**
+     * Build the part of the archive that doesn't depend on the test class (libraries, build output and classloader
+     * resources) once per JVM, and reuse it for every test class with the same inputs. Each build() then only adds the
+     * test class's own content on top.
+     */
+    public TestWarArchiveBuilder withSharedDeployment()
+    {
+        this.sharedDeployment = true;
+        return this;
+    }
+
+    /**
+     * As {@link #withSharedDeployment()}, but the shared part is also stored as a WAR in the given directory (eg.
+     * target/qarqas-deployments), so later test JVMs and builds with the same inputs load it instead of building it.
+     */
+    public TestWarArchiveBuilder withSharedDeployment( final File directory )
+    {
+        this.sharedDeployment = true;
+        this.sharedDeploymentDir = directory;
+        return this;
+    }
+
+    /**
+     * Give this test class a deployment of its own, deployed before and undeployed after the class. By default,
+     * {@link #build()} returns an aggregate deployment that holds all of the module's test classes (from the test
+     * output directory), which is deployed once and shared by every test class that builds the same configuration.
+     */
+    public TestWarArchiveBuilder withIsolatedDeployment()
+    {
+        this.isolated = true;
+        return this;
+    }
+
+    /**
+     * Where the module's compiled test classes are, for the aggregate deployment. Defaults to target/test-classes.
+     */
+    public TestWarArchiveBuilder withTestOutput( final File directory )
+    {
+        this.testOutput = directory.getAbsoluteFile();
+        return this;
     }
 
     public TestWarArchiveBuilder withKnockoutRewritesDir( final File directory )
@@ -135,12 +192,22 @@ public class TestWarArchiveBuilder
         return this;
     }
 
+    /**
+     * Where to keep the listings of build output directories between runs (see {@link BuildOutputIndex}).
+     */
+    public TestWarArchiveBuilder withIndexDir( final File directory )
+    {
+        this.indexDir = directory;
+        return this;
+    }
+
     public TestWarArchiveBuilder withJarKnockoutPaths( final String jarNamePattern, final String... paths )
     {
         JarKnockouts jk = knockouts.get( jarNamePattern );
         if ( jk == null )
         {
             jk = new JarKnockouts();
+            knockouts.put( jarNamePattern, jk );
         }
 
         jk.knockoutPaths( paths );
@@ -154,6 +221,7 @@ public class TestWarArchiveBuilder
         if ( jk == null )
         {
             jk = new JarKnockouts();
+            knockouts.put( jarNamePattern, jk );
         }
 
         jk.knockoutClasses( classes );
@@ -168,6 +236,59 @@ public class TestWarArchiveBuilder
         return this;
     }
 
+    /**
+     * Reference the shared-library module installed by the qarqas-maven-plugin's 'shared-libs' configurator, instead
+     * of packaging the jars it contains. The module and its jars are read from the exported qarqas.properties; if they
+     * aren't there, the libraries are packaged as usual.
+     */
+    public TestWarArchiveBuilder withSharedLibraryModule()
+    {
+        final Properties exports;
+        try
+        {
+            exports = QarqasExports.load();
+        }
+        catch ( final IOException e )
+        {
+            logger.warn( "Cannot read %s: %s. Packaging all libraries.", QarqasExports.RESOURCE, e.getMessage() );
+            return this;
+        }
+
+        final String module = exports.getProperty( SHARED_LIBS_MODULE_EXPORT );
+        final String jars = exports.getProperty( SHARED_LIBS_JARS_EXPORT );
+        if ( module == null || jars == null )
+        {
+            logger.warn( "No shared-library module exported in %s. Packaging all libraries.", QarqasExports.RESOURCE );
+            return this;
+        }
+
+        for ( final String jar : jars.split( "," ) )
+        {
+            if ( jar.trim()
+                    .length() > 0 )
+            {
+                libraryFilters.add( Pattern.quote( jar.trim() ) );
+            }
+        }
+
+        // services="import" so providers registered under META-INF/services in the module's jars are still found.
+        war.addAsWebInfResource( new StringAsset( "<jboss-deployment-structure>\n  <deployment>\n    <dependencies>\n"
+            + "      <module name=\"" + module + "\" services=\"import\"/>\n    </dependencies>\n  </deployment>\n"
+            + "</jboss-deployment-structure>\n" ), "jboss-deployment-structure.xml" );
+
+        return this;
+    }
+
+    /**
+     * What to do about classes and resources that more than one library contains. Defaults to
+     * {@link DuplicateEntryPolicy#REPORT}.
+     */
+    public TestWarArchiveBuilder withDuplicateEntryPolicy( final DuplicateEntryPolicy policy )
+    {
+        this.duplicatePolicy = policy;
+        return this;
+    }
+
     public TestWarArchiveBuilder withoutLibrary( final String filePattern )
     {
         libraryFilters.add( filePattern );
@@ -225,132 +346,485 @@ public class TestWarArchiveBuilder
     public TestWarArchiveBuilder withBeansXml( final String beansXmlResource )
     {
         war.addAsWebInfResource( new ClassLoaderAsset( beansXmlResource ), "beans.xml" );
-        beansXmlIncluded = true;
+        this.beansXmlResource = beansXmlResource;
         return this;
     }
 
     public TestWarArchiveBuilder withWebXml( final String webXmlResource )
     {
         war.addAsWebInfResource( new ClassLoaderAsset( webXmlResource ), "web.xml" );
-        webXmlIncluded = true;
+        this.webXmlResource = webXmlResource;
         return this;
     }
 
+    /**
+     * Build the archive in memory. Unless {@link #withIsolatedDeployment()} was used, this is a copy of the aggregate
+     * deployment shared by all test classes with the same configuration, which is only built once per JVM. In that
+     * case the result must not be modified: a copy with entries added, removed or replaced no longer matches the
+     * aggregate, so it is deployed separately, for this test class alone. Make any additions to this builder (or its
+     * war) before calling build() instead. If there is a base WAR, all of its entries are imported into the result (see
+     * {@link #buildTo(File)} to avoid that).
+     */
     public WebArchive build()
     {
-        if ( !beansXmlIncluded )
+        scans.clear();
+
+        if ( isolated )
+        {
+            return buildArchive();
+        }
+
+        return AggregateDeployment.get( aggregateFingerprint(), new AggregatePart() );
+    }
+
+    private WebArchive buildArchive()
+    {
+        assemble();
+        if ( baseWar == null )
+        {
+            return war;
+        }
+
+        // entries added by this builder take precedence over those of the base WAR.
+        final WebArchive merged = ShrinkWrap.create( WebArchive.class, war.getName() );
+        merged.merge( ShrinkWrap.createFromZipFile( WebArchive.class, baseWar ) );
+        merged.merge( war );
+
+        return merged;
+    }
+
+    /**
+     * As {@link #build()}, but stream the archive straight into a WAR file, copying the base WAR's entries one at a
+     * time from its file rather than importing them. Libraries and build output are read from their files as they are
+     * written, so memory use stays the same however large the deployment is.
+     *
+     * @return the file written.
+     */
+    public File buildTo( final File file )
+        throws IOException
+    {
+        scans.clear();
+        StreamingWarExporter.export( assemble(), baseWar, file );
+        return file;
+    }
+
+    private WebArchive assemble()
+    {
+        if ( beansXmlResource == null )
         {
             war.addAsWebInfResource( new ClassLoaderAsset( "beans.xml.test" ), "beans.xml" );
         }
 
-        if ( !webXmlIncluded )
+        if ( webXmlResource == null )
         {
             war.addAsWebInfResource( new ClassLoaderAsset( "test.web.xml" ), "web.xml" );
         }
 
-        for ( final String resource : classloaderResources )
+        if ( sharedDeployment )
+        {
+            war.merge( SharedDeploymentCache.get( sharedFingerprint(), sharedDeploymentDir, new SharedPart() ) );
+        }
+        else
         {
-            final ClassLoader cloader = Thread.currentThread()
-                                              .getContextClassLoader();
+            addShared( war );
+        }
 
-            final URL u = cloader.getResource( resource );
+        return war;
+    }
+
+    /**
+     * As {@link #build()}, but write the archive out as a directory named after it (eg. target/exploded/test.war),
+     * for deployment by path with {@link ExplodedDeployer} instead of being zipped, shipped and unpacked again. Files
+     * that haven't changed since the last call are left alone, so a redeploy only sees what changed.
+     *
+     * @return the exploded archive's directory.
+     */
+    public File buildExploded( final File directory )
+        throws IOException
+    {
+        scans.clear();
+
+        final WebArchive archive = assemble();
+        final File exploded = new File( directory, archive.getName() );
+        ExplodedWarWriter.write( archive, baseWar, exploded );
+
+        return exploded;
+    }
+
+    /**
+     * Add everything that doesn't depend on the test class: classloader resources, libraries and build output.
+     */
+    private void addShared( final WebArchive archive )
+    {
+        for ( final String resource : classloaderResources )
+        {
+            final URL u = getResource( resource );
             if ( u != null )
             {
-                war.addAsWebInfResource( new UrlAsset( u ), "classes/" + resource );
+                archive.addAsWebInfResource( new UrlAsset( u ), "classes/" + resource );
             }
         }
 
         if ( librariesDir != null )
         {
-            final File[] files = librariesDir.listFiles();
-            if ( files != null )
+            addLibraries( archive );
+        }
+
+        addDirectoryClasses( archive, buildOutput );
+    }
+
+    /**
+     * Fingerprint of everything {@link #addShared(WebArchive)} would add, from file names, sizes and timestamps (no
+     * file content is read), plus the settings that affect it.
+     */
+    private String sharedFingerprint()
+    {
+        final MessageDigest digest = JarKnockouts.sha1();
+
+        final List<String> resources = new ArrayList<String>( classloaderResources );
+        Collections.sort( resources );
+        for ( final String resource : resources )
+        {
+            update( digest, "resource:" + resource + "=" + getResource( resource ) );
+        }
+
+        final List<String> filters = new ArrayList<String>( libraryFilters );
+        Collections.sort( filters );
+        update( digest, "filters:" + filters );
+
+        final Map<String, List<String>> knockoutPaths = new TreeMap<String, List<String>>();
+        for ( final Map.Entry<String, JarKnockouts> entry : knockouts.entrySet() )
+        {
+            final List<String> paths = new ArrayList<String>( Arrays.asList( entry.getValue()
+                                                                                  .getKnockedOutPaths() ) );
+            Collections.sort( paths );
+            knockoutPaths.put( entry.getKey(), paths );
+        }
+        update( digest, "knockouts:" + knockoutPaths );
+        update( digest, "duplicates:" + duplicatePolicy );
+
+        if ( librariesDir != null )
+        {
+            update( digest, "libraries:" + librariesDir.getAbsolutePath() );
+            fingerprintFiles( digest, librariesDir, TrueFileFilter.INSTANCE );
+        }
+
+        update( digest, "classes:" + buildOutput );
+        for ( final BuildOutputIndex.Entry entry : scan( buildOutput ) )
+        {
+            update( digest, entry.getPath() + ":" + entry.length() + ":" + entry.lastModified() );
+        }
+
+        return JarKnockouts.hex( digest.digest() );
+    }
+
+    /**
+     * Fingerprint of everything that goes into an aggregate deployment: the shared part, the base WAR, the test output
+     * and the content of this builder's own war. The test class itself is left out, since the test output already has
+     * it; test classes that build the same configuration get the same fingerprint, and so the same deployment.
+     */
+    private String aggregateFingerprint()
+    {
+        final MessageDigest digest = JarKnockouts.sha1();
+        update( digest, "shared:" + sharedFingerprint() );
+
+        if ( baseWar != null )
+        {
+            update( digest,
+                    "base:" + baseWar.getAbsolutePath() + ":" + baseWar.length() + ":" + baseWar.lastModified() );
+        }
+
+        update( digest, "tests:" + testOutput );
+        final Set<String> testPaths = new HashSet<String>();
+        for ( final BuildOutputIndex.Entry entry : scan( testOutput ) )
+        {
+            update( digest, entry.getPath() + ":" + entry.length() + ":" + entry.lastModified() );
+            testPaths.add( "/WEB-INF/classes/" + entry.getPath() );
+        }
+
+        // whatever is in the builder's own war so far (the test class, extra classes, descriptors, and anything a
+        // subclass added), by content. Test classes are left out, since they come from the test output above.
+        final Map<String, Asset> own = new TreeMap<String, Asset>();
+        for ( final Map.Entry<ArchivePath, Node> entry : war.getContent()
+                                                            .entrySet() )
+        {
+            final String path = entry.getKey()
+                                     .get();
+            final Asset asset = entry.getValue()
+                                     .getAsset();
+            if ( asset != null && !testPaths.contains( path ) )
             {
-                libs: for ( final File file : files )
-                {
-                    File f = file;
-
-                    if ( f.isDirectory() )
-                    {
-                        logger.info( "Adding classes from exploded library directory: %s", f );
-                        addDirectoryClasses( f );
-                    }
-                    else
-                    {
-                        final String fname = f.getName();
-
-                        for ( final String pattern : libraryFilters )
-                        {
-                            if ( fname.matches( pattern ) )
-                            {
-                                continue libs;
-                            }
-                        }
-
-                        final Set<JarKnockouts> jks = new HashSet<JarKnockouts>();
-                        for ( final Map.Entry<String, JarKnockouts> entry : this.knockouts.entrySet() )
-                        {
-                            if ( fname.matches( entry.getKey() ) )
-                            {
-                                jks.add( entry.getValue() );
-                            }
-                        }
-
-                        if ( !jks.isEmpty() )
-                        {
-                            try
-                            {
-                                f = JarKnockouts.rewriteJar( f, knockoutRewritesDir, jks );
-                            }
-                            catch ( final IOException e )
-                            {
-                                throw new RuntimeException( "Failed to rewrite jar: " + fname
-                                    + " with knock-outs. Error: " + e.getMessage(), e );
-                            }
-                        }
-
-                        logger.info( "Adding library: %s", f );
-                        war.addAsLibrary( f );
-                    }
-                }
+                own.put( path, asset );
             }
         }
 
-        addDirectoryClasses( buildOutput );
+        for ( final Map.Entry<String, Asset> entry : own.entrySet() )
+        {
+            update( digest, "entry:" + entry.getKey() );
+            updateContent( digest, entry.getKey(), entry.getValue() );
+        }
 
-        return war;
+        return JarKnockouts.hex( digest.digest() );
     }
 
-    private void addDirectoryClasses( final File dir )
+    private static void updateContent( final MessageDigest digest, final String path, final Asset asset )
     {
-        logger.info( "Scanning classes directory: '%s' (directory? %b)...", dir, dir.isDirectory() );
+        final byte[] buffer = new byte[8192];
+        InputStream in = null;
+        try
+        {
+            in = asset.openStream();
+            int read;
+            while ( ( read = in.read( buffer ) ) > -1 )
+            {
+                digest.update( buffer, 0, read );
+            }
+        }
+        catch ( final IOException e )
+        {
+            throw new RuntimeException( "Cannot read archive entry: " + path + ". Error: " + e.getMessage(), e );
+        }
+        finally
+        {
+            closeQuietly( in );
+        }
+    }
+
+    private static void fingerprintFiles( final MessageDigest digest, final File dir, final IOFileFilter filter )
+    {
+        if ( !dir.isDirectory() )
+        {
+            return;
+        }
 
         final String prefix = dir.getAbsolutePath();
-        final IOFileFilter filter = new ExcludesFileFilter( prefix, excludedBuildOutput );
+        final List<File> files = new ArrayList<File>( FileUtils.listFiles( dir, filter, filter ) );
+        Collections.sort( files );
+        for ( final File f : files )
+        {
+            update( digest, subpath( prefix, f ) + ":" + f.length() + ":" + f.lastModified() );
+        }
+    }
+
+    private static void update( final MessageDigest digest, final String value )
+    {
+        try
+        {
+            digest.update( ( value + "\n" ).getBytes( "UTF-8" ) );
+        }
+        catch ( final UnsupportedEncodingException e )
+        {
+            throw new IllegalStateException( "UTF-8 is not supported: " + e.getMessage(), e );
+        }
+    }
+
+    private static URL getResource( final String resource )
+    {
+        return Thread.currentThread()
+                     .getContextClassLoader()
+                     .getResource( resource );
+    }
+
+    /**
+     * Classify and index all libraries concurrently, deal with duplicated entries (see {@link DuplicateEntryPolicy}),
+     * rewrite (see {@link JarKnockouts}) the libraries that need it concurrently, then add them to the archive one by
+     * one in file-name order, so the archive comes out the same on every run.
+     */
+    private void addLibraries( final WebArchive archive )
+    {
+        final File[] files = librariesDir.listFiles();
+        if ( files == null || files.length < 1 )
+        {
+            return;
+        }
+
+        Arrays.sort( files );
+
+        final Pattern excluded = anyOf( libraryFilters );
+        final Map<Pattern, JarKnockouts> knockoutMatchers = new LinkedHashMap<Pattern, JarKnockouts>();
+        for ( final Map.Entry<String, JarKnockouts> entry : knockouts.entrySet() )
+        {
+            knockoutMatchers.put( Pattern.compile( entry.getKey() ), entry.getValue() );
+        }
 
-        for ( final File f : FileUtils.listFiles( dir, filter, filter ) )
+        final int threads = Math.min( files.length, Runtime.getRuntime()
+                                                           .availableProcessors() );
+        final ExecutorService executor = Executors.newFixedThreadPool( threads );
+        try
         {
-            if ( f.isFile() )
+            // exploded library directories are added as-is, in their place in the order.
+            final List<Future<Library>> classified = new ArrayList<Future<Library>>();
+            for ( final File file : files )
+            {
+                classified.add( file.isDirectory() ? null
+                                : executor.submit( new LibraryTask( file, excluded, knockoutMatchers ) ) );
+            }
+
+            final List<Library> libraries = new ArrayList<Library>();
+            for ( int i = 0; i < files.length; i++ )
+            {
+                final Future<Library> library = classified.get( i );
+                libraries.add( library == null ? null : await( library, files[i] ) );
+            }
+
+            if ( duplicatePolicy != DuplicateEntryPolicy.IGNORE )
+            {
+                resolveDuplicates( libraries );
+            }
+
+            final List<Future<File>> rewritten = new ArrayList<Future<File>>();
+            for ( final Library library : libraries )
+            {
+                rewritten.add( library == null || library.omitted ? null
+                                : executor.submit( new RewriteTask( library ) ) );
+            }
+
+            for ( int i = 0; i < files.length; i++ )
             {
-                if ( f.getName()
-                      .endsWith( ".class" ) )
+                if ( files[i].isDirectory() )
                 {
-                    war.addClass( classname( prefix, f ) );
+                    logger.info( "Adding classes from exploded library directory: %s", files[i] );
+                    addDirectoryClasses( archive, files[i] );
+                    continue;
                 }
-                else
+
+                final Future<File> library = rewritten.get( i );
+                if ( library != null )
                 {
-                    war.addAsWebInfResource( f, "classes/" + subpath( prefix, f ) );
+                    final File f = await( library, files[i] );
+                    logger.info( "Adding library: %s", f );
+                    archive.addAsLibrary( f );
                 }
             }
         }
+        finally
+        {
+            executor.shutdownNow();
+        }
     }
 
-    private static String classname( final String prefix, final File f )
+    /**
+     * Report the libraries that contain entries of libraries earlier in the order and, under
+     * {@link DuplicateEntryPolicy#KNOCKOUT}, knock those entries out of them.
+     */
+    private void resolveDuplicates( final List<Library> libraries )
     {
-        String path = subpath( prefix, f );
-        path = path.replace( '/', '.' );
-        path = path.substring( 0, path.length() - ".class".length() );
+        final DuplicateEntryIndex index = new DuplicateEntryIndex();
+        int total = 0;
+        for ( final Library library : libraries )
+        {
+            if ( library == null || library.listing == null )
+            {
+                continue;
+            }
+
+            final List<String> duplicates = index.add( library.file, library.listing.entries );
+            if ( duplicates.isEmpty() )
+            {
+                continue;
+            }
+
+            total += duplicates.size();
+
+            final String example = duplicates.get( 0 );
+            logger.warn( "%s duplicates %d of %d entries from other libraries (eg. %s, from %s)",
+                         library.file.getName(), duplicates.size(), library.listing.entries.size(), example,
+                         index.getOwner( example )
+                              .getName() );
+
+            if ( duplicatePolicy != DuplicateEntryPolicy.KNOCKOUT )
+            {
+                continue;
+            }
+
+            if ( DuplicateEntryIndex.isRedundant( library.listing, duplicates ) )
+            {
+                logger.info( "Leaving out library: %s. All of its entries are duplicates.", library.file.getName() );
+                library.omitted = true;
+            }
+            else
+            {
+                final String[] paths = duplicates.toArray( new String[duplicates.size()] );
+                library.knockouts.add( new JarKnockouts().knockoutPaths( paths ) );
+            }
+        }
+
+        if ( total > 0 && duplicatePolicy == DuplicateEntryPolicy.REPORT )
+        {
+            logger.warn( "Libraries contain %d duplicate entries. Use withDuplicateEntryPolicy( %s ) to remove them.",
+                         total, DuplicateEntryPolicy.KNOCKOUT );
+        }
+    }
+
+    private static <T> T await( final Future<T> task, final File file )
+    {
+        try
+        {
+            return task.get();
+        }
+        catch ( final InterruptedException e )
+        {
+            Thread.currentThread()
+                  .interrupt();
+            throw new RuntimeException( "Interrupted while processing library: " + file.getName() );
+        }
+        catch ( final ExecutionException e )
+        {
+            final Throwable cause = e.getCause();
+            throw new RuntimeException( "Failed to process library: " + file.getName() + ". Error: "
+                + cause.getMessage(), cause );
+        }
+    }
+
+    /**
+     * Combine the patterns into a single pattern that matches whatever any of them matches, so each library name is
+     * matched once instead of once per pattern.
+     */
+    private static Pattern anyOf( final Set<String> patterns )
+    {
+        final StringBuilder sb = new StringBuilder();
+        for ( final String pattern : patterns )
+        {
+            if ( sb.length() > 0 )
+            {
+                sb.append( '|' );
+            }
+            sb.append( "(?:" )
+              .append( pattern )
+              .append( ')' );
+        }
 
-        return path;
+        return Pattern.compile( sb.length() > 0 ? sb.toString() : "(?!)" );
+    }
+
+    /**
+     * Add every non-excluded file in the directory under WEB-INF/classes. Class files are added as files too, rather
+     * than loading each class to add it by name.
+     */
+    private void addDirectoryClasses( final WebArchive archive, final File dir )
+    {
+        logger.info( "Scanning classes directory: '%s' (directory? %b)...", dir, dir.isDirectory() );
+
+        for ( final BuildOutputIndex.Entry entry : scan( dir ) )
+        {
+            archive.addAsWebInfResource( entry.getFile(), "classes/" + entry.getPath() );
+        }
+    }
+
+    /**
+     * Scan each directory at most once per build, since the shared-deployment fingerprint and the archive itself both
+     * need the listing.
+     */
+    private List<BuildOutputIndex.Entry> scan( final File dir )
+    {
+        List<BuildOutputIndex.Entry> entries = scans.get( dir );
+        if ( entries == null )
+        {
+            entries = new BuildOutputIndex( dir, indexDir ).scan( new PrefixTrie( excludedBuildOutput ) );
+            scans.put( dir, entries );
+        }
+
+        return entries;
     }
 
     private static String subpath( final String trimPrefix, final File file )
@@ -370,33 +844,148 @@ public class TestWarArchiveBuilder
         return result;
     }
 
+    private final class AggregatePart
+        implements Callable<WebArchive>
+    {
+        @Override
+        public WebArchive call()
+        {
+            final WebArchive aggregate = buildArchive();
+            addDirectoryClasses( aggregate, testOutput );
+            return aggregate;
+        }
+    }
+
+    private final class SharedPart
+        implements Callable<WebArchive>
+    {
+        @Override
+        public WebArchive call()
+        {
+            final WebArchive shared = ShrinkWrap.create( WebArchive.class, "shared.war" );
+            addShared( shared );
+            return shared;
+        }
+    }
+
+    /**
+     * A library to package, with the knock-outs to apply to it.
+     */
+    private static final class Library
+    {
+        private final File file;
+
+        private final Set<JarKnockouts> knockouts;
+
+        /**
+         * Entries to check for duplicates, or null if not checked.
+         */
+        private final DuplicateEntryIndex.Listing listing;
+
+        private boolean omitted;
+
+        Library( final File file, final Set<JarKnockouts> knockouts, final DuplicateEntryIndex.Listing listing )
+        {
+            this.file = file;
+            this.knockouts = knockouts;
+            this.listing = listing;
+        }
+    }
+
+    /**
+     * Decides whether a library is filtered out, finds the knock-outs that apply to it, and lists its entries for the
+     * duplicate check.
+     * 
+     * @return the library, or null if it is filtered out.
+     */
+    private final class LibraryTask
+        implements Callable<Library>
+    {
+        private final File file;
+
+        private final Pattern excluded;
+
+        private final Map<Pattern, JarKnockouts> knockoutMatchers;
+
+        LibraryTask( final File file, final Pattern excluded, final Map<Pattern, JarKnockouts> knockoutMatchers )
+        {
+            this.file = file;
+            this.excluded = excluded;
+            this.knockoutMatchers = knockoutMatchers;
+        }
+
+        @Override
+        public Library call()
+            throws IOException
+        {
+            final String fname = file.getName();
+            if ( excluded.matcher( fname )
+                         .matches() )
+            {
+                return null;
+            }
+
+            final Set<JarKnockouts> jks = new HashSet<JarKnockouts>();
+            for ( final Map.Entry<Pattern, JarKnockouts> entry : knockoutMatchers.entrySet() )
+            {
+                if ( entry.getKey()
+                          .matcher( fname )
+                          .matches() )
+                {
+                    jks.add( entry.getValue() );
+                }
+            }
+
+            final DuplicateEntryIndex.Listing listing =
+                duplicatePolicy == DuplicateEntryPolicy.IGNORE || !fname.endsWith( ".jar" ) ? null
+                                : DuplicateEntryIndex.list( file, jks );
+
+            return new Library( file, jks, listing );
+        }
+    }
+
+    /**
+     * Applies a library's knock-outs, if any.
+     * 
+     * @return the file to add to the archive: the original or its rewrite.
+     */
+    private final class RewriteTask
+        implements Callable<File>
+    {
+        private final Library library;
+
+        RewriteTask( final Library library )
+        {
+            this.library = library;
+        }
+
+        @Override
+        public File call()
+            throws IOException
+        {
+            return library.knockouts.isEmpty() ? library.file
+                            : JarKnockouts.rewriteJar( library.file, knockoutRewritesDir, library.knockouts );
+        }
+    }
+
     public class ExcludesFileFilter
         implements IOFileFilter
     {
 
         private final String trimPrefix;
 
-        private final Set<String> excludes;
+        private final PrefixTrie excludes;
 
         public ExcludesFileFilter( final String trimPrefix, final Set<String> excludedBuildOutput )
         {
             this.trimPrefix = trimPrefix;
-            this.excludes = excludedBuildOutput;
+            this.excludes = new PrefixTrie( excludedBuildOutput );
         }
 
         @Override
         public boolean accept( final File file )
         {
-            final String subpath = subpath( trimPrefix, file );
-            for ( final String exclude : excludes )
-            {
-                if ( subpath.startsWith( exclude ) )
-                {
-                    return false;
-                }
-            }
-
-            return true;
+            return !excludes.matches( subpath( trimPrefix, file ) );
         }
 
         @Override
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.jboss.arquillian.container.spi.client.deployment.DeploymentDescription;
+import org.jboss.arquillian.container.test.api.Deployment;
+import org.jboss.arquillian.container.test.spi.TestDeployment;
+import org.jboss.arquillian.container.test.spi.client.deployment.ProtocolArchiveProcessor;
+import org.jboss.arquillian.protocol.servlet.v_3.ServletProtocolDeploymentPackager;
+import org.jboss.arquillian.test.spi.TestClass;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.StringAsset;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.After;
+import org.junit.Test;
+
+public class AggregateDeploymentTest
+{
+
+    @After
+    public void forget()
+    {
+        AggregateDeployment.forgetCopies();
+    }
+
+    @Test
+    public void unmodifiedCopyIsAggregateAfterPackaging()
+        throws Exception
+    {
+        final Archive<?> archive = generate( UnmodifiedDeployment.class );
+        final int generated = archive.getContent()
+                                     .size();
+
+        // the protocol packager adds its library to the application archive in place.
+        packageProtocol( archive );
+        assertTrue( archive.getContent()
+                           .size() > generated );
+
+        assertTrue( AggregateDeployment.deploying( archive ) );
+
+        // deploying forgets the copy.
+        assertFalse( AggregateDeployment.deploying( archive ) );
+    }
+
+    @Test
+    public void modifiedCopyIsDeployedSeparately()
+        throws Exception
+    {
+        final Archive<?> archive = generate( ModifiedDeployment.class );
+        packageProtocol( archive );
+
+        assertFalse( AggregateDeployment.deploying( archive ) );
+    }
+
+    @Test
+    public void eachCallGetsItsOwnCopy()
+    {
+        final WebArchive first = AggregateDeployment.get( "copies", new SmallWar() );
+        final WebArchive second = AggregateDeployment.get( "copies", new SmallWar() );
+
+        first.add( new StringAsset( "extra" ), "extra.txt" );
+
+        assertThat( second.contains( "extra.txt" ), equalTo( false ) );
+    }
+
+    @Test
+    public void copyNeverGeneratedIsNotAggregate()
+    {
+        final WebArchive copy = AggregateDeployment.get( "ungenerated", new SmallWar() );
+
+        assertFalse( AggregateDeployment.deploying( copy ) );
+    }
+
+    /**
+     * Runs the test class's @Deployment method through Arquillian's deployment generation.
+     */
+    private static Archive<?> generate( final Class<?> testClass )
+    {
+        final List<DeploymentDescription> descriptions =
+            new AggregateScenarioGenerator().generate( new TestClass( testClass ) );
+        assertThat( descriptions.size(), equalTo( 1 ) );
+
+        return descriptions.get( 0 )
+                           .getArchive();
+    }
+
+    /**
+     * Package the archive with Arquillian's Servlet 3.0 protocol, as the deployment generator does before deploying.
+     */
+    private static void packageProtocol( final Archive<?> archive )
+    {
+        final TestDeployment deployment = new TestDeployment( archive, Collections.<Archive<?>> emptyList() );
+        final List<ProtocolArchiveProcessor> processors = Collections.emptyList();
+        new ServletProtocolDeploymentPackager().generateDeployment( deployment, processors );
+    }
+
+    private static final class SmallWar
+        implements Callable<WebArchive>
+    {
+        @Override
+        public WebArchive call()
+        {
+            return ShrinkWrap.create( WebArchive.class, "aggregate-test.war" )
+                             .addClass( AggregateDeploymentTest.class );
+        }
+    }
+
+    public static final class UnmodifiedDeployment
+    {
+        @Deployment
+        public static WebArchive deployment()
+        {
+            return AggregateDeployment.get( "unmodified", new SmallWar() );
+        }
+    }
+
+    public static final class ModifiedDeployment
+    {
+        @Deployment
+        public static WebArchive deployment()
+        {
+            return AggregateDeployment.get( "modified", new SmallWar() )
+                                      .addAsResource( new StringAsset( "extra" ), "extra.properties" );
+        }
+    }
+
+}
@@ -0,0 +1,142 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertThat;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildOutputIndexTest
+{
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    private File classes;
+
+    private File indexDir;
+
+    @Before
+    public void setup()
+        throws IOException
+    {
+        classes = temp.newFolder( "classes" );
+        indexDir = temp.newFolder( "index" );
+    }
+
+    @Test
+    public void listsFilesSortedAndPrunesExcludes()
+        throws Exception
+    {
+        touch( "org/test/B.class" );
+        touch( "org/test/A.class" );
+        touch( "org/test/internal/Hidden.class" );
+        touch( "META-INF/beans.xml" );
+
+        final PrefixTrie excludes = new PrefixTrie( Collections.singleton( "org/test/internal" ) );
+
+        assertThat( scan( excludes ), equalTo( Arrays.asList( "META-INF/beans.xml", "org/test/A.class",
+                                                              "org/test/B.class" ) ) );
+    }
+
+    @Test
+    public void relistsDirectoryChangedInTheSecondItWasScanned()
+        throws Exception
+    {
+        touch( "org/test/A.class" );
+        final File dir = new File( classes, "org/test" );
+        final long mtime = dir.lastModified();
+
+        scan( noExcludes() );
+
+        // a second-resolution filesystem would leave the timestamp as it was.
+        touch( "org/test/B.class" );
+        dir.setLastModified( mtime );
+
+        assertThat( scan( noExcludes() ), equalTo( Arrays.asList( "org/test/A.class", "org/test/B.class" ) ) );
+    }
+
+    @Test
+    public void reusesListingOfSettledDirectory()
+        throws Exception
+    {
+        touch( "org/test/A.class" );
+        final long settled = System.currentTimeMillis() - 3600000;
+        settle( classes, settled );
+
+        scan( noExcludes() );
+
+        // not relisted, since the timestamp says nothing changed; only the recorded files are stat'ed.
+        touch( "org/test/B.class" );
+        settle( classes, settled );
+
+        assertThat( scan( noExcludes() ), equalTo( Arrays.asList( "org/test/A.class" ) ) );
+
+        // a changed timestamp is listed again.
+        new File( classes, "org/test" ).setLastModified( System.currentTimeMillis() );
+        assertThat( scan( noExcludes() ), equalTo( Arrays.asList( "org/test/A.class", "org/test/B.class" ) ) );
+    }
+
+    private List<String> scan( final PrefixTrie excludes )
+    {
+        final List<String> paths = new ArrayList<String>();
+        for ( final BuildOutputIndex.Entry entry : new BuildOutputIndex( classes, indexDir ).scan( excludes ) )
+        {
+            paths.add( entry.getPath() );
+        }
+
+        return paths;
+    }
+
+    private static PrefixTrie noExcludes()
+    {
+        return new PrefixTrie( Collections.<String> emptySet() );
+    }
+
+    private void touch( final String path )
+        throws IOException
+    {
+        final File file = new File( classes, path );
+        file.getParentFile()
+            .mkdirs();
+        file.createNewFile();
+    }
+
+    private static void settle( final File dir, final long mtime )
+    {
+        for ( final File child : dir.listFiles() )
+        {
+            if ( child.isDirectory() )
+            {
+                settle( child, mtime );
+            }
+        }
+
+        dir.setLastModified( mtime );
+    }
+
+}
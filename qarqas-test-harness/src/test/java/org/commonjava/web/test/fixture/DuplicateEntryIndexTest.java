@@ -0,0 +1,159 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class DuplicateEntryIndexTest
+{
+
+    private static final String A = "org/test/A.class";
+
+    private static final String B = "org/test/B.class";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void listsEntriesOutsideMetaInf()
+        throws Exception
+    {
+        final File jar = writeJar( "lib.jar", "META-INF/MANIFEST.MF", "org/test/", A, B );
+
+        final DuplicateEntryIndex.Listing listing = list( jar );
+
+        assertThat( listing.entries, equalTo( Arrays.asList( A, B ) ) );
+        assertFalse( listing.untracked );
+    }
+
+    @Test
+    public void packagingMetadataIsNotWorthKeeping()
+        throws Exception
+    {
+        final File jar =
+            writeJar( "lib.jar", "META-INF/MANIFEST.MF", "META-INF/INDEX.LIST", "META-INF/SIGNER.SF",
+                      "META-INF/SIGNER.RSA", "META-INF/maven/org.test/lib/pom.properties", A );
+
+        assertFalse( list( jar ).untracked );
+    }
+
+    @Test
+    public void notesUntrackedMetaInfEntries()
+        throws Exception
+    {
+        assertTrue( list( writeJar( "beans.jar", "META-INF/beans.xml", A ) ).untracked );
+        assertTrue( list( writeJar( "services.jar", "META-INF/services/org.test.Spi", A ) ).untracked );
+    }
+
+    @Test
+    public void leavesOutKnockedOutEntries()
+        throws Exception
+    {
+        final File jar = writeJar( "lib.jar", "META-INF/beans.xml", A, B );
+
+        final JarKnockouts knockouts = new JarKnockouts().knockoutPaths( B, "META-INF/beans.xml" );
+
+        final DuplicateEntryIndex.Listing listing = DuplicateEntryIndex.list( jar, Collections.singleton( knockouts ) );
+
+        assertThat( listing.entries, equalTo( Arrays.asList( A ) ) );
+        assertFalse( listing.untracked );
+    }
+
+    @Test
+    public void reportsEntriesEarlierLibrariesProvide()
+        throws Exception
+    {
+        final File first = writeJar( "first.jar", A );
+        final File second = writeJar( "second.jar", A, B );
+
+        final DuplicateEntryIndex index = new DuplicateEntryIndex();
+        assertTrue( index.add( first, list( first ).entries )
+                         .isEmpty() );
+        assertThat( index.add( second, list( second ).entries ), equalTo( Arrays.asList( A ) ) );
+
+        assertThat( index.getOwner( A ), equalTo( first ) );
+        assertThat( index.getOwner( B ), equalTo( second ) );
+    }
+
+    @Test
+    public void onlyLibrariesWithNothingElseToOfferAreRedundant()
+        throws Exception
+    {
+        final DuplicateEntryIndex index = new DuplicateEntryIndex();
+        final File first = writeJar( "first.jar", A, B );
+        index.add( first, list( first ).entries );
+
+        assertTrue( isRedundant( index, writeJar( "copy.jar", "META-INF/MANIFEST.MF", A, B ) ) );
+        assertFalse( isRedundant( index, writeJar( "partial.jar", A, "org/test/C.class" ) ) );
+        assertFalse( isRedundant( index, writeJar( "beans.jar", "META-INF/beans.xml", A, B ) ) );
+    }
+
+    private static boolean isRedundant( final DuplicateEntryIndex index, final File jar )
+        throws IOException
+    {
+        final DuplicateEntryIndex.Listing listing = list( jar );
+        final List<String> duplicates = index.add( jar, listing.entries );
+
+        return DuplicateEntryIndex.isRedundant( listing, duplicates );
+    }
+
+    private static DuplicateEntryIndex.Listing list( final File jar )
+        throws IOException
+    {
+        return DuplicateEntryIndex.list( jar, Collections.<JarKnockouts> emptySet() );
+    }
+
+    private File writeJar( final String name, final String... entries )
+        throws IOException
+    {
+        final File jar = temp.newFile( name );
+        final JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ) );
+        try
+        {
+            for ( final String entry : entries )
+            {
+                out.putNextEntry( new ZipEntry( entry ) );
+                if ( !entry.endsWith( "/" ) )
+                {
+                    out.write( entry.getBytes( "UTF-8" ) );
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+
+        return jar;
+    }
+
+}
@@ -0,0 +1,131 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Enumeration;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+/**
+ * Compares the raw-copy and the inflate/deflate rewrite of large jars (eg. resteasy-jaxrs or hibernate-core from the
+ * local repository), knocking out the first class in each. Not a unit test; run it by hand:
+ *
+ * <pre>
+ * java -cp target/test-classes:target/classes:commons-io.jar org.commonjava.web.test.fixture.JarKnockoutsBenchmark \
+ *     ~/.m2/repository/org/hibernate/hibernate-core/4.0.1.Final/hibernate-core-4.0.1.Final.jar ...
+ * </pre>
+ */
+public final class JarKnockoutsBenchmark
+{
+
+    private static final int WARMUP = 3;
+
+    private static final int ROUNDS = 10;
+
+    private JarKnockoutsBenchmark()
+    {
+    }
+
+    public static void main( final String[] args )
+        throws IOException
+    {
+        if ( args.length < 1 )
+        {
+            System.err.println( "Usage: JarKnockoutsBenchmark <jar> [<jar>...]" );
+            System.exit( 1 );
+        }
+
+        for ( final String arg : args )
+        {
+            final File source = new File( arg );
+            final JarKnockouts knockouts = new JarKnockouts().knockoutPaths( firstClass( source ) );
+            final File target = File.createTempFile( "knockout-bench.", ".jar" );
+            try
+            {
+                final long streaming = time( source, target, knockouts, false );
+                final long streamingSize = target.length();
+
+                final long raw = time( source, target, knockouts, true );
+                final long rawSize = target.length();
+
+                System.out.printf( "%s (%d KB):%n", source.getName(), source.length() / 1024 );
+                System.out.printf( "  inflate/deflate: %d ms/rewrite (%d KB)%n", streaming, streamingSize / 1024 );
+                System.out.printf( "  raw copy: %d ms/rewrite (%d KB)%n", raw, rawSize / 1024 );
+            }
+            finally
+            {
+                target.delete();
+            }
+        }
+    }
+
+    private static long time( final File source, final File target, final JarKnockouts knockouts, final boolean raw )
+        throws IOException
+    {
+        long total = 0;
+        for ( int i = 0; i < WARMUP + ROUNDS; i++ )
+        {
+            final long start = System.nanoTime();
+            if ( raw )
+            {
+                if ( !RawJarRewriter.rewrite( source, target, knockouts ) )
+                {
+                    throw new IOException( "Raw copy not supported for: " + source );
+                }
+            }
+            else
+            {
+                JarKnockouts.rewriteStreaming( source, target, knockouts );
+            }
+
+            if ( i >= WARMUP )
+            {
+                total += System.nanoTime() - start;
+            }
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis( total / ROUNDS );
+    }
+
+    private static String firstClass( final File source )
+        throws IOException
+    {
+        final JarFile jar = new JarFile( source );
+        try
+        {
+            final Enumeration<JarEntry> entries = jar.entries();
+            while ( entries.hasMoreElements() )
+            {
+                final String name = entries.nextElement()
+                                           .getName();
+                if ( name.endsWith( ".class" ) )
+                {
+                    return name;
+                }
+            }
+
+            return "";
+        }
+        finally
+        {
+            jar.close();
+        }
+    }
+
+}
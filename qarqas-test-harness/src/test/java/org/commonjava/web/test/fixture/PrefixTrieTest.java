@@ -0,0 +1,67 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.Test;
+
+public class PrefixTrieTest
+{
+
+    @Test
+    public void matchesPathsUnderAnyPrefix()
+    {
+        final PrefixTrie trie = new PrefixTrie( Arrays.asList( "org/test/internal", "META-INF/maven" ) );
+
+        assertTrue( trie.matches( "org/test/internal" ) );
+        assertTrue( trie.matches( "org/test/internal/Hidden.class" ) );
+        assertTrue( trie.matches( "META-INF/maven/pom.xml" ) );
+    }
+
+    @Test
+    public void doesNotMatchShorterOrDivergingPaths()
+    {
+        final PrefixTrie trie = new PrefixTrie( Arrays.asList( "org/test/internal", "META-INF/maven" ) );
+
+        assertFalse( trie.matches( "org/test" ) );
+        assertFalse( trie.matches( "org/test/Visible.class" ) );
+        assertFalse( trie.matches( "META-INF/beans.xml" ) );
+        assertFalse( trie.matches( "" ) );
+    }
+
+    @Test
+    public void shortestPrefixWins()
+    {
+        final PrefixTrie trie = new PrefixTrie( Arrays.asList( "org/test/internal/deep", "org/test" ) );
+
+        assertTrue( trie.matches( "org/test/Other.class" ) );
+    }
+
+    @Test
+    public void emptyTrieMatchesNothing()
+    {
+        final PrefixTrie trie = new PrefixTrie( Collections.<String> emptySet() );
+
+        assertFalse( trie.matches( "org/test/A.class" ) );
+        assertFalse( trie.matches( "" ) );
+    }
+
+}
@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.commons.io.IOUtils.toByteArray;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RawJarRewriterTest
+{
+
+    private static final String COMMENT = "built for RawJarRewriterTest";
+
+    private static final String STORED = "org/test/Stored.txt";
+
+    private static final String DEFLATED = "org/test/Deflated.class";
+
+    private static final String KNOCKED_OUT = "org/test/KnockedOut.class";
+
+    private static final String LAST = "org/test/Last.properties";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    @Test
+    public void copiesKeptEntriesVerbatim()
+        throws Exception
+    {
+        final File source = writeJar( temp.newFile( "source.jar" ) );
+        final JarKnockouts knockouts = new JarKnockouts().knockoutPaths( KNOCKED_OUT );
+
+        final File raw = temp.newFile( "raw.jar" );
+        assertTrue( RawJarRewriter.rewrite( source, raw, knockouts ) );
+
+        final File streamed = temp.newFile( "streamed.jar" );
+        JarKnockouts.rewriteStreaming( source, streamed, knockouts );
+
+        final Map<String, byte[]> expected = read( streamed );
+        assertFalse( expected.containsKey( KNOCKED_OUT ) );
+        assertThat( new ArrayList<String>( read( raw ).keySet() ),
+                    equalTo( new ArrayList<String>( expected.keySet() ) ) );
+
+        for ( final Map.Entry<String, byte[]> entry : read( raw ).entrySet() )
+        {
+            assertArrayEquals( entry.getKey(), expected.get( entry.getKey() ), entry.getValue() );
+        }
+
+        // the local headers have to be right too, for anything that reads the jar as a stream.
+        assertThat( readStream( raw ), equalTo( new ArrayList<String>( expected.keySet() ) ) );
+
+        final JarFile jar = new JarFile( raw );
+        try
+        {
+            assertThat( jar.getEntry( STORED )
+                           .getMethod(), equalTo( ZipEntry.STORED ) );
+            assertNotNull( jar.getManifest() );
+        }
+        finally
+        {
+            jar.close();
+        }
+
+        assertThat( new String( tail( raw, COMMENT.length() ), "UTF-8" ), equalTo( COMMENT ) );
+    }
+
+    @Test
+    public void leavesMalformedJarToCaller()
+        throws Exception
+    {
+        final File source = writeJar( temp.newFile( "source.jar" ) );
+
+        // break the signature of the first local header (the manifest's); the central directory is still intact.
+        final RandomAccessFile raf = new RandomAccessFile( source, "rw" );
+        try
+        {
+            raf.writeInt( 0 );
+        }
+        finally
+        {
+            raf.close();
+        }
+
+        final File target = new File( temp.getRoot(), "raw.jar" );
+        assertFalse( RawJarRewriter.rewrite( source, target, new JarKnockouts().knockoutPaths( KNOCKED_OUT ) ) );
+        assertFalse( target.exists() );
+    }
+
+    /**
+     * A manifest, a stored entry, and deflated entries, which JarOutputStream writes with data descriptors.
+     */
+    private File writeJar( final File jar )
+        throws IOException
+    {
+        final Manifest manifest = new Manifest();
+        manifest.getMainAttributes()
+                .put( Attributes.Name.MANIFEST_VERSION, "1.0" );
+
+        final JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ), manifest );
+        try
+        {
+            final byte[] stored = "stored, not compressed".getBytes( "UTF-8" );
+            final CRC32 crc = new CRC32();
+            crc.update( stored );
+
+            final JarEntry storedEntry = new JarEntry( STORED );
+            storedEntry.setMethod( ZipEntry.STORED );
+            storedEntry.setSize( stored.length );
+            storedEntry.setCompressedSize( stored.length );
+            storedEntry.setCrc( crc.getValue() );
+            out.putNextEntry( storedEntry );
+            out.write( stored );
+            out.closeEntry();
+
+            putDeflated( out, DEFLATED, 2000 );
+            putDeflated( out, KNOCKED_OUT, 500 );
+            putDeflated( out, LAST, 100 );
+
+            out.setComment( COMMENT );
+        }
+        finally
+        {
+            out.close();
+        }
+
+        return jar;
+    }
+
+    private static void putDeflated( final JarOutputStream out, final String name, final int lines )
+        throws IOException
+    {
+        out.putNextEntry( new JarEntry( name ) );
+        for ( int i = 0; i < lines; i++ )
+        {
+            out.write( ( name + " line " + i + "\n" ).getBytes( "UTF-8" ) );
+        }
+        out.closeEntry();
+    }
+
+    private static Map<String, byte[]> read( final File file )
+        throws IOException
+    {
+        final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>();
+        final JarFile jar = new JarFile( file );
+        try
+        {
+            for ( final Enumeration<JarEntry> e = jar.entries(); e.hasMoreElements(); )
+            {
+                final JarEntry entry = e.nextElement();
+                entries.put( entry.getName(), toByteArray( jar.getInputStream( entry ) ) );
+            }
+        }
+        finally
+        {
+            jar.close();
+        }
+
+        return entries;
+    }
+
+    /**
+     * @return the names of the entries, read through their local headers. JarInputStream hides the manifest.
+     */
+    private static List<String> readStream( final File file )
+        throws IOException
+    {
+        final List<String> names = new ArrayList<String>();
+        JarInputStream in = null;
+        try
+        {
+            in = new JarInputStream( new FileInputStream( file ) );
+            if ( in.getManifest() != null )
+            {
+                names.add( JarFile.MANIFEST_NAME );
+            }
+
+            JarEntry entry;
+            while ( ( entry = in.getNextJarEntry() ) != null )
+            {
+                toByteArray( in );
+                names.add( entry.getName() );
+            }
+        }
+        finally
+        {
+            closeQuietly( in );
+        }
+
+        return names;
+    }
+
+    private static byte[] tail( final File file, final int length )
+        throws IOException
+    {
+        final RandomAccessFile raf = new RandomAccessFile( file, "r" );
+        try
+        {
+            final byte[] bytes = new byte[length];
+            raf.seek( raf.length() - length );
+            raf.readFully( bytes );
+
+            return bytes;
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+}
@@ -0,0 +1,123 @@
+/*******************************************************************************
+ * Copyright 2011 John Casey
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ ******************************************************************************/
+package org.commonjava.web.test.fixture;
+
+import static org.apache.commons.io.IOUtils.closeQuietly;
+import static org.apache.commons.io.IOUtils.copy;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+import org.jboss.shrinkwrap.api.ArchivePaths;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.jboss.shrinkwrap.api.spec.WebArchive;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TestWarArchiveBuilderTest
+{
+
+    private static final String A = "org/test/A.class";
+
+    private static final String B = "org/test/B.class";
+
+    @Rule
+    public TemporaryFolder temp = new TemporaryFolder();
+
+    /**
+     * Under KNOCKOUT, a library whose classes all come first from another library is left out, unless it also has
+     * untracked entries (here, a beans.xml); then only its duplicates are knocked out.
+     */
+    @Test
+    public void knocksOutDuplicatesButKeepsLibrariesWithUntrackedEntries()
+        throws Exception
+    {
+        final File libs = temp.newFolder( "libs" );
+        writeJar( new File( libs, "a-first.jar" ), A, B );
+        writeJar( new File( libs, "b-copy.jar" ), "META-INF/MANIFEST.MF", A, B );
+        writeJar( new File( libs, "c-beans.jar" ), "META-INF/beans.xml", A );
+
+        final TestWarArchiveBuilder builder =
+            new TestWarArchiveBuilder( TestWarArchiveBuilderTest.class, temp.newFolder( "classes" ) );
+        builder.withLibrariesIn( libs )
+               .withKnockoutRewritesDir( temp.newFolder( "rewrites" ) )
+               .withIndexDir( temp.newFolder( "index" ) )
+               .withDuplicateEntryPolicy( DuplicateEntryPolicy.KNOCKOUT )
+               .withIsolatedDeployment();
+
+        final WebArchive war = builder.build();
+
+        assertNotNull( war.get( "WEB-INF/lib/a-first.jar" ) );
+        assertNull( war.get( "WEB-INF/lib/b-copy.jar" ) );
+
+        final Node beans = war.get( "WEB-INF/lib/c-beans.jar" );
+        assertNotNull( beans );
+
+        final JavaArchive rewritten =
+            ShrinkWrap.createFromZipFile( JavaArchive.class, asFile( beans, temp.newFile( "c-beans.jar" ) ) );
+        assertTrue( rewritten.contains( ArchivePaths.create( "META-INF/beans.xml" ) ) );
+        assertFalse( rewritten.contains( ArchivePaths.create( A ) ) );
+    }
+
+    private static File asFile( final Node node, final File file )
+        throws IOException
+    {
+        final InputStream in = node.getAsset()
+                                   .openStream();
+        final FileOutputStream out = new FileOutputStream( file );
+        try
+        {
+            copy( in, out );
+        }
+        finally
+        {
+            closeQuietly( in );
+            closeQuietly( out );
+        }
+
+        return file;
+    }
+
+    private static void writeJar( final File jar, final String... entries )
+        throws IOException
+    {
+        final JarOutputStream out = new JarOutputStream( new FileOutputStream( jar ) );
+        try
+        {
+            for ( final String entry : entries )
+            {
+                out.putNextEntry( new ZipEntry( entry ) );
+                out.write( entry.getBytes( "UTF-8" ) );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+}